@@ -0,0 +1,26 @@
+#!/bin/sh
+#
+# Times the checker framework and native dataflow engines and checks that they give the same
+# results. The corpus is the dataflow test corpus together with the extractor's own sources.
+#
+# Build the extractor first with `mvn package` from the root of the repository. Set RUNS to change
+# the number of runs of each engine (default 5, the first of which is a warm up).
+
+set -e
+cd "$(dirname "$0")"
+
+JAR=target/features-javac-extractor-latest.jar
+EXPORTS=""
+for PACKAGE in api code comp file main model parser processing tree util; do
+  EXPORTS="$EXPORTS --add-exports jdk.compiler/com.sun.tools.javac.$PACKAGE=ALL-UNNAMED"
+done
+
+# The AutoValue classes of the extractor are generated into target/generated-sources.
+# shellcheck disable=SC2086
+exec java $EXPORTS -cp "$JAR" \
+  uk.ac.cam.acr31.features.javac.semantic.DataflowEngineComparison \
+  -runs "${RUNS:-5}" \
+  src/test/resources/dataflow \
+  src/main/java \
+  target/generated-sources/annotations \
+  -- -classpath "$JAR" $EXPORTS
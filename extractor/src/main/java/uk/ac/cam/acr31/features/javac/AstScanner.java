@@ -17,6 +17,7 @@
 package uk.ac.cam.acr31.features.javac;
 
 import com.google.common.base.CaseFormat;
+import com.google.common.collect.ImmutableList;
 import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.NewClassTree;
 import com.sun.source.tree.Tree;
@@ -24,7 +25,9 @@ import com.sun.tools.javac.code.Flags;
 import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.tree.EndPosTable;
 import com.sun.tools.javac.tree.JCTree;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.util.ArrayDeque;
 import java.util.Deque;
@@ -39,26 +42,34 @@ import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureNode.NodeType;
 
 class AstScanner {
 
+  /** The accessors to visit for each tree class, resolved the first time the class is seen. */
+  private static final ClassValue<ImmutableList<Accessor>> ACCESSORS =
+      new ClassValue<>() {
+        @Override
+        protected ImmutableList<Accessor> computeValue(Class<?> treeClass) {
+          return accessors(treeClass);
+        }
+      };
+
   private final FeatureGraph featureGraph;
   private final EndPosTable endPosTable;
+  private final TreeSymbols treeSymbols;
 
-  private AstScanner(FeatureGraph featureGraph, EndPosTable endPosTable) {
+  private AstScanner(FeatureGraph featureGraph, EndPosTable endPosTable, TreeSymbols treeSymbols) {
     this.featureGraph = featureGraph;
     this.endPosTable = endPosTable;
+    this.treeSymbols = treeSymbols;
   }
 
-  static void addToGraph(JCTree.JCCompilationUnit compilationUnit, FeatureGraph featureGraph) {
-
-    AstScanner scanner = new AstScanner(featureGraph, compilationUnit.endPositions);
-    try {
-      scanner.scanOrThrow(compilationUnit, null);
-    } catch (InvocationTargetException | IllegalAccessException e) {
-      throw new RuntimeException(e);
-    }
+  static void addToGraph(
+      JCTree.JCCompilationUnit compilationUnit,
+      FeatureGraph featureGraph,
+      TreeSymbols treeSymbols) {
+    AstScanner scanner = new AstScanner(featureGraph, compilationUnit.endPositions, treeSymbols);
+    scanner.scan(compilationUnit, null);
   }
 
-  private void scanOrThrow(JCTree node, GraphProtos.FeatureNode parent)
-      throws InvocationTargetException, IllegalAccessException {
+  private void scan(JCTree node, GraphProtos.FeatureNode parent) {
 
     GraphProtos.FeatureNode newNode =
         featureGraph.createFeatureNode(NodeType.AST_ELEMENT, node.getKind().toString(), node);
@@ -67,38 +78,21 @@ class AstScanner {
     } else {
       featureGraph.setAstRoot(newNode);
     }
-    // TODO(acr31) check this implements Tree
-    Class<?> treeInterface = node.getClass().getInterfaces()[0];
 
-    for (Method m : treeInterface.getDeclaredMethods()) {
-      if (m.getParameterCount() != 0) {
-        continue;
-      }
+    for (Accessor accessor : ACCESSORS.get(node.getClass())) {
 
-      // avoid methods which would involve visiting some part of the tree twice
-      if (CompilationUnitTree.class.isAssignableFrom(treeInterface)) {
-        if (m.getName().equals("getPackageName")
-            || m.getName().equals("getSourceFile")
-            || m.getName().equals("getLineMap")) {
-          continue;
-        }
-      }
-
-      if (NewClassTree.class.isAssignableFrom(treeInterface)) {
-        NewClassTree newClassTree = (NewClassTree) node;
-        if (newClassTree.getClassBody() != null && m.getName().equals("getIdentifier")) {
-          continue;
-        }
+      if (accessor.skipWithClassBody && ((NewClassTree) node).getClassBody() != null) {
+        continue;
       }
 
-      Object result = m.invoke(node);
+      Object result = accessor.get(node);
 
       Deque<JCTree> toProcess = new ArrayDeque<>();
-      if (Tree.class.isAssignableFrom(m.getReturnType())) {
+      if (accessor.kind == AccessorKind.TREE) {
         if (result != null && inSource((JCTree) result)) {
           toProcess.add((JCTree) result);
         }
-      } else if (List.class.isAssignableFrom(m.getReturnType())) {
+      } else if (accessor.kind == AccessorKind.LIST) {
         if (result != null) {
           for (Object o : (List<?>) result) {
             if (o instanceof JCTree) {
@@ -117,10 +111,9 @@ class AstScanner {
             }
           }
         }
-      } else if (Set.class.isAssignableFrom(m.getReturnType())) {
+      } else if (accessor.kind == AccessorKind.SET) {
         GraphProtos.FeatureNode holderNode =
-            featureGraph.createFeatureNode(
-                NodeType.FAKE_AST, methodNameToNodeType(m.getName()), -1, -1);
+            featureGraph.createFeatureNode(NodeType.FAKE_AST, accessor.nodeType, -1, -1);
         featureGraph.addEdge(newNode, holderNode, EdgeType.AST_CHILD);
         for (Object o : (Set<?>) result) {
           if (o instanceof JCTree) {
@@ -134,20 +127,19 @@ class AstScanner {
         }
       } else {
         String value = Objects.toString(result);
-        if (m.getName().equals("isStatic")) {
+        if (accessor.name.equals("isStatic")) {
           if (value.equals("false")) {
             continue;
           }
           value = "static";
         }
         if (node.getKind() == Tree.Kind.METHOD
-            && m.getName().equals("getName")
+            && accessor.name.equals("getName")
             && value.equals("<init>")) {
-          value = Symbols.getSymbol(node).map(sym -> sym.owner.name.toString()).orElseThrow();
+          value = Objects.requireNonNull(treeSymbols.get(node)).owner.name.toString();
         }
         GraphProtos.FeatureNode holderNode =
-            featureGraph.createFeatureNode(
-                NodeType.FAKE_AST, methodNameToNodeType(m.getName()), -1, -1);
+            featureGraph.createFeatureNode(NodeType.FAKE_AST, accessor.nodeType, -1, -1);
         featureGraph.addEdge(newNode, holderNode, EdgeType.AST_CHILD);
         GraphProtos.FeatureNode valueNode =
             featureGraph.createFeatureNode(NodeType.AST_LEAF, value, -1, -1);
@@ -160,15 +152,45 @@ class AstScanner {
         GraphProtos.FeatureNode holderNode =
             featureGraph.createFeatureNode(
                 NodeType.FAKE_AST,
-                methodNameToNodeType(m.getName()),
+                accessor.nodeType,
                 firstChild.getStartPosition(),
                 lastChild.getEndPosition(endPosTable));
         featureGraph.addEdge(newNode, holderNode, EdgeType.AST_CHILD);
         for (JCTree t : toProcess) {
-          scanOrThrow(t, holderNode);
+          scan(t, holderNode);
+        }
+      }
+    }
+  }
+
+  /**
+   * Resolve the accessors of the tree interface implemented by this class, in the order that
+   * reflection reports them.
+   */
+  private static ImmutableList<Accessor> accessors(Class<?> treeClass) {
+    // TODO(acr31) check this implements Tree
+    Class<?> treeInterface = treeClass.getInterfaces()[0];
+
+    ImmutableList.Builder<Accessor> result = ImmutableList.builder();
+    for (Method m : treeInterface.getDeclaredMethods()) {
+      if (m.getParameterCount() != 0) {
+        continue;
+      }
+
+      // avoid methods which would involve visiting some part of the tree twice
+      if (CompilationUnitTree.class.isAssignableFrom(treeInterface)) {
+        if (m.getName().equals("getPackageName")
+            || m.getName().equals("getSourceFile")
+            || m.getName().equals("getLineMap")) {
+          continue;
         }
       }
+
+      boolean skipWithClassBody =
+          NewClassTree.class.isAssignableFrom(treeInterface) && m.getName().equals("getIdentifier");
+      result.add(new Accessor(m, skipWithClassBody));
     }
+    return result.build();
   }
 
   private static String methodNameToNodeType(String name) {
@@ -186,4 +208,58 @@ class AstScanner {
     }
     return true;
   }
+
+  private enum AccessorKind {
+    TREE,
+    LIST,
+    SET,
+    VALUE
+  }
+
+  /** A zero argument method of a tree interface along with what to do with its result. */
+  private static final class Accessor {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, JCTree.class);
+
+    private final String name;
+    private final String nodeType;
+    private final AccessorKind kind;
+    private final MethodHandle handle;
+    /** Don't visit this accessor on trees with a class body. */
+    private final boolean skipWithClassBody;
+
+    private Accessor(Method method, boolean skipWithClassBody) {
+      this.name = method.getName();
+      this.nodeType = methodNameToNodeType(method.getName());
+      this.kind = accessorKind(method.getReturnType());
+      this.skipWithClassBody = skipWithClassBody;
+      try {
+        this.handle = MethodHandles.publicLookup().unreflect(method).asType(GETTER_TYPE);
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private Object get(JCTree node) {
+      try {
+        return (Object) handle.invokeExact(node);
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable t) {
+        throw new RuntimeException(t);
+      }
+    }
+
+    private static AccessorKind accessorKind(Class<?> returnType) {
+      if (Tree.class.isAssignableFrom(returnType)) {
+        return AccessorKind.TREE;
+      } else if (List.class.isAssignableFrom(returnType)) {
+        return AccessorKind.LIST;
+      } else if (Set.class.isAssignableFrom(returnType)) {
+        return AccessorKind.SET;
+      } else {
+        return AccessorKind.VALUE;
+      }
+    }
+  }
 }
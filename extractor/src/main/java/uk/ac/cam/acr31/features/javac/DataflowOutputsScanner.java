@@ -18,35 +18,31 @@ package uk.ac.cam.acr31.features.javac;
 
 import com.google.common.collect.ImmutableMap;
 import com.sun.source.tree.ClassTree;
-import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.IdentifierTree;
 import com.sun.source.tree.MethodTree;
 import com.sun.source.tree.Tree;
 import com.sun.source.tree.VariableTree;
-import com.sun.source.util.TreeScanner;
-import org.checkerframework.dataflow.analysis.AnalysisResult;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
 import uk.ac.cam.acr31.features.javac.graph.FeatureGraph;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureEdge.EdgeType;
 import uk.ac.cam.acr31.features.javac.semantic.DataflowOutputs;
 import uk.ac.cam.acr31.features.javac.semantic.PossibleTreeSet;
-import uk.ac.cam.acr31.features.javac.semantic.PossibleTreeSetStore;
+import uk.ac.cam.acr31.features.javac.semantic.PossibleTreeSetResult;
+import uk.ac.cam.acr31.features.javac.syntactic.CompositeScanner;
 import uk.ac.cam.acr31.features.javac.syntactic.ScanContext;
 
-public class DataflowOutputsScanner extends TreeScanner<Void, ScanContext> {
+public class DataflowOutputsScanner extends CompositeScanner.Pass {
 
   private final ImmutableMap<ClassTree, ImmutableMap<MethodTree, DataflowOutputs>> analysisResults;
   private final FeatureGraph graph;
+  /** The contexts of the classes and methods enclosing the current one. */
+  private final Deque<ScanContext> enclosingContexts = new ArrayDeque<>();
 
-  static void addToGraph(
-      CompilationUnitTree tree,
-      ImmutableMap<ClassTree, ImmutableMap<MethodTree, DataflowOutputs>> analysisResults,
-      FeatureGraph graph) {
-    DataflowOutputsScanner analysisOutputVariableScanner =
-        new DataflowOutputsScanner(analysisResults, graph);
-    tree.accept(analysisOutputVariableScanner, new ScanContext(null, null));
-  }
+  private ScanContext scanContext = new ScanContext(null, null);
 
-  private DataflowOutputsScanner(
+  DataflowOutputsScanner(
       ImmutableMap<ClassTree, ImmutableMap<MethodTree, DataflowOutputs>> analysisResults,
       FeatureGraph graph) {
     this.analysisResults = analysisResults;
@@ -54,36 +50,61 @@ public class DataflowOutputsScanner extends TreeScanner<Void, ScanContext> {
   }
 
   @Override
-  public Void visitClass(ClassTree node, ScanContext scanContext) {
-    return super.visitClass(node, scanContext.withClassTree(node));
+  protected Set<Tree.Kind> kinds() {
+    return CompositeScanner.kindsOf(
+        ClassTree.class, MethodTree.class, IdentifierTree.class, VariableTree.class);
   }
 
   @Override
-  public Void visitMethod(MethodTree node, ScanContext scanContext) {
-    return super.visitMethod(node, scanContext.withMethodTree(node));
+  public Boolean visitClass(ClassTree node, Void ignored) {
+    enclosingContexts.push(scanContext);
+    scanContext = scanContext.withClassTree(node);
+    return true;
   }
 
   @Override
-  public Void visitIdentifier(IdentifierTree node, ScanContext scanContext) {
+  public Boolean visitMethod(MethodTree node, Void ignored) {
+    enclosingContexts.push(scanContext);
+    scanContext = scanContext.withMethodTree(node);
+    DataflowOutputs outputs = lookup(scanContext);
+    if (outputs != null && outputs.approximated) {
+      graph.addApproximatedDataflow(node);
+    }
+    return true;
+  }
+
+  @Override
+  public Boolean visitIdentifier(IdentifierTree node, Void ignored) {
     apply(node, scanContext);
-    return super.visitIdentifier(node, scanContext);
+    return true;
   }
 
   @Override
-  public Void visitVariable(VariableTree node, ScanContext scanContext) {
+  public Boolean visitVariable(VariableTree node, Void ignored) {
     apply(node, scanContext);
-    return super.visitVariable(node, scanContext);
+    return true;
   }
 
-  private void apply(Tree node, ScanContext context) {
+  @Override
+  protected void leave(Tree tree) {
+    if (tree instanceof ClassTree || tree instanceof MethodTree) {
+      scanContext = enclosingContexts.pop();
+    }
+  }
+
+  private DataflowOutputs lookup(ScanContext context) {
     if (context.classTree == null || context.methodTree == null) {
-      return;
+      return null;
     }
     ImmutableMap<MethodTree, DataflowOutputs> map = analysisResults.get(context.classTree);
     if (map == null) {
-      return;
+      return null;
     }
-    DataflowOutputs a = map.get(context.methodTree);
+    return map.get(context.methodTree);
+  }
+
+  private void apply(Tree node, ScanContext context) {
+    DataflowOutputs a = lookup(context);
     if (a == null) {
       return;
     }
@@ -91,8 +112,7 @@ public class DataflowOutputsScanner extends TreeScanner<Void, ScanContext> {
     applyAnalysisResult(node, a.lastUses, EdgeType.LAST_USE);
   }
 
-  private void applyAnalysisResult(
-      Tree node, AnalysisResult<PossibleTreeSet, PossibleTreeSetStore> r, EdgeType edgeType) {
+  private void applyAnalysisResult(Tree node, PossibleTreeSetResult r, EdgeType edgeType) {
     PossibleTreeSet possibles = r.getValue(node);
     if (possibles != null) {
       for (Tree tree : possibles.nodes()) {
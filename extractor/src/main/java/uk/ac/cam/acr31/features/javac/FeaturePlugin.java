@@ -16,10 +16,15 @@
 
 package uk.ac.cam.acr31.features.javac;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.ImmutableListMultimap.toImmutableListMultimap;
+
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.errorprone.util.ErrorProneToken;
 import com.sun.source.tree.ClassTree;
 import com.sun.source.tree.MethodTree;
 import com.sun.source.util.JavacTask;
@@ -30,16 +35,21 @@ import com.sun.tools.javac.api.BasicJavacTask;
 import com.sun.tools.javac.processing.JavacProcessingEnvironment;
 import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.util.Context;
-import com.sun.tools.javac.util.Name;
 import com.sun.tools.javac.util.Options;
 import java.io.File;
 import java.io.IOError;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import uk.ac.cam.acr31.features.javac.graph.FeatureGraph;
 import uk.ac.cam.acr31.features.javac.graph.ProtoOutput;
+import uk.ac.cam.acr31.features.javac.graph.SymbolNames;
 import uk.ac.cam.acr31.features.javac.lexical.Tokens;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureEdge;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureEdge.EdgeType;
@@ -47,11 +57,14 @@ import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureNode;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureNode.NodeType;
 import uk.ac.cam.acr31.features.javac.semantic.AssignabilityAnalysis;
 import uk.ac.cam.acr31.features.javac.semantic.DataflowOutputs;
+import uk.ac.cam.acr31.features.javac.semantic.SupertypeClosures;
 import uk.ac.cam.acr31.features.javac.semantic.TypeAnalysis;
 import uk.ac.cam.acr31.features.javac.semantic.TypeScanner;
+import uk.ac.cam.acr31.features.javac.syntactic.CompositeScanner;
 import uk.ac.cam.acr31.features.javac.syntactic.ComputedFromScanner;
 import uk.ac.cam.acr31.features.javac.syntactic.FormalArgScanner;
 import uk.ac.cam.acr31.features.javac.syntactic.GuardedByScanner;
+import uk.ac.cam.acr31.features.javac.syntactic.IdentifierIndex;
 import uk.ac.cam.acr31.features.javac.syntactic.LastLexicalUseScanner;
 import uk.ac.cam.acr31.features.javac.syntactic.ReturnsToScanner;
 import uk.ac.cam.acr31.features.javac.syntactic.SymbolScanner;
@@ -60,6 +73,15 @@ public class FeaturePlugin implements Plugin {
 
   private static final String FEATURES_OUTPUT_DIRECTORY = "featuresOutputDirectory";
   private static final String ABORT_ON_ERROR = "abortOnError";
+  private static final String PRINT_STATISTICS = "printStatistics";
+  private static final String ASSIGNABLE_TO_EDGES = "assignableToEdges";
+  private static final String DATAFLOW_PARALLELISM = "dataflowParallelism";
+  private static final String DATAFLOW_ENGINE = "dataflowEngine";
+  private static final String DATAFLOW_MAX_NODES = "dataflowMaxNodes";
+  private static final String DATAFLOW_MAX_VISITS = "dataflowMaxVisits";
+  private static final String DATAFLOW_CACHE_DIRECTORY = "dataflowCacheDirectory";
+
+  private static final Context.Key<ForkJoinPool> DATAFLOW_POOL = new Context.Key<>();
 
   @Override
   public String getName() {
@@ -75,6 +97,13 @@ public class FeaturePlugin implements Plugin {
         new TaskListener() {
           @Override
           public void finished(TaskEvent e) {
+            if (e.getKind() == TaskEvent.Kind.COMPILATION) {
+              ForkJoinPool pool = context.get(DATAFLOW_POOL);
+              if (pool != null) {
+                pool.shutdown();
+              }
+              return;
+            }
             if (e.getKind() != TaskEvent.Kind.ANALYZE) {
               return;
             }
@@ -100,6 +129,13 @@ public class FeaturePlugin implements Plugin {
     try {
       FeatureGraph featureGraph = createFeatureGraph(compilationUnit, context);
       writeOutput(featureGraph, featuresOutputDirectory);
+      if (options.getBoolean(PRINT_STATISTICS)) {
+        System.out.println(
+            "Feature extraction statistics: "
+                + featureGraph.getSourceFileName()
+                + " "
+                + featureGraph.getStatistics());
+      }
     } catch (AssertionError | RuntimeException e) {
       String message = "Feature extraction failed: " + taskEvent.getSourceFile().getName();
       if (abortOnError) {
@@ -110,6 +146,36 @@ public class FeaturePlugin implements Plugin {
     }
   }
 
+  /**
+   * Returns the pool to run the dataflow analyses in, or null to run them on the compiling thread.
+   * The dataflowParallelism option sets the number of threads and one pool is shared by the whole
+   * javac task.
+   */
+  private static ForkJoinPool dataflowPool(Context context) {
+    ForkJoinPool pool = context.get(DATAFLOW_POOL);
+    if (pool == null) {
+      String value = Options.instance(context).get(DATAFLOW_PARALLELISM);
+      int parallelism;
+      try {
+        parallelism = value == null ? 1 : Integer.parseInt(value);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid dataflowParallelism " + value, e);
+      }
+      if (parallelism <= 1) {
+        return null;
+      }
+      pool = new ForkJoinPool(parallelism);
+      context.put(DATAFLOW_POOL, pool);
+    }
+    return pool;
+  }
+
+  /** Returns the directory to cache dataflow results in, or null if they aren't cached. */
+  private static Path dataflowCacheDirectory(Context context) {
+    String value = Options.instance(context).get(DATAFLOW_CACHE_DIRECTORY);
+    return value == null ? null : Paths.get(value);
+  }
+
   private static void mkdirFor(File file) {
     File directory = file.getParentFile();
     if (directory.exists()) {
@@ -132,9 +198,12 @@ public class FeaturePlugin implements Plugin {
         new FeatureGraph(
             compilationUnit.getSourceFile().getName(),
             compilationUnit.endPositions,
-            compilationUnit.lineMap);
-    AstScanner.addToGraph(compilationUnit, featureGraph);
-    Tokens.addToGraph(compilationUnit.getSourceFile(), context, featureGraph);
+            compilationUnit.lineMap,
+            SymbolNames.instance(context));
+    TreeSymbols treeSymbols = new TreeSymbols();
+    AstScanner.addToGraph(compilationUnit, featureGraph, treeSymbols);
+    ImmutableList<ErrorProneToken> tokens =
+        Tokens.addToGraph(compilationUnit.getSourceFile(), context, featureGraph);
     linkTokensToAstNodes(featureGraph);
     // prune all ast nodes with no successors (these are leaves not connected to tokens)
     featureGraph.pruneAstNodes();
@@ -142,19 +211,38 @@ public class FeaturePlugin implements Plugin {
 
     JavacProcessingEnvironment processingEnvironment = JavacProcessingEnvironment.instance(context);
     ImmutableMap<ClassTree, ImmutableMap<MethodTree, DataflowOutputs>> analysisResults =
-        DataflowOutputs.create(compilationUnit, processingEnvironment);
-    DataflowOutputsScanner.addToGraph(compilationUnit, analysisResults, featureGraph);
-
-    TypeAnalysis typeAnalysis = new TypeAnalysis(compilationUnit, processingEnvironment);
-    TypeScanner.addToGraph(compilationUnit, featureGraph, typeAnalysis);
-    AssignabilityAnalysis.addToGraph(featureGraph, typeAnalysis);
-
-    ComputedFromScanner.addToGraph(compilationUnit, featureGraph);
-    LastLexicalUseScanner.addToGraph(compilationUnit, featureGraph);
-    ReturnsToScanner.addToGraph(compilationUnit, featureGraph);
-    FormalArgScanner.addToGraph(compilationUnit, featureGraph);
-    GuardedByScanner.addToGraph(compilationUnit, featureGraph);
-    SymbolScanner.addToGraph(compilationUnit, featureGraph);
+        DataflowOutputs.create(
+            compilationUnit,
+            processingEnvironment,
+            DataflowOutputs.Engine.fromOption(Options.instance(context).get(DATAFLOW_ENGINE)),
+            DataflowOutputs.Budget.fromOptions(
+                Options.instance(context).get(DATAFLOW_MAX_NODES),
+                Options.instance(context).get(DATAFLOW_MAX_VISITS)),
+            dataflowCacheDirectory(context),
+            tokens,
+            dataflowPool(context));
+    TypeAnalysis typeAnalysis = new TypeAnalysis(processingEnvironment);
+
+    // The passes don't read each other's edges so they can all share one traversal.
+    IdentifierIndex identifierIndex = new IdentifierIndex(treeSymbols);
+    CompositeScanner.run(
+        compilationUnit,
+        ImmutableList.of(
+            identifierIndex,
+            new DataflowOutputsScanner(analysisResults, featureGraph),
+            new TypeScanner(featureGraph, typeAnalysis),
+            new ComputedFromScanner(featureGraph, identifierIndex),
+            new LastLexicalUseScanner(featureGraph, treeSymbols),
+            new ReturnsToScanner(featureGraph, identifierIndex),
+            new FormalArgScanner(featureGraph, identifierIndex, treeSymbols),
+            new GuardedByScanner(featureGraph, identifierIndex),
+            new SymbolScanner(featureGraph, treeSymbols)));
+    AssignabilityAnalysis.addToGraph(
+        featureGraph,
+        typeAnalysis,
+        SupertypeClosures.instance(context),
+        AssignabilityAnalysis.EdgeMode.fromOption(
+            Options.instance(context).get(ASSIGNABLE_TO_EDGES)));
     linkCommentsToAstNodes(featureGraph);
     checkSymbols(featureGraph);
 
@@ -168,7 +256,7 @@ public class FeaturePlugin implements Plugin {
    * the whole package.
    */
   private static void checkSymbols(FeatureGraph graph) {
-    graph.nodes().stream()
+    graph.tokens().stream()
         .filter(n -> n.getType().equals(NodeType.IDENTIFIER_TOKEN))
         .filter(n -> !graph.hasAncestor(n, NodeType.AST_ELEMENT, "PACKAGE"))
         .filter(n -> !graph.hasAncestor(n, NodeType.AST_ELEMENT, "LABELED_STATEMENT"))
@@ -183,7 +271,8 @@ public class FeaturePlugin implements Plugin {
   private static void removeIdentifierAstNodes(FeatureGraph graph) {
     for (FeatureNode node : graph.astNodes()) {
       if (node.getContents().equals("IDENTIFIER")) {
-        Set<FeatureNode> sources = graph.predecessors(node, EdgeType.AST_CHILD);
+        Set<FeatureNode> sources =
+            ImmutableSet.copyOf(graph.predecessors(node, EdgeType.AST_CHILD));
         for (EdgeType edgeType : ImmutableList.of(EdgeType.ASSOCIATED_TOKEN, EdgeType.AST_CHILD)) {
           if (removeNode(graph, node, sources, edgeType)) {
             break;
@@ -208,67 +297,78 @@ public class FeaturePlugin implements Plugin {
     return true;
   }
 
-  private static final Comparator<FeatureNode> TOKENS_LAST =
-      Comparator.comparing(
-          n -> {
-            switch (n.getType()) {
-              case TOKEN:
-                return 1;
-              default:
-                return 0;
-            }
-          });
-
   private static final Comparator<FeatureNode> BY_START_POSITION =
-      Comparator.comparing(FeatureNode::getStartPosition);
+      Comparator.comparingInt(FeatureNode::getStartPosition);
 
-  private static final Comparator<FeatureNode> BY_ID = Comparator.comparing(FeatureNode::getId);
+  /** Orders nodes by start position and then puts enclosing nodes before the nodes they enclose. */
+  private static final Comparator<FeatureNode> BY_SPAN =
+      BY_START_POSITION
+          .thenComparing(Comparator.comparingInt(FeatureNode::getEndPosition).reversed())
+          .thenComparingLong(FeatureNode::getId);
 
   private static void linkTokensToAstNodes(FeatureGraph featureGraph) {
-
-    ImmutableSortedSet<FeatureNode> astNodes =
-        ImmutableSortedSet.orderedBy(
-                BY_START_POSITION.thenComparing(TOKENS_LAST).thenComparing(BY_ID))
-            .addAll(featureGraph.astNodes())
-            .addAll(featureGraph.tokens())
-            .build();
+    // Tokens are created after the ast nodes and come straight from the lexer so they are in
+    // position order, do not overlap and have higher ids than any ast node.
+    ImmutableList<FeatureNode> tokens = ImmutableList.copyOf(featureGraph.tokens());
+    ImmutableList<FeatureNode> astElements =
+        featureGraph.astNodes().stream()
+            .filter(n -> n.getType().equals(NodeType.AST_ELEMENT))
+            .sorted(BY_SPAN)
+            .collect(toImmutableList());
 
     // First of all we consider variable trees and associate them with the first token within their
     // span that has a matching name. This is necessary because there are various ways that javac
     // creates a smaller node that swallows the variable identifier.
-    astNodes.stream()
-        .filter(node -> node.getType().equals(NodeType.AST_ELEMENT))
-        .filter(node -> node.getContents().equals("VARIABLE"))
-        .forEach(
-            node -> {
-              JCTree.JCVariableDecl variableTree =
-                  (JCTree.JCVariableDecl) featureGraph.lookupTree(node);
-              Name expectedName = variableTree.getName();
-              Optional<FeatureNode> matchingToken =
-                  astNodes.tailSet(node).stream()
-                      .filter(target -> target.getType().equals(NodeType.IDENTIFIER_TOKEN))
-                      .filter(target -> expectedName.contentEquals(target.getContents()))
-                      .findFirst();
-              matchingToken.ifPresent(
-                  token ->
-                      findMatchingLeaf(node, token, featureGraph)
-                          .ifPresent(
-                              leaf ->
-                                  featureGraph.addEdge(leaf, token, EdgeType.ASSOCIATED_TOKEN)));
-            });
+    ImmutableListMultimap<String, FeatureNode> identifierTokens =
+        tokens.stream()
+            .filter(token -> token.getType().equals(NodeType.IDENTIFIER_TOKEN))
+            .collect(toImmutableListMultimap(FeatureNode::getContents, token -> token));
+    ImmutableList<FeatureNode> variables =
+        astElements.stream()
+            .filter(node -> node.getContents().equals("VARIABLE"))
+            .sorted(BY_START_POSITION.thenComparingLong(FeatureNode::getId))
+            .collect(toImmutableList());
+    for (FeatureNode node : variables) {
+      JCTree.JCVariableDecl variableTree = (JCTree.JCVariableDecl) featureGraph.lookupTree(node);
+      ImmutableList<FeatureNode> candidates =
+          identifierTokens.get(variableTree.getName().toString());
+      int index = firstTokenStartingFrom(candidates, node.getStartPosition());
+      if (index < candidates.size()) {
+        FeatureNode token = candidates.get(index);
+        findMatchingLeaf(node, token, featureGraph)
+            .ifPresent(leaf -> featureGraph.addEdge(leaf, token, EdgeType.ASSOCIATED_TOKEN));
+      }
+    }
 
-    for (FeatureNode token : featureGraph.tokens()) {
+    // Then sweep through the tokens in order associating each one that is still unmatched with the
+    // smallest ast element that encloses it. The stack holds the ast elements that might enclose
+    // the current token with each one enclosing all of those above it.
+    Deque<FeatureNode> open = new ArrayDeque<>();
+    boolean nested = true;
+    int next = 0;
+    for (FeatureNode token : tokens) {
+      while (next < astElements.size()
+          && astElements.get(next).getStartPosition() <= token.getStartPosition()) {
+        FeatureNode element = astElements.get(next++);
+        while (!open.isEmpty() && open.peek().getEndPosition() < element.getEndPosition()) {
+          // Anything popped here must finish before the element starts or else the spans overlap
+          // without nesting and the stack can no longer tell us the smallest enclosing element.
+          nested &= open.pop().getEndPosition() <= element.getStartPosition();
+        }
+        open.push(element);
+      }
+      // Tokens don't overlap so an element which doesn't reach the end of this token won't
+      // enclose any of the later ones either.
+      while (!open.isEmpty() && open.peek().getEndPosition() < token.getEndPosition()) {
+        open.pop();
+      }
       if (!featureGraph.predecessors(token, EdgeType.ASSOCIATED_TOKEN).isEmpty()) {
         continue;
       }
-      Comparator<FeatureNode> nodeSpan =
-          Comparator.comparing(n -> n.getEndPosition() - n.getStartPosition());
-      Comparator<FeatureNode> nodeId = Comparator.comparingLong(FeatureNode::getId).reversed();
       Optional<FeatureNode> smallestEncompassingNode =
-          astNodes.headSet(token).stream()
-              .filter(n -> n.getType().equals(NodeType.AST_ELEMENT))
-              .filter(n -> n.getEndPosition() >= token.getEndPosition())
-              .min(nodeSpan.thenComparing(nodeId));
+          nested
+              ? Optional.ofNullable(open.peek())
+              : findSmallestEncompassingNode(featureGraph, token);
       if (smallestEncompassingNode.isPresent()) {
         Optional<FeatureNode> matchingLeaf =
             findMatchingLeaf(smallestEncompassingNode.get(), token, featureGraph);
@@ -281,6 +381,37 @@ public class FeaturePlugin implements Plugin {
     }
   }
 
+  /** Returns the index of the first token in the list which starts at or after this position. */
+  private static int firstTokenStartingFrom(ImmutableList<FeatureNode> tokens, int position) {
+    int low = 0;
+    int high = tokens.size();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (tokens.get(middle).getStartPosition() < position) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Find the smallest ast element enclosing this token by querying the graph. This is only needed
+   * for files where javac has produced ast elements whose spans overlap without one enclosing the
+   * other.
+   */
+  private static Optional<FeatureNode> findSmallestEncompassingNode(
+      FeatureGraph featureGraph, FeatureNode token) {
+    Comparator<FeatureNode> nodeSpan =
+        Comparator.comparing(n -> n.getEndPosition() - n.getStartPosition());
+    Comparator<FeatureNode> nodeId = Comparator.comparingLong(FeatureNode::getId).reversed();
+    return featureGraph.findEnclosingNodes(token.getStartPosition(), token.getEndPosition())
+        .stream()
+        .filter(n -> n.getType().equals(NodeType.AST_ELEMENT))
+        .min(nodeSpan.thenComparing(nodeId));
+  }
+
   private static Optional<FeatureNode> findMatchingLeaf(
       FeatureNode current, FeatureNode token, FeatureGraph graph) {
     for (FeatureNode child : graph.successors(current, EdgeType.AST_CHILD)) {
@@ -307,28 +438,7 @@ public class FeaturePlugin implements Plugin {
       if (comment.getEndLineNumber() == successor.getStartLineNumber()) {
         continue;
       }
-      FeatureNode match = null;
-      for (FeatureNode astNode : featureGraph.nodes()) {
-        if (astNode.getType().equals(NodeType.FAKE_AST)) {
-          continue;
-        }
-        int distance = astNode.getStartPosition() - comment.getEndPosition();
-        if (distance < 0) {
-          continue;
-        }
-        int size = astNode.getEndPosition() - astNode.getStartPosition();
-        if (match != null) {
-          int matchDistance = match.getStartPosition() - comment.getEndPosition();
-          int matchSize = match.getEndPosition() - match.getStartPosition();
-          if (distance < matchDistance) {
-            match = astNode;
-          } else if (distance == matchDistance && size > matchSize) {
-            match = astNode;
-          }
-        } else {
-          match = astNode;
-        }
-      }
+      FeatureNode match = featureGraph.findNextNode(comment.getEndPosition(), NodeType.FAKE_AST);
       if (match != null) {
         featureGraph.removeEdge(
             FeatureEdge.newBuilder()
@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac;
+
+import com.google.errorprone.util.ASTHelpers;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.NewClassTree;
+import com.sun.source.tree.Tree;
+import com.sun.tools.javac.code.Symbol;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The symbols javac resolved for the trees of one compilation unit.
+ *
+ * <p>Each tree is only looked up once however many passes ask for its symbol. Trees with no symbol
+ * are remembered too. Unlike {@link Symbols} the lookups return null rather than an {@link
+ * java.util.Optional} when there is no symbol.
+ */
+public class TreeSymbols {
+
+  private final Map<Tree, Symbol> symbols = new IdentityHashMap<>();
+
+  /** Return the symbol for this tree or null if none is found. */
+  public Symbol get(Tree node) {
+    Symbol symbol = symbols.get(node);
+    if (symbol == null && !symbols.containsKey(node)) {
+      symbol = ASTHelpers.getSymbol(node);
+      symbols.put(node, symbol);
+    }
+    return symbol;
+  }
+
+  /** Return the method symbol for this method declaration or null if none is found. */
+  public Symbol.MethodSymbol get(MethodTree node) {
+    return (Symbol.MethodSymbol) get((Tree) node);
+  }
+
+  /** Return the method symbol for this method invocation or null if none is found. */
+  public Symbol.MethodSymbol get(MethodInvocationTree node) {
+    return (Symbol.MethodSymbol) get((Tree) node);
+  }
+
+  /** Return the method symbol for this constructor invocation or null if none is found. */
+  public Symbol.MethodSymbol get(NewClassTree node) {
+    return (Symbol.MethodSymbol) get((Tree) node);
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.graph;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureNode.NodeType;
+
+/**
+ * Answers whether a node can be reached from a node with a particular type and contents.
+ *
+ * <p>The first time a (type, contents) label is asked about the index searches forwards from every
+ * node with that label and records everything it reaches, so that each later query is a single bit
+ * lookup. The recorded sets are thrown away whenever an edge is added or removed.
+ */
+final class AncestorIndex {
+
+  private final IntGraph graph;
+  private final Map<String, BitSet> descendantsByLabel = new HashMap<>();
+  private long version = -1;
+
+  AncestorIndex(IntGraph graph) {
+    this.graph = graph;
+  }
+
+  boolean hasAncestor(int node, NodeType ancestorType, String ancestorContents) {
+    if (graph.modificationCount() != version) {
+      descendantsByLabel.clear();
+      version = graph.modificationCount();
+    }
+    return descendantsByLabel
+        .computeIfAbsent(
+            ancestorType + ":" + ancestorContents, k -> descendants(ancestorType, ancestorContents))
+        .get(node);
+  }
+
+  /** Returns the nodes reachable by one or more edges from a node with this label. */
+  private BitSet descendants(NodeType ancestorType, String ancestorContents) {
+    BitSet result = new BitSet(graph.nodeIdBound());
+    int[] stack = new int[graph.nodeCount()];
+    int size = 0;
+    for (int node : graph.nodesOfType(ancestorType)) {
+      if (graph.contents(node).equals(ancestorContents)) {
+        stack[size++] = node;
+      }
+    }
+    while (size > 0) {
+      int node = stack[--size];
+      for (int i = 0; i < graph.outDegree(node); i++) {
+        int successor = graph.edgeDestination(graph.outEdge(node, i));
+        if (!result.get(successor)) {
+          result.set(successor);
+          if (size == stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(16, size * 2));
+          }
+          stack[size++] = successor;
+        }
+      }
+    }
+    return result;
+  }
+}
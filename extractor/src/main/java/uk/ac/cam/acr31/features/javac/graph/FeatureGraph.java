@@ -16,29 +16,33 @@
 
 package uk.ac.cam.acr31.features.javac.graph;
 
-import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static com.google.common.base.Preconditions.checkArgument;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
 import com.google.common.graph.EndpointPair;
-import com.google.common.graph.MutableNetwork;
-import com.google.common.graph.NetworkBuilder;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 import com.sun.source.tree.LineMap;
 import com.sun.source.tree.Tree;
 import com.sun.tools.javac.code.Kinds;
 import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.tree.EndPosTable;
 import com.sun.tools.javac.tree.JCTree;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.function.IntPredicate;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.Types;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureEdge;
@@ -47,34 +51,70 @@ import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureNode;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureNode.NodeType;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.Graph;
 
-/** Class for holding extracted features and edges between them. */
+/**
+ * Class for holding extracted features and edges between them.
+ *
+ * <p>The graph itself is stored in an {@link IntGraph} keyed by node id. {@link FeatureNode}
+ * objects are only built when a caller asks for one and are then reused so that every request for
+ * the same node returns the same instance.
+ */
 public class FeatureGraph {
 
   private final String sourceFileName;
-  private final MutableNetwork<FeatureNode, FeatureEdge> graph;
-  private final BiMap<Tree, FeatureNode> treeToNodeMap;
+  private final IntGraph graph;
+  private final SpanIndex spanIndex;
+  private final AncestorIndex ancestorIndex;
+  private final Statistics statistics = new Statistics();
+  private final Map<Tree, Integer> treeToNodeMap;
   private final EndPosTable endPosTable;
   private final LineMap lineMap;
-  private final BiMap<Symbol, FeatureNode> symbolToNodeMap;
-  private final Map<TypeMirror, FeatureNode> typeToNodeMap;
+  private final Map<Symbol, Integer> symbolToNodeMap;
+  private final SymbolNames symbolNames;
+  private final Map<TypeMirror, Integer> typeToNodeMap;
   /**
    * Many TypeMirrors may map to the same feature node. This maps nodes to an arbitrary one of these
    * TypeMirrors.
    */
-  private final Map<FeatureNode, TypeMirror> nodeToSomeTypeMap;
+  private final Map<Integer, TypeMirror> nodeToSomeTypeMap;
+  /** The TypeMirrors in typeToNodeMap grouped by their TypeKey. */
+  private final Map<String, List<TypeMirror>> typesByKey;
+  /** The TypeMirrors in typeToNodeMap which have no TypeKey. */
+  private final List<TypeMirror> unkeyedTypes;
+
+  private Tree[] nodeToTreeMap = new Tree[64];
+  private FeatureNode[] featureNodes = new FeatureNode[64];
+  /**
+   * One more than the node toIdentifierNode found for each node, or 0 if it hasn't been looked up
+   * since the AST was last changed.
+   */
+  private int[] identifierNodes = new int[64];
+  /** The number of changes to the AST when identifierNodes was last valid. */
+  private long identifierNodesVersion = 0;
 
-  private int nodeIdCounter = 0;
-  private FeatureNode firstToken = null;
-  private FeatureNode astRoot = null;
+  private int firstToken = -1;
+  private int astRoot = -1;
+  /** The nodes of the methods whose dataflow edges were approximated. */
+  private final List<Integer> approximatedDataflow = new ArrayList<>();
 
   /** Create a new graph for the given source file. */
   public FeatureGraph(String sourceFileName, EndPosTable endPosTable, LineMap lineMap) {
+    this(sourceFileName, endPosTable, lineMap, new SymbolNames());
+  }
+
+  /** Create a new graph for the given source file naming symbols with this (shared) cache. */
+  public FeatureGraph(
+      String sourceFileName, EndPosTable endPosTable, LineMap lineMap, SymbolNames symbolNames) {
     this.sourceFileName = sourceFileName;
-    this.graph = NetworkBuilder.directed().allowsSelfLoops(true).allowsParallelEdges(true).build();
-    this.treeToNodeMap = HashBiMap.create();
-    this.symbolToNodeMap = HashBiMap.create();
+    this.graph = new IntGraph();
+    this.spanIndex = new SpanIndex(graph);
+    this.ancestorIndex = new AncestorIndex(graph);
+    this.treeToNodeMap = new HashMap<>();
+    this.symbolToNodeMap = new HashMap<>();
+    this.symbolNames = symbolNames;
     this.typeToNodeMap = new HashMap<>();
     this.nodeToSomeTypeMap = new HashMap<>();
+    this.typesByKey = new HashMap<>();
+    this.unkeyedTypes = new ArrayList<>();
     this.endPosTable = endPosTable;
     this.lineMap = lineMap;
   }
@@ -83,12 +123,18 @@ public class FeatureGraph {
     return sourceFileName;
   }
 
+  /** Returns the counters recording the work done while building this graph. */
+  public Statistics getStatistics() {
+    return statistics;
+  }
+
   public FeatureNode lookupNode(Tree tree) {
-    return treeToNodeMap.get(tree);
+    Integer node = treeToNodeMap.get(tree);
+    return node == null ? null : featureNode(node);
   }
 
   public Tree lookupTree(FeatureNode node) {
-    return treeToNodeMap.inverse().get(node);
+    return nodeToTreeMap[id(node)];
   }
 
   /**
@@ -96,9 +142,13 @@ public class FeatureGraph {
    * replacement.
    */
   public void replaceNodeInNodeMap(FeatureNode original, FeatureNode replacement) {
-    Tree tree = treeToNodeMap.inverse().get(original);
+    int originalId = id(original);
+    int replacementId = id(replacement);
+    Tree tree = nodeToTreeMap[originalId];
     if (tree != null) {
-      treeToNodeMap.put(tree, replacement);
+      treeToNodeMap.put(tree, replacementId);
+      nodeToTreeMap[originalId] = null;
+      nodeToTreeMap[replacementId] = tree;
     }
   }
 
@@ -108,133 +158,141 @@ public class FeatureGraph {
     // the lines of String a = "a"; String b = "b";  some of the extra nodes will be clones, some
     // (leaves) will just be the same node reused.  In this case we will try to create a node twice
     // when we visit the reused node for the second time.
-    if (treeToNodeMap.containsKey(tree)) {
-      return treeToNodeMap.get(tree);
+    Integer existing = treeToNodeMap.get(tree);
+    if (existing != null) {
+      return featureNode(existing);
     } else {
       int startPosition = ((JCTree) tree).getStartPosition();
       int endPosition = ((JCTree) tree).getEndPosition(endPosTable);
-      FeatureNode result = createFeatureNode(nodeType, contents, startPosition, endPosition);
+      int result = createNode(nodeType, contents, startPosition, endPosition);
       treeToNodeMap.put(tree, result);
-      return result;
+      nodeToTreeMap[result] = tree;
+      return featureNode(result);
     }
   }
 
   /** Factory method to create a feature node for this span of the source file. */
   public FeatureNode createFeatureNode(
       NodeType nodeType, String contents, int startPosition, int endPosition) {
-    int startLine = (int) lineMap.getLineNumber(startPosition);
-    int endLine = (int) lineMap.getLineNumber(endPosition);
-    return FeatureNode.newBuilder()
-        .setId(nodeIdCounter++)
-        .setType(nodeType)
-        .setContents(contents)
-        .setStartPosition(startPosition)
-        .setEndPosition(endPosition)
-        .setStartLineNumber(startLine)
-        .setEndLineNumber(endLine)
-        .build();
+    return featureNode(createNode(nodeType, contents, startPosition, endPosition));
   }
 
   /** Factory method to create a feature node for a symbol. */
   public FeatureNode createFeatureNode(NodeType nodeType, Symbol symbol) {
-    if (symbolToNodeMap.containsKey(symbol)) {
-      return symbolToNodeMap.get(symbol);
+    Integer existing = symbolToNodeMap.get(symbol);
+    if (existing != null) {
+      return featureNode(existing);
     } else {
-      FeatureNode result = createFeatureNode(nodeType, getName(symbol), -1, -1);
+      int result = createNode(nodeType, symbolNames.getName(symbol), -1, -1);
       if (symbol.kind == Kinds.Kind.MTH) {
-        FeatureNode signature =
-            createFeatureNode(NodeType.METHOD_SIGNATURE, symbol.toString(), -1, -1);
-        addEdge(result, signature, EdgeType.METHOD_SIGNATURE);
+        int signature =
+            createNode(NodeType.METHOD_SIGNATURE, symbolNames.getSignature(symbol), -1, -1);
+        graph.addEdge(result, signature, EdgeType.METHOD_SIGNATURE);
       }
       symbolToNodeMap.put(symbol, result);
 
-      return result;
+      return featureNode(result);
     }
   }
 
-  /**
-   * The name of a symbol has to be globally unique. It also has to be derivable from different
-   * compilation units that reference the symbol.
-   *
-   * <p>The idea here is that most of the time you can get a unique name for a symbol by appending
-   * the symbol name to the unique name for its owner. This doesn't work in situations of nested
-   * block scope. e.g {@code void f() { { int x; } { int x;} } } will compile but the two x's have
-   * the same owner (f()) and so won't get unique names.
-   *
-   * <p>This doesn't just apply to variables since java now has method-local classes e.g.
-   *
-   * <pre>
-   *   void f() {
-   *     {
-   *       class A {}
-   *     }
-   *     {
-   *       class A {}
-   *     }
-   *   }
-   * </pre>
-   *
-   * <p>For classes (or new types in general a new name is generated anyway by the compiler e.g.
-   * Test$1A and Test$2A so we are good here.
-   *
-   * <p>This can also happen within a static initialiser (but that's also a method). On the plus
-   * side I think it is the case that its not possible to reference a symbol with an ambiguous owner
-   * from outside the compilation unit (this follows from the classfile format and definition of
-   * binary name in the JLS).
-   */
-  private static String getName(Symbol symbol) {
-    if (symbol.owner != null && symbol.owner.kind == Kinds.Kind.MTH) {
-      if (symbol.kind == Kinds.Kind.VAR) {
-        Symbol.VarSymbol varSymbol = (Symbol.VarSymbol) symbol;
-        return getName(varSymbol.owner) + "." + varSymbol.name + "@" + varSymbol.pos;
-      }
-    }
-    switch (symbol.kind) {
-      case TYP:
-      case PCK:
-        return symbol.flatName().toString();
-      default:
-        return getName(symbol.owner) + "." + symbol.toString();
+  private int createNode(NodeType nodeType, String contents, int startPosition, int endPosition) {
+    int startLine = (int) lineMap.getLineNumber(startPosition);
+    int endLine = (int) lineMap.getLineNumber(endPosition);
+    int node = graph.addNode(nodeType, contents, startPosition, endPosition, startLine, endLine);
+    if (node == featureNodes.length) {
+      featureNodes = Arrays.copyOf(featureNodes, node * 2);
+      identifierNodes = Arrays.copyOf(identifierNodes, node * 2);
+      nodeToTreeMap = Arrays.copyOf(nodeToTreeMap, node * 2);
     }
+    return node;
   }
 
   /**
    * Returns an arbitrary member of the equivalence class of type mirrors associated with the node.
    */
   public TypeMirror lookupTypeMirror(FeatureNode node) {
-    return nodeToSomeTypeMap.get(node);
+    return nodeToSomeTypeMap.get(id(node));
   }
 
-  /** Factory method to create a feature node for this typrmirror. */
+  /**
+   * Factory method to create a feature node for this typrmirror.
+   *
+   * <p>Types are only compared with {@link Types#isSameType} against the known types which share
+   * their {@link TypeKey}, along with the known types which have no key.
+   */
   public FeatureNode createFeatureNodeForType(Types types, NodeType nodeType, TypeMirror type) {
-    if (typeToNodeMap.containsKey(type)) {
-      return typeToNodeMap.get(type);
+    Integer existing = typeToNodeMap.get(type);
+    if (existing != null) {
+      statistics.increment("types.hits");
+      return featureNode(existing);
     }
     // First check we haven't already got a feature node for an equal type.
-    for (TypeMirror existingType : typeToNodeMap.keySet()) {
-      if (types.isSameType(type, existingType)) {
-        FeatureNode result = typeToNodeMap.get(existingType);
-        typeToNodeMap.put(type, result);
-        return result;
-      }
+    String key = TypeKey.of(type);
+    Integer result =
+        key == null
+            ? findSameType(types, type, typeToNodeMap.keySet())
+            : findSameType(types, type, typesByKey.getOrDefault(key, List.of()));
+    if (result == null && key != null) {
+      result = findSameType(types, type, unkeyedTypes);
+    }
+    if (result != null) {
+      statistics.increment("types.hits");
+    } else {
+      // If we don't, then create a new feature node.
+      statistics.increment("types.misses");
+      result = createNode(nodeType, type.toString(), -1, -1);
+      nodeToSomeTypeMap.put(result, type);
     }
-    // If we don't, then create a new feature node.
-    FeatureNode result = createFeatureNode(nodeType, type.toString(), -1, -1);
     typeToNodeMap.put(type, result);
-    nodeToSomeTypeMap.put(result, type);
-    return result;
+    if (key == null) {
+      unkeyedTypes.add(type);
+    } else {
+      typesByKey.computeIfAbsent(key, k -> new ArrayList<>()).add(type);
+    }
+    return featureNode(result);
+  }
+
+  private Integer findSameType(Types types, TypeMirror type, Collection<TypeMirror> candidates) {
+    for (TypeMirror candidate : candidates) {
+      statistics.increment("types.isSameTypeCalls");
+      if (types.isSameType(type, candidate)) {
+        return typeToNodeMap.get(candidate);
+      }
+    }
+    return null;
   }
 
+  /** Returns an unmodifiable view of the nodes in the graph, in the order they were created. */
   public Set<FeatureNode> nodes() {
-    // returns an unmodifiable set
-    return graph.nodes();
+    return new AbstractSet<>() {
+      @Override
+      public Iterator<FeatureNode> iterator() {
+        return new IdIterator<>(graph.nodeIdBound(), graph::containsNode) {
+          @Override
+          FeatureNode get(int node) {
+            return featureNode(node);
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return graph.nodeCount();
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        return o instanceof FeatureNode && containsNode((FeatureNode) o);
+      }
+    };
   }
 
   private Set<FeatureNode> nodes(NodeType... nodeTypes) {
-    ImmutableList<NodeType> nodes = ImmutableList.copyOf(nodeTypes);
-    return graph.nodes().stream()
-        .filter(n -> nodes.contains(n.getType()))
-        .collect(toImmutableSet());
+    ImmutableSet.Builder<FeatureNode> result = ImmutableSet.builder();
+    for (int node : graph.nodesOfType(nodeTypes)) {
+      result.add(featureNode(node));
+    }
+    return result.build();
   }
 
   public FeatureNode root() {
@@ -261,182 +319,266 @@ public class FeatureGraph {
     return nodes(NodeType.TYPE);
   }
 
+  /** Returns an unmodifiable view of the edges in the graph, in the order they were added. */
   public Set<FeatureEdge> edges() {
-    // returns an unmodifiable set
-    return graph.edges();
+    return new AbstractSet<>() {
+      @Override
+      public Iterator<FeatureEdge> iterator() {
+        return new IdIterator<>(graph.edgeIdBound(), graph::containsEdge) {
+          @Override
+          FeatureEdge get(int edge) {
+            return featureEdge(edge);
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return graph.edgeCount();
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        return o instanceof FeatureEdge && findEdge((FeatureEdge) o) != -1;
+      }
+    };
   }
 
   /** Returns an immutable set of edges with this edge type. */
   public Set<FeatureEdge> edges(EdgeType edgeType) {
-    return graph.edges().stream()
-        .filter(e -> e.getType().equals(edgeType))
-        .collect(toImmutableSet());
+    ImmutableSet.Builder<FeatureEdge> result = ImmutableSet.builder();
+    for (int edge : graph.edgesOfType(edgeType)) {
+      result.add(featureEdge(edge));
+    }
+    return result.build();
   }
 
+  /** Returns an immutable set of the edges incident to this node. */
   public Set<FeatureEdge> edges(FeatureNode node) {
-    return graph.incidentEdges(node);
+    int id = checkedId(node);
+    ImmutableSet.Builder<FeatureEdge> result = ImmutableSet.builder();
+    for (int i = 0; i < graph.outDegree(id); i++) {
+      result.add(featureEdge(graph.outEdge(id, i)));
+    }
+    for (int i = 0; i < graph.inDegree(id); i++) {
+      result.add(featureEdge(graph.inEdge(id, i)));
+    }
+    return result.build();
   }
 
+  /** Returns an immutable set of the edges from source to destination. */
   public Set<FeatureEdge> edges(FeatureNode source, FeatureNode destination) {
-    // returns an unmodifiable set
-    return graph.edgesConnecting(source, destination);
+    int sourceId = checkedId(source);
+    int destinationId = checkedId(destination);
+    ImmutableSet.Builder<FeatureEdge> result = ImmutableSet.builder();
+    for (int i = 0; i < graph.outDegree(sourceId); i++) {
+      int edge = graph.outEdge(sourceId, i);
+      if (graph.edgeDestination(edge) == destinationId) {
+        result.add(featureEdge(edge));
+      }
+    }
+    return result.build();
   }
 
+  /** Returns the source and destination nodes of this edge. */
   public EndpointPair<FeatureNode> incidentNodes(FeatureEdge edge) {
-    return graph.incidentNodes(edge);
+    int id = findEdge(edge);
+    checkArgument(id != -1, "Edge %s is not an element of this graph.", edge);
+    return EndpointPair.ordered(
+        featureNode(graph.edgeSource(id)), featureNode(graph.edgeDestination(id)));
   }
 
   public void removeNode(FeatureNode node) {
-    graph.removeNode(node);
+    graph.removeNode(id(node));
   }
 
+  /** Returns an immutable set of the nodes reachable from this node by a single edge. */
   public Set<FeatureNode> successors(FeatureNode node) {
-    // returns an unmodifiable set
-    return graph.successors(node);
+    int id = checkedId(node);
+    ImmutableSet.Builder<FeatureNode> result = ImmutableSet.builder();
+    for (int i = 0; i < graph.outDegree(id); i++) {
+      result.add(featureNode(graph.edgeDestination(graph.outEdge(id, i))));
+    }
+    return result.build();
   }
 
   /**
-   * Returns an immutable set of nodes which are reachable from the input node with any of the given
-   * edge types.
+   * Returns the nodes which are reachable from the input node with any of the given edge types.
+   *
+   * <p>For a single edge type the result is a view of the adjacency list for that type and so
+   * reflects later changes to the graph; copy it before modifying the edges it was read from.
    */
   public Set<FeatureNode> successors(FeatureNode node, EdgeType... edgeTypes) {
-    ImmutableList<EdgeType> edgeTypeList = ImmutableList.copyOf(edgeTypes);
-    return graph.successors(node).stream()
-        .filter(
-            n ->
-                graph.edgesConnecting(node, n).stream()
-                    .anyMatch(e -> edgeTypeList.contains(e.getType())))
-        .collect(toImmutableSet());
+    int id = checkedId(node);
+    if (edgeTypes.length == 1) {
+      return new NeighbourSet(id, edgeTypes[0], true);
+    }
+    ImmutableSet.Builder<FeatureNode> result = ImmutableSet.builder();
+    for (int i = 0; i < graph.outDegree(id); i++) {
+      int edge = graph.outEdge(id, i);
+      if (isOneOf(graph.edgeType(edge), edgeTypes)) {
+        result.add(featureNode(graph.edgeDestination(edge)));
+      }
+    }
+    return result.build();
   }
 
-  /** Return true if this node has an ancestor of the given type and contents. */
+  /**
+   * Return true if this node has an ancestor of the given type and contents. An ancestor is any
+   * node from which this one can be reached along one or more edges of any type.
+   */
   public boolean hasAncestor(FeatureNode node, NodeType ancestorType, String ancestorContents) {
-    Deque<FeatureNode> queue = new LinkedList<>(predecessors(node));
-    Set<FeatureNode> visited = new HashSet<>();
-    while (!queue.isEmpty()) {
-      FeatureNode next = queue.pop();
-      if (visited.contains(next)) {
-        continue;
-      }
-      if (next.getType() == ancestorType && next.getContents().equals(ancestorContents)) {
-        return true;
-      }
-      visited.add(next);
-      queue.addAll(graph.predecessors(next));
-    }
-    return false;
+    return ancestorIndex.hasAncestor(checkedId(node), ancestorType, ancestorContents);
   }
 
+  /** Returns an immutable set of the nodes from which this node is reachable by a single edge. */
   public Set<FeatureNode> predecessors(FeatureNode node) {
-    return graph.predecessors(node);
+    int id = checkedId(node);
+    ImmutableSet.Builder<FeatureNode> result = ImmutableSet.builder();
+    for (int i = 0; i < graph.inDegree(id); i++) {
+      result.add(featureNode(graph.edgeSource(graph.inEdge(id, i))));
+    }
+    return result.build();
   }
 
   /**
-   * Return an immutable set of nodes from which one can reach the input node by any of the given
-   * edge types.
+   * Return the nodes from which one can reach the input node by any of the given edge types.
+   *
+   * <p>For a single edge type the result is a view in the same way as {@link
+   * #successors(FeatureNode, EdgeType...)}.
    */
   public Set<FeatureNode> predecessors(FeatureNode node, EdgeType... edgeTypes) {
-    ImmutableList<EdgeType> edgeTypeList = ImmutableList.copyOf(edgeTypes);
-    return graph.predecessors(node).stream()
-        .filter(
-            n ->
-                graph.edgesConnecting(n, node).stream()
-                    .anyMatch(e -> edgeTypeList.contains(e.getType())))
-        .collect(toImmutableSet());
+    int id = checkedId(node);
+    if (edgeTypes.length == 1) {
+      return new NeighbourSet(id, edgeTypes[0], false);
+    }
+    ImmutableSet.Builder<FeatureNode> result = ImmutableSet.builder();
+    for (int i = 0; i < graph.inDegree(id); i++) {
+      int edge = graph.inEdge(id, i);
+      if (isOneOf(graph.edgeType(edge), edgeTypes)) {
+        result.add(featureNode(graph.edgeSource(edge)));
+      }
+    }
+    return result.build();
   }
 
   /** Remove all ast nodes that have no successors. */
   public void pruneAstNodes() {
     // Prune all leaf nodes that are associated with tokens
-    nodes(NodeType.AST_LEAF)
-        .forEach(
-            n -> {
-              Set<FeatureNode> successors = successors(n, EdgeType.ASSOCIATED_TOKEN);
-              FeatureNode predecessor =
-                  Iterables.getOnlyElement(predecessors(n, EdgeType.AST_CHILD));
-              for (FeatureNode successor : successors) {
-                addEdge(predecessor, successor, EdgeType.ASSOCIATED_TOKEN);
-              }
-              graph.removeNode(n);
-              treeToNodeMap.inverse().remove(n);
-            });
+    for (int n : graph.nodesOfType(NodeType.AST_LEAF)) {
+      int predecessor = onlyPredecessor(n, EdgeType.AST_CHILD);
+      for (int i = 0; i < graph.outDegree(n, EdgeType.ASSOCIATED_TOKEN); i++) {
+        int edge = graph.outEdge(n, EdgeType.ASSOCIATED_TOKEN, i);
+        graph.addEdge(predecessor, graph.edgeDestination(edge), EdgeType.ASSOCIATED_TOKEN);
+      }
+      removeNodeAndTree(n);
+      statistics.increment("prune.astLeaves");
+    }
 
     // Prune all fake nodes that are the same as their child
-    nodes(NodeType.FAKE_AST)
-        .forEach(
-            n -> {
-              Set<FeatureNode> successors = successors(n, EdgeType.AST_CHILD);
-              if (successors.size() == 1) {
-                FeatureNode successor = Iterables.getOnlyElement(successors);
-                if (successor.getContents().equals(n.getContents())) {
-                  for (FeatureNode predecessor : predecessors(n)) {
-                    for (FeatureEdge edge : ImmutableSet.copyOf(edges(predecessor, n))) {
-                      addEdge(predecessor, successor, edge.getType());
-                    }
-                  }
-                  graph.removeNode(n);
-                  treeToNodeMap.inverse().remove(n);
-                }
-              }
-            });
-
-    //noinspection StatementWithEmptyBody
-    while (pruneLeavesOnce()) {
-      // do nothing
-    }
-  }
-
-  /** Find an appropriate identifier node descending from this node. */
+    for (int n : graph.nodesOfType(NodeType.FAKE_AST)) {
+      int successor = onlySuccessor(n, EdgeType.AST_CHILD);
+      if (successor != -1 && graph.contents(successor).equals(graph.contents(n))) {
+        for (int i = 0; i < graph.inDegree(n); i++) {
+          int edge = graph.inEdge(n, i);
+          graph.addEdge(graph.edgeSource(edge), successor, graph.edgeType(edge));
+        }
+        removeNodeAndTree(n);
+        statistics.increment("prune.fakeAst");
+      }
+    }
+
+    // Prune ast nodes with no successors. Removing a node can only leave its own predecessors
+    // without successors so those are the only nodes that need to be looked at again.
+    Deque<Integer> worklist = new ArrayDeque<>();
+    for (int n : nodeIds(n -> graph.outDegree(n) == 0, NodeType.AST_ELEMENT, NodeType.FAKE_AST)) {
+      worklist.push(n);
+    }
+    while (!worklist.isEmpty()) {
+      int n = worklist.pop();
+      statistics.increment("prune.worklistVisits");
+      if (!graph.containsNode(n) || graph.outDegree(n) != 0) {
+        continue;
+      }
+      for (int i = 0; i < graph.inDegree(n); i++) {
+        int predecessor = graph.edgeSource(graph.inEdge(n, i));
+        NodeType predecessorType = graph.nodeType(predecessor);
+        if (predecessorType == NodeType.AST_ELEMENT || predecessorType == NodeType.FAKE_AST) {
+          worklist.push(predecessor);
+        }
+      }
+      removeNodeAndTree(n);
+      statistics.increment("prune.emptyAst");
+    }
+  }
+
+  /**
+   * Find an appropriate identifier node descending from this node.
+   *
+   * <p>Results are remembered until an AST_CHILD or ASSOCIATED_TOKEN edge is next added or removed.
+   */
   public FeatureNode toIdentifierNode(FeatureNode node) {
     if (node.getType().equals(NodeType.IDENTIFIER_TOKEN)) {
       return node;
     }
     if (node.getType().equals(NodeType.AST_ELEMENT)) {
-      // Breadth first search to the first node declaring a named identifier node
-      Deque<FeatureNode> toCheck = new LinkedList<>();
-      toCheck.add(node);
-      while (!toCheck.isEmpty()) {
-        FeatureNode next = toCheck.pop();
-        Set<FeatureNode> successors =
-            successors(next, EdgeType.AST_CHILD, EdgeType.ASSOCIATED_TOKEN);
-        Optional<FeatureNode> name =
-            successors.stream()
-                .filter(n -> n.getType().equals(NodeType.IDENTIFIER_TOKEN))
-                .findAny();
-        if (name.isPresent()) {
-          return name.get();
-        }
-        toCheck.addAll(successors);
+      long version =
+          graph.modificationCount(EdgeType.AST_CHILD)
+              + graph.modificationCount(EdgeType.ASSOCIATED_TOKEN);
+      if (version != identifierNodesVersion) {
+        Arrays.fill(identifierNodes, 0);
+        identifierNodesVersion = version;
+      }
+      int id = id(node);
+      int cached = identifierNodes[id] - 1;
+      if (cached != -1 && graph.containsNode(cached)) {
+        statistics.increment("identifierNodes.hits");
+        return featureNode(cached);
       }
-      Optional<FeatureNode> token =
-          tokens().stream().filter(t -> t.getStartPosition() == node.getStartPosition()).findAny();
-      if (token.isPresent()) {
-        return token.get();
+      statistics.increment("identifierNodes.misses");
+      int result = findIdentifierNode(id);
+      if (result != -1) {
+        identifierNodes[id] = result + 1;
+        return featureNode(result);
       }
     }
     throw new AssertionError("Need to support " + node.getContents());
   }
 
+  private int findIdentifierNode(int node) {
+    // Breadth first search to the first node declaring a named identifier node
+    Deque<Integer> toCheck = new ArrayDeque<>();
+    toCheck.add(node);
+    while (!toCheck.isEmpty()) {
+      int next = toCheck.pop();
+      for (int i = 0; i < graph.outDegree(next); i++) {
+        int edge = graph.outEdge(next, i);
+        EdgeType edgeType = graph.edgeType(edge);
+        if (edgeType == EdgeType.AST_CHILD || edgeType == EdgeType.ASSOCIATED_TOKEN) {
+          int successor = graph.edgeDestination(edge);
+          if (graph.nodeType(successor) == NodeType.IDENTIFIER_TOKEN) {
+            return successor;
+          }
+          toCheck.add(successor);
+        }
+      }
+    }
+    return spanIndex.lowestStartingAt(graph.startPosition(node), this::isToken);
+  }
+
   /** Add an edge between feature nodes for these two compiler trees. */
   public void addEdge(Tree source, Tree dest, EdgeType type) {
-    FeatureNode sourceNode = lookupNode(source);
-    FeatureNode destNode = lookupNode(dest);
+    Integer sourceNode = treeToNodeMap.get(source);
+    Integer destNode = treeToNodeMap.get(dest);
     if (sourceNode == null || destNode == null) {
       return;
     }
-    addEdge(sourceNode, destNode, type);
+    graph.addEdge(sourceNode, destNode, type);
   }
 
   /** Add an edge between these two feature nodes. */
   public void addEdge(FeatureNode source, FeatureNode dest, EdgeType type) {
-    graph.addEdge(
-        source,
-        dest,
-        FeatureEdge.newBuilder()
-            .setSourceId(source.getId())
-            .setDestinationId(dest.getId())
-            .setType(type)
-            .build());
+    graph.addEdge(id(source), id(dest), type);
   }
 
   /** Add an edge between the best identifier nodes for these two compiler trees. */
@@ -451,62 +593,369 @@ public class FeatureGraph {
   }
 
   public void removeEdge(FeatureEdge edge) {
-    graph.removeEdge(edge);
+    graph.removeEdge(findEdge(edge));
   }
 
-  Graph toProtobuf() {
-    return Graph.newBuilder()
-        .setSourceFile(sourceFileName)
-        .addAllNode(nodes())
-        .addAllEdge(edges())
-        .setFirstToken(firstToken)
-        .setAstRoot(astRoot)
-        .build();
+  /**
+   * Write this graph to the output as a serialized {@link Graph} message.
+   *
+   * <p>The message is encoded field by field straight from the internal representation, so neither
+   * the {@link Graph} message nor a {@link FeatureNode} for every node is ever built.
+   */
+  void writeProtobuf(OutputStream output) throws IOException {
+    CodedOutputStream out = CodedOutputStream.newInstance(output);
+    for (int node = 0; node < graph.nodeIdBound(); node++) {
+      if (graph.containsNode(node)) {
+        writeNode(out, Graph.NODE_FIELD_NUMBER, node);
+      }
+    }
+    for (int edge = 0; edge < graph.edgeIdBound(); edge++) {
+      if (graph.containsEdge(edge)) {
+        writeEdge(out, edge);
+      }
+    }
+    out.writeString(Graph.SOURCEFILE_FIELD_NUMBER, sourceFileName);
+    if (firstToken != -1) {
+      writeNode(out, Graph.FIRST_TOKEN_FIELD_NUMBER, firstToken);
+    }
+    if (astRoot != -1) {
+      writeNode(out, Graph.AST_ROOT_FIELD_NUMBER, astRoot);
+    }
+    for (int node : approximatedDataflow) {
+      if (graph.containsNode(node)) {
+        writeNode(out, Graph.APPROXIMATED_DATAFLOW_FIELD_NUMBER, node);
+      }
+    }
+    out.flush();
+  }
+
+  private void writeNode(CodedOutputStream out, int fieldNumber, int node) throws IOException {
+    long id = node;
+    int type = graph.nodeType(node).getNumber();
+    String contents = graph.contents(node);
+    int startPosition = graph.startPosition(node);
+    int endPosition = graph.endPosition(node);
+    int startLine = graph.startLine(node);
+    int endLine = graph.endLine(node);
+    int size =
+        CodedOutputStream.computeInt64Size(FeatureNode.ID_FIELD_NUMBER, id)
+            + CodedOutputStream.computeEnumSize(FeatureNode.TYPE_FIELD_NUMBER, type)
+            + CodedOutputStream.computeStringSize(FeatureNode.CONTENTS_FIELD_NUMBER, contents)
+            + CodedOutputStream.computeInt32Size(
+                FeatureNode.STARTPOSITION_FIELD_NUMBER, startPosition)
+            + CodedOutputStream.computeInt32Size(FeatureNode.ENDPOSITION_FIELD_NUMBER, endPosition)
+            + CodedOutputStream.computeInt32Size(
+                FeatureNode.STARTLINENUMBER_FIELD_NUMBER, startLine)
+            + CodedOutputStream.computeInt32Size(FeatureNode.ENDLINENUMBER_FIELD_NUMBER, endLine);
+    out.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    out.writeUInt32NoTag(size);
+    out.writeInt64(FeatureNode.ID_FIELD_NUMBER, id);
+    out.writeEnum(FeatureNode.TYPE_FIELD_NUMBER, type);
+    out.writeString(FeatureNode.CONTENTS_FIELD_NUMBER, contents);
+    out.writeInt32(FeatureNode.STARTPOSITION_FIELD_NUMBER, startPosition);
+    out.writeInt32(FeatureNode.ENDPOSITION_FIELD_NUMBER, endPosition);
+    out.writeInt32(FeatureNode.STARTLINENUMBER_FIELD_NUMBER, startLine);
+    out.writeInt32(FeatureNode.ENDLINENUMBER_FIELD_NUMBER, endLine);
+  }
+
+  private void writeEdge(CodedOutputStream out, int edge) throws IOException {
+    long source = graph.edgeSource(edge);
+    long destination = graph.edgeDestination(edge);
+    int type = graph.edgeType(edge).getNumber();
+    int size =
+        CodedOutputStream.computeInt64Size(FeatureEdge.SOURCEID_FIELD_NUMBER, source)
+            + CodedOutputStream.computeInt64Size(
+                FeatureEdge.DESTINATIONID_FIELD_NUMBER, destination)
+            + CodedOutputStream.computeEnumSize(FeatureEdge.TYPE_FIELD_NUMBER, type);
+    out.writeTag(Graph.EDGE_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    out.writeUInt32NoTag(size);
+    out.writeInt64(FeatureEdge.SOURCEID_FIELD_NUMBER, source);
+    out.writeInt64(FeatureEdge.DESTINATIONID_FIELD_NUMBER, destination);
+    out.writeEnum(FeatureEdge.TYPE_FIELD_NUMBER, type);
   }
 
   /** Find the node matching the given source span. */
   public Set<FeatureNode> findNode(int start, int end) {
-    return nodes().stream()
-        .filter(node -> node.getStartPosition() == start)
-        .filter(node -> node.getEndPosition() == end)
-        .collect(toImmutableSet());
+    ImmutableSet.Builder<FeatureNode> result = ImmutableSet.builder();
+    if (start >= 0) {
+      spanIndex.forEachWithSpan(start, end, node -> result.add(featureNode(node)));
+      return result.build();
+    }
+    // Nodes without a position (symbols, types etc.) are not in the span index.
+    for (int node = 0; node < graph.nodeIdBound(); node++) {
+      if (graph.containsNode(node)
+          && graph.startPosition(node) == start
+          && graph.endPosition(node) == end) {
+        result.add(featureNode(node));
+      }
+    }
+    return result.build();
+  }
+
+  /** Returns an immutable set of the nodes whose source span includes all of the given span. */
+  public Set<FeatureNode> findEnclosingNodes(int start, int end) {
+    ImmutableSet.Builder<FeatureNode> result = ImmutableSet.builder();
+    spanIndex.forEachEnclosing(start, end, node -> result.add(featureNode(node)));
+    return result.build();
+  }
+
+  /**
+   * Find the node that starts nearest to the given position without starting before it, ignoring
+   * nodes of the excluded types. If several nodes start at the same place then the largest is
+   * chosen. Returns null if there is no such node.
+   */
+  public FeatureNode findNextNode(int position, NodeType... excludedTypes) {
+    int node =
+        spanIndex.firstStartingFrom(position, n -> !isOneOf(graph.nodeType(n), excludedTypes));
+    return node == -1 ? null : featureNode(node);
   }
 
   public void setFirstToken(FeatureNode firstToken) {
-    this.firstToken = firstToken;
+    this.firstToken = id(firstToken);
   }
 
   public FeatureNode getFirstToken() {
-    return firstToken;
+    return firstToken == -1 ? null : featureNode(firstToken);
   }
 
   public void setAstRoot(FeatureNode astRoot) {
-    this.astRoot = astRoot;
+    this.astRoot = id(astRoot);
   }
 
   public FeatureNode getAstRoot() {
-    return astRoot;
-  }
-
-  private boolean pruneLeavesOnce() {
-    ImmutableSet<FeatureNode> toRemove =
-        graph.nodes().stream()
-            .filter(
-                n ->
-                    n.getType().equals(NodeType.AST_ELEMENT)
-                        || n.getType().equals(NodeType.FAKE_AST))
-            .filter(n -> graph.successors(n).isEmpty())
-            .collect(toImmutableSet());
-    toRemove.stream()
-        .filter(n -> n.getType().equals(NodeType.AST_LEAF))
-        .findAny()
-        .ifPresent(
-            n -> {
-              throw new AssertionError("AST Leaf not matched to token: " + n);
-            });
-
-    toRemove.forEach(graph::removeNode);
-    toRemove.forEach(n -> treeToNodeMap.inverse().remove(n));
-    return !toRemove.isEmpty();
+    return astRoot == -1 ? null : featureNode(astRoot);
+  }
+
+  /** Record that the dataflow edges within this method approximate the analysis. */
+  public void addApproximatedDataflow(Tree methodTree) {
+    Integer node = treeToNodeMap.get(methodTree);
+    if (node != null) {
+      approximatedDataflow.add(node);
+      statistics.increment("dataflow.approximatedMethods");
+    }
+  }
+
+  /** Returns the methods whose dataflow edges approximate the analysis. */
+  public List<FeatureNode> getApproximatedDataflow() {
+    List<FeatureNode> result = new ArrayList<>();
+    for (int node : approximatedDataflow) {
+      if (graph.containsNode(node)) {
+        result.add(featureNode(node));
+      }
+    }
+    return result;
+  }
+
+  private void removeNodeAndTree(int node) {
+    graph.removeNode(node);
+    Tree tree = nodeToTreeMap[node];
+    if (tree != null) {
+      treeToNodeMap.remove(tree);
+      nodeToTreeMap[node] = null;
+    }
+  }
+
+  /** Returns the only predecessor of this node by the given edge type, or throws. */
+  private int onlyPredecessor(int node, EdgeType edgeType) {
+    int degree = graph.inDegree(node, edgeType);
+    if (degree == 0) {
+      throw new NoSuchElementException();
+    }
+    checkArgument(degree == 1, "Expected one %s predecessor of %s", edgeType, node);
+    return graph.edgeSource(graph.inEdge(node, edgeType, 0));
+  }
+
+  /** Returns the only successor of this node by the given edge type, or -1 if there isn't one. */
+  private int onlySuccessor(int node, EdgeType edgeType) {
+    if (graph.outDegree(node, edgeType) != 1) {
+      return -1;
+    }
+    return graph.edgeDestination(graph.outEdge(node, edgeType, 0));
+  }
+
+  /**
+   * Returns the ids of the nodes in the graph with one of these types which match the predicate.
+   */
+  private int[] nodeIds(IntPredicate predicate, NodeType... nodeTypes) {
+    int[] result = graph.nodesOfType(nodeTypes);
+    int size = 0;
+    for (int node : result) {
+      if (predicate.test(node)) {
+        result[size++] = node;
+      }
+    }
+    return Arrays.copyOf(result, size);
+  }
+
+  private boolean containsNode(FeatureNode node) {
+    long id = node.getId();
+    return id >= 0
+        && id < graph.nodeIdBound()
+        && graph.containsNode((int) id)
+        && featureNode((int) id).equals(node);
+  }
+
+  private int findEdge(FeatureEdge edge) {
+    long source = edge.getSourceId();
+    long destination = edge.getDestinationId();
+    if (source < 0 || source >= graph.nodeIdBound()) {
+      return -1;
+    }
+    if (destination < 0 || destination >= graph.nodeIdBound()) {
+      return -1;
+    }
+    return graph.findEdge((int) source, (int) destination, edge.getType());
+  }
+
+  private FeatureNode featureNode(int node) {
+    FeatureNode result = featureNodes[node];
+    if (result == null) {
+      result =
+          FeatureNode.newBuilder()
+              .setId(node)
+              .setType(graph.nodeType(node))
+              .setContents(graph.contents(node))
+              .setStartPosition(graph.startPosition(node))
+              .setEndPosition(graph.endPosition(node))
+              .setStartLineNumber(graph.startLine(node))
+              .setEndLineNumber(graph.endLine(node))
+              .build();
+      featureNodes[node] = result;
+    }
+    return result;
+  }
+
+  private FeatureEdge featureEdge(int edge) {
+    return FeatureEdge.newBuilder()
+        .setSourceId(graph.edgeSource(edge))
+        .setDestinationId(graph.edgeDestination(edge))
+        .setType(graph.edgeType(edge))
+        .build();
+  }
+
+  private int id(FeatureNode node) {
+    long id = node.getId();
+    checkArgument(id >= 0 && id < graph.nodeIdBound(), "Node %s is not from this graph.", node);
+    return (int) id;
+  }
+
+  /** Returns the id of this node, checking that it is currently an element of the graph. */
+  private int checkedId(FeatureNode node) {
+    int id = id(node);
+    checkArgument(graph.containsNode(id), "Node %s is not an element of this graph.", node);
+    return id;
+  }
+
+  private boolean isToken(int node) {
+    NodeType nodeType = graph.nodeType(node);
+    return nodeType == NodeType.TOKEN || nodeType == NodeType.IDENTIFIER_TOKEN;
+  }
+
+  private static <T> boolean isOneOf(T value, T[] values) {
+    for (T v : values) {
+      if (v == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** A view of the nodes adjacent to a node by edges of a single type. */
+  private class NeighbourSet extends AbstractSet<FeatureNode> {
+    private final int node;
+    private final EdgeType edgeType;
+    private final boolean outgoing;
+
+    NeighbourSet(int node, EdgeType edgeType, boolean outgoing) {
+      this.node = node;
+      this.edgeType = edgeType;
+      this.outgoing = outgoing;
+    }
+
+    private int neighbour(int i) {
+      return outgoing
+          ? graph.edgeDestination(graph.outEdge(node, edgeType, i))
+          : graph.edgeSource(graph.inEdge(node, edgeType, i));
+    }
+
+    @Override
+    public Iterator<FeatureNode> iterator() {
+      return new Iterator<>() {
+        private int next = 0;
+
+        @Override
+        public boolean hasNext() {
+          return next < size();
+        }
+
+        @Override
+        public FeatureNode next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return featureNode(neighbour(next++));
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      // There is at most one edge of each type between two nodes so neighbours are not repeated.
+      return outgoing ? graph.outDegree(node, edgeType) : graph.inDegree(node, edgeType);
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return size() == 0;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof FeatureNode) || !containsNode((FeatureNode) o)) {
+        return false;
+      }
+      int other = (int) ((FeatureNode) o).getId();
+      return outgoing
+          ? graph.findEdge(node, other, edgeType) != -1
+          : graph.findEdge(other, node, edgeType) != -1;
+    }
+  }
+
+  /** Iterates over the ids from 0 up to a bound which are accepted by a predicate. */
+  private abstract static class IdIterator<T> implements Iterator<T> {
+    private final int bound;
+    private final IntPredicate include;
+    private int next;
+
+    IdIterator(int bound, IntPredicate include) {
+      this.bound = bound;
+      this.include = include;
+      this.next = advance(0);
+    }
+
+    private int advance(int from) {
+      int id = from;
+      while (id < bound && !include.test(id)) {
+        id++;
+      }
+      return id;
+    }
+
+    abstract T get(int id);
+
+    @Override
+    public boolean hasNext() {
+      return next < bound;
+    }
+
+    @Override
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      T result = get(next);
+      next = advance(next + 1);
+      return result;
+    }
   }
 }
@@ -0,0 +1,401 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.graph;
+
+import java.util.Arrays;
+import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureEdge.EdgeType;
+import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureNode.NodeType;
+
+/**
+ * A directed graph of feature nodes and typed edges held in primitive arrays.
+ *
+ * <p>Nodes are identified by dense int ids handed out in creation order and their attributes are
+ * stored as parallel arrays. A node only becomes an element of the graph once an edge touches it
+ * (and stops being one when it is removed), which matches the way nodes were implicitly added to
+ * the guava network this class replaces.
+ *
+ * <p>Edges are also identified by dense int ids. There is at most one edge with a given source,
+ * destination and type: adding it a second time has no effect.
+ *
+ * <p>The ids of the nodes and edges in the graph are also indexed by type so that all the elements
+ * of a given type can be listed without scanning the whole graph.
+ */
+final class IntGraph {
+
+  private static final int INITIAL_CAPACITY = 64;
+  private static final int[] NO_EDGES = new int[0];
+  private static final NodeType[] NODE_TYPES = NodeType.values();
+  private static final EdgeType[] EDGE_TYPES = EdgeType.values();
+
+  private int nodeCount = 0;
+  private int presentNodeCount = 0;
+  private byte[] nodeTypes = new byte[INITIAL_CAPACITY];
+  private String[] contents = new String[INITIAL_CAPACITY];
+  private int[] startPositions = new int[INITIAL_CAPACITY];
+  private int[] endPositions = new int[INITIAL_CAPACITY];
+  private int[] startLines = new int[INITIAL_CAPACITY];
+  private int[] endLines = new int[INITIAL_CAPACITY];
+  private boolean[] present = new boolean[INITIAL_CAPACITY];
+
+  private int[][] outEdges = new int[INITIAL_CAPACITY][];
+  private int[] outDegrees = new int[INITIAL_CAPACITY];
+  private int[][] inEdges = new int[INITIAL_CAPACITY][];
+  private int[] inDegrees = new int[INITIAL_CAPACITY];
+
+  /**
+   * The same adjacency lists again but partitioned by edge type ordinal. The arrays for a type are
+   * only allocated when the first edge of that type is added and may be shorter than the node
+   * arrays, in which case the missing nodes have no edges of that type.
+   */
+  private final int[][][] outEdgesByType = new int[EDGE_TYPES.length][][];
+
+  private final int[][] outDegreesByType = new int[EDGE_TYPES.length][];
+  private final int[][][] inEdgesByType = new int[EDGE_TYPES.length][][];
+  private final int[][] inDegreesByType = new int[EDGE_TYPES.length][];
+
+  private int edgeCount = 0;
+  private int presentEdgeCount = 0;
+  private int[] edgeSources = new int[INITIAL_CAPACITY];
+  private int[] edgeDestinations = new int[INITIAL_CAPACITY];
+  /** The ordinal of the edge type, or -1 if the edge has been removed. */
+  private byte[] edgeTypes = new byte[INITIAL_CAPACITY];
+
+  private final TypeIndex nodesByType = new TypeIndex(NODE_TYPES.length);
+  private final TypeIndex edgesByType = new TypeIndex(EDGE_TYPES.length);
+  private long modificationCount = 0;
+  private final long[] modificationCountsByType = new long[EDGE_TYPES.length];
+
+  /** Allocate a new node id with these attributes. The node is not yet part of the graph. */
+  int addNode(
+      NodeType nodeType,
+      String nodeContents,
+      int startPosition,
+      int endPosition,
+      int startLine,
+      int endLine) {
+    if (nodeCount == nodeTypes.length) {
+      growNodes(nodeCount * 2);
+    }
+    int node = nodeCount++;
+    nodeTypes[node] = (byte) nodeType.ordinal();
+    contents[node] = nodeContents;
+    startPositions[node] = startPosition;
+    endPositions[node] = endPosition;
+    startLines[node] = startLine;
+    endLines[node] = endLine;
+    outEdges[node] = NO_EDGES;
+    inEdges[node] = NO_EDGES;
+    return node;
+  }
+
+  /** The number of node ids allocated so far. Ids range from 0 (inclusive) to this (exclusive). */
+  int nodeIdBound() {
+    return nodeCount;
+  }
+
+  /** The number of nodes which are currently elements of the graph. */
+  int nodeCount() {
+    return presentNodeCount;
+  }
+
+  /** Returns the ids of the nodes in the graph with any of these types, in ascending order. */
+  int[] nodesOfType(NodeType... types) {
+    int[] ordinals = new int[types.length];
+    for (int i = 0; i < types.length; i++) {
+      ordinals[i] = types[i].ordinal();
+    }
+    return nodesByType.ids(ordinals);
+  }
+
+  boolean containsNode(int node) {
+    return node >= 0 && node < nodeCount && present[node];
+  }
+
+  NodeType nodeType(int node) {
+    return NODE_TYPES[nodeTypes[node]];
+  }
+
+  String contents(int node) {
+    return contents[node];
+  }
+
+  int startPosition(int node) {
+    return startPositions[node];
+  }
+
+  int endPosition(int node) {
+    return endPositions[node];
+  }
+
+  int startLine(int node) {
+    return startLines[node];
+  }
+
+  int endLine(int node) {
+    return endLines[node];
+  }
+
+  /** Remove this node and all its incident edges. Returns false if it was not in the graph. */
+  boolean removeNode(int node) {
+    if (!containsNode(node)) {
+      return false;
+    }
+    while (outDegrees[node] > 0) {
+      removeEdge(outEdges[node][outDegrees[node] - 1]);
+    }
+    while (inDegrees[node] > 0) {
+      removeEdge(inEdges[node][inDegrees[node] - 1]);
+    }
+    present[node] = false;
+    presentNodeCount--;
+    nodesByType.remove(node, nodeTypes[node]);
+    return true;
+  }
+
+  /**
+   * Add an edge, making both endpoints elements of the graph. Returns the id of the new edge or -1
+   * if an identical edge already exists.
+   */
+  int addEdge(int source, int destination, EdgeType edgeType) {
+    if (findEdge(source, destination, edgeType) != -1) {
+      return -1;
+    }
+    if (edgeCount == edgeTypes.length) {
+      growEdges(edgeCount * 2);
+    }
+    int edge = edgeCount++;
+    presentEdgeCount++;
+    edgeSources[edge] = source;
+    edgeDestinations[edge] = destination;
+    edgeTypes[edge] = (byte) edgeType.ordinal();
+    edgesByType.add(edge, edgeType.ordinal());
+    modificationCount++;
+    modificationCountsByType[edgeType.ordinal()]++;
+    markPresent(source);
+    markPresent(destination);
+    outEdges[source] = append(outEdges[source], outDegrees[source]++, edge);
+    inEdges[destination] = append(inEdges[destination], inDegrees[destination]++, edge);
+    int type = edgeType.ordinal();
+    ensureTypedCapacity(type);
+    int[][] typedOut = outEdgesByType[type];
+    typedOut[source] = append(typedOut[source], outDegreesByType[type][source]++, edge);
+    int[][] typedIn = inEdgesByType[type];
+    typedIn[destination] = append(typedIn[destination], inDegreesByType[type][destination]++, edge);
+    return edge;
+  }
+
+  /** Return the id of the edge with these endpoints and type or -1 if there isn't one. */
+  int findEdge(int source, int destination, EdgeType edgeType) {
+    if (!containsNode(source) || !containsNode(destination)) {
+      return -1;
+    }
+    int type = edgeType.ordinal();
+    int outDegree = outDegree(source, edgeType);
+    int inDegree = inDegree(destination, edgeType);
+    if (outDegree == 0 || inDegree == 0) {
+      return -1;
+    }
+    if (outDegree <= inDegree) {
+      int[] edges = outEdgesByType[type][source];
+      for (int i = 0; i < outDegree; i++) {
+        if (edgeDestinations[edges[i]] == destination) {
+          return edges[i];
+        }
+      }
+    } else {
+      int[] edges = inEdgesByType[type][destination];
+      for (int i = 0; i < inDegree; i++) {
+        if (edgeSources[edges[i]] == source) {
+          return edges[i];
+        }
+      }
+    }
+    return -1;
+  }
+
+  /** Remove this edge. Returns false if it was not in the graph. */
+  boolean removeEdge(int edge) {
+    if (!containsEdge(edge)) {
+      return false;
+    }
+    int source = edgeSources[edge];
+    int destination = edgeDestinations[edge];
+    outDegrees[source] = remove(outEdges[source], outDegrees[source], edge);
+    inDegrees[destination] = remove(inEdges[destination], inDegrees[destination], edge);
+    int type = edgeTypes[edge];
+    int[] typedOutDegrees = outDegreesByType[type];
+    typedOutDegrees[source] = remove(outEdgesByType[type][source], typedOutDegrees[source], edge);
+    int[] typedInDegrees = inDegreesByType[type];
+    typedInDegrees[destination] =
+        remove(inEdgesByType[type][destination], typedInDegrees[destination], edge);
+    edgesByType.remove(edge, type);
+    modificationCount++;
+    modificationCountsByType[type]++;
+    edgeTypes[edge] = -1;
+    presentEdgeCount--;
+    return true;
+  }
+
+  /** The number of edge ids allocated so far. Ids range from 0 (inclusive) to this (exclusive). */
+  int edgeIdBound() {
+    return edgeCount;
+  }
+
+  /** The number of edges which are currently elements of the graph. */
+  int edgeCount() {
+    return presentEdgeCount;
+  }
+
+  /** Returns the ids of the edges in the graph with this type, in ascending order. */
+  int[] edgesOfType(EdgeType type) {
+    return edgesByType.ids(type.ordinal());
+  }
+
+  /** The number of times any edge has been added or removed. */
+  long modificationCount() {
+    return modificationCount;
+  }
+
+  /** The number of times an edge of this type has been added or removed. */
+  long modificationCount(EdgeType type) {
+    return modificationCountsByType[type.ordinal()];
+  }
+
+  boolean containsEdge(int edge) {
+    return edge >= 0 && edge < edgeCount && edgeTypes[edge] != -1;
+  }
+
+  int edgeSource(int edge) {
+    return edgeSources[edge];
+  }
+
+  int edgeDestination(int edge) {
+    return edgeDestinations[edge];
+  }
+
+  EdgeType edgeType(int edge) {
+    return EDGE_TYPES[edgeTypes[edge]];
+  }
+
+  int outDegree(int node) {
+    return outDegrees[node];
+  }
+
+  /** The number of outgoing edges of this node with this type. */
+  int outDegree(int node, EdgeType edgeType) {
+    int[] degrees = outDegreesByType[edgeType.ordinal()];
+    return degrees == null || node >= degrees.length ? 0 : degrees[node];
+  }
+
+  /** Return the i'th outgoing edge of this node, in the order the edges were added. */
+  int outEdge(int node, int i) {
+    return outEdges[node][i];
+  }
+
+  /** Return the i'th outgoing edge of this node with this type, in the order they were added. */
+  int outEdge(int node, EdgeType edgeType, int i) {
+    return outEdgesByType[edgeType.ordinal()][node][i];
+  }
+
+  int inDegree(int node) {
+    return inDegrees[node];
+  }
+
+  /** The number of incoming edges of this node with this type. */
+  int inDegree(int node, EdgeType edgeType) {
+    int[] degrees = inDegreesByType[edgeType.ordinal()];
+    return degrees == null || node >= degrees.length ? 0 : degrees[node];
+  }
+
+  /** Return the i'th incoming edge of this node, in the order the edges were added. */
+  int inEdge(int node, int i) {
+    return inEdges[node][i];
+  }
+
+  /** Return the i'th incoming edge of this node with this type, in the order they were added. */
+  int inEdge(int node, EdgeType edgeType, int i) {
+    return inEdgesByType[edgeType.ordinal()][node][i];
+  }
+
+  private void markPresent(int node) {
+    if (!present[node]) {
+      present[node] = true;
+      presentNodeCount++;
+      nodesByType.add(node, nodeTypes[node]);
+    }
+  }
+
+  private static int[] append(int[] edges, int size, int edge) {
+    if (size == edges.length) {
+      edges = Arrays.copyOf(edges, Math.max(4, size * 2));
+    }
+    edges[size] = edge;
+    return edges;
+  }
+
+  private static int remove(int[] edges, int size, int edge) {
+    for (int i = 0; i < size; i++) {
+      if (edges[i] == edge) {
+        System.arraycopy(edges, i + 1, edges, i, size - i - 1);
+        return size - 1;
+      }
+    }
+    return size;
+  }
+
+  private void growNodes(int capacity) {
+    nodeTypes = Arrays.copyOf(nodeTypes, capacity);
+    contents = Arrays.copyOf(contents, capacity);
+    startPositions = Arrays.copyOf(startPositions, capacity);
+    endPositions = Arrays.copyOf(endPositions, capacity);
+    startLines = Arrays.copyOf(startLines, capacity);
+    endLines = Arrays.copyOf(endLines, capacity);
+    present = Arrays.copyOf(present, capacity);
+    outEdges = Arrays.copyOf(outEdges, capacity);
+    outDegrees = Arrays.copyOf(outDegrees, capacity);
+    inEdges = Arrays.copyOf(inEdges, capacity);
+    inDegrees = Arrays.copyOf(inDegrees, capacity);
+  }
+
+  /** Make sure the typed adjacency arrays for this type have room for every allocated node. */
+  private void ensureTypedCapacity(int type) {
+    int[] degrees = outDegreesByType[type];
+    if (degrees != null && degrees.length >= nodeCount) {
+      return;
+    }
+    int oldLength = degrees == null ? 0 : degrees.length;
+    int capacity = nodeTypes.length;
+    outEdgesByType[type] = growAdjacency(outEdgesByType[type], oldLength, capacity);
+    inEdgesByType[type] = growAdjacency(inEdgesByType[type], oldLength, capacity);
+    outDegreesByType[type] =
+        oldLength == 0 ? new int[capacity] : Arrays.copyOf(outDegreesByType[type], capacity);
+    inDegreesByType[type] =
+        oldLength == 0 ? new int[capacity] : Arrays.copyOf(inDegreesByType[type], capacity);
+  }
+
+  private static int[][] growAdjacency(int[][] adjacency, int oldLength, int capacity) {
+    int[][] result = oldLength == 0 ? new int[capacity][] : Arrays.copyOf(adjacency, capacity);
+    Arrays.fill(result, oldLength, capacity, NO_EDGES);
+    return result;
+  }
+
+  private void growEdges(int capacity) {
+    edgeSources = Arrays.copyOf(edgeSources, capacity);
+    edgeDestinations = Arrays.copyOf(edgeDestinations, capacity);
+    edgeTypes = Arrays.copyOf(edgeTypes, capacity);
+  }
+}
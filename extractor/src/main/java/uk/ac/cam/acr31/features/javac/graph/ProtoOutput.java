@@ -26,7 +26,7 @@ public class ProtoOutput {
   /** Write this feature graph to the given output file. */
   public static void write(File outputFile, FeatureGraph featureGraph) {
     try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-      featureGraph.toProtobuf().writeTo(fos);
+      featureGraph.writeProtobuf(fos);
     } catch (IOException e) {
       throw new RuntimeException("Failed to write protobuf", e);
     }
@@ -0,0 +1,226 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.graph;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Index over the source spans of the nodes in an {@link IntGraph}.
+ *
+ * <p>Every node with a start position is held in an array sorted by start position, then by end
+ * position descending (so enclosing nodes come before the nodes they enclose) and then by id. A
+ * segment tree over the same array records the largest end position in each range so that
+ * containment queries only visit the parts of the array which can hold an answer.
+ *
+ * <p>Nodes added to the graph after the index was built are merged in when it is next queried.
+ * Nodes removed from the graph stay in the index and are filtered out of the query results.
+ */
+final class SpanIndex {
+
+  private final IntGraph graph;
+
+  /** Node ids with a non-negative start position, in index order. */
+  private int[] order = new int[0];
+  /** Node ids below this bound have been considered for inclusion in the index. */
+  private int indexedBound = 0;
+  /** A segment tree of maximum end positions with the leaves stored from maxEnd.length / 2. */
+  private int[] maxEnd = new int[0];
+
+  SpanIndex(IntGraph graph) {
+    this.graph = graph;
+  }
+
+  /** Call the consumer on each node in the graph with exactly this span, in id order. */
+  void forEachWithSpan(int start, int end, IntConsumer consumer) {
+    update();
+    for (int i = firstAtOrAfter(start, end); i < order.length; i++) {
+      int node = order[i];
+      if (graph.startPosition(node) != start || graph.endPosition(node) != end) {
+        break;
+      }
+      if (graph.containsNode(node)) {
+        consumer.accept(node);
+      }
+    }
+  }
+
+  /**
+   * Returns the node in the graph accepted by the filter with the smallest start position that is
+   * at least this position. If several nodes start there then the longest is returned and if that
+   * is still ambiguous then the one with the lowest id. Returns -1 if there is no such node.
+   */
+  int firstStartingFrom(int position, IntPredicate filter) {
+    update();
+    for (int i = firstAtOrAfter(position, Integer.MAX_VALUE); i < order.length; i++) {
+      int node = order[i];
+      if (graph.containsNode(node) && filter.test(node)) {
+        return node;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the lowest id node in the graph accepted by the filter starting at this position. */
+  int lowestStartingAt(int position, IntPredicate filter) {
+    update();
+    int result = -1;
+    for (int i = firstAtOrAfter(position, Integer.MAX_VALUE); i < order.length; i++) {
+      int node = order[i];
+      if (graph.startPosition(node) != position) {
+        break;
+      }
+      if ((result == -1 || node < result) && graph.containsNode(node) && filter.test(node)) {
+        result = node;
+      }
+    }
+    return result;
+  }
+
+  /** Call the consumer on each node in the graph whose span includes the whole of this span. */
+  void forEachEnclosing(int start, int end, IntConsumer consumer) {
+    update();
+    // Candidates are the nodes starting at or before start, which form a prefix of the order.
+    int limit = firstAtOrAfter(start + 1, Integer.MAX_VALUE);
+    if (limit > 0) {
+      forEachEnclosing(1, 0, maxEnd.length / 2, limit, end, consumer);
+    }
+  }
+
+  private void forEachEnclosing(
+      int treeNode, int from, int to, int limit, int end, IntConsumer consumer) {
+    if (from >= limit || maxEnd[treeNode] < end) {
+      return;
+    }
+    if (to - from == 1) {
+      int node = order[from];
+      if (graph.containsNode(node)) {
+        consumer.accept(node);
+      }
+      return;
+    }
+    int middle = (from + to) >>> 1;
+    forEachEnclosing(2 * treeNode, from, middle, limit, end, consumer);
+    forEachEnclosing(2 * treeNode + 1, middle, to, limit, end, consumer);
+  }
+
+  /**
+   * Returns the index of the first entry in the order which does not sort before a node with this
+   * start and end position.
+   */
+  private int firstAtOrAfter(int start, int end) {
+    int low = 0;
+    int high = order.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      int node = order[middle];
+      int nodeStart = graph.startPosition(node);
+      if (nodeStart < start || (nodeStart == start && graph.endPosition(node) > end)) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /** Merge any nodes created since the index was last brought up to date. */
+  private void update() {
+    int bound = graph.nodeIdBound();
+    if (indexedBound == bound) {
+      return;
+    }
+    int[] added = new int[bound - indexedBound];
+    int addedCount = 0;
+    for (int node = indexedBound; node < bound; node++) {
+      if (graph.startPosition(node) >= 0) {
+        added[addedCount++] = node;
+      }
+    }
+    indexedBound = bound;
+    if (addedCount == 0) {
+      return;
+    }
+    // The added ids are in ascending order and merge sort is stable, so ties stay in id order.
+    added = Arrays.copyOf(added, addedCount);
+    sort(added, new int[addedCount], 0, addedCount);
+    order = merge(order, added);
+    buildTree();
+  }
+
+  /** Ids in a sort before ids in b when they compare equal since they are all lower. */
+  private int[] merge(int[] a, int[] b) {
+    int[] result = new int[a.length + b.length];
+    int i = 0;
+    int j = 0;
+    int k = 0;
+    while (i < a.length && j < b.length) {
+      result[k++] = compare(b[j], a[i]) < 0 ? b[j++] : a[i++];
+    }
+    while (i < a.length) {
+      result[k++] = a[i++];
+    }
+    while (j < b.length) {
+      result[k++] = b[j++];
+    }
+    return result;
+  }
+
+  private void sort(int[] ids, int[] scratch, int from, int to) {
+    if (to - from < 2) {
+      return;
+    }
+    int middle = (from + to) >>> 1;
+    sort(ids, scratch, from, middle);
+    sort(ids, scratch, middle, to);
+    if (compare(ids[middle - 1], ids[middle]) <= 0) {
+      return;
+    }
+    System.arraycopy(ids, from, scratch, from, to - from);
+    int i = from;
+    int j = middle;
+    for (int k = from; k < to; k++) {
+      if (j >= to || (i < middle && compare(scratch[i], scratch[j]) <= 0)) {
+        ids[k] = scratch[i++];
+      } else {
+        ids[k] = scratch[j++];
+      }
+    }
+  }
+
+  /** Order by start position ascending and then end position descending. */
+  private int compare(int a, int b) {
+    int result = Integer.compare(graph.startPosition(a), graph.startPosition(b));
+    if (result != 0) {
+      return result;
+    }
+    return Integer.compare(graph.endPosition(b), graph.endPosition(a));
+  }
+
+  private void buildTree() {
+    int leaves = Integer.highestOneBit(Math.max(1, order.length - 1)) * 2;
+    maxEnd = new int[2 * leaves];
+    Arrays.fill(maxEnd, Integer.MIN_VALUE);
+    for (int i = 0; i < order.length; i++) {
+      maxEnd[leaves + i] = graph.endPosition(order[i]);
+    }
+    for (int i = leaves - 1; i > 0; i--) {
+      maxEnd[i] = Math.max(maxEnd[2 * i], maxEnd[2 * i + 1]);
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.graph;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/** Named counters recording how much work was done while extracting the features of a file. */
+public class Statistics {
+
+  private final Map<String, Long> counters = new TreeMap<>();
+
+  public void increment(String counter) {
+    add(counter, 1);
+  }
+
+  public void add(String counter, long amount) {
+    counters.merge(counter, amount, Long::sum);
+  }
+
+  public long get(String counter) {
+    return counters.getOrDefault(counter, 0L);
+  }
+
+  @Override
+  public String toString() {
+    return counters.entrySet().stream()
+        .map(e -> e.getKey() + "=" + e.getValue())
+        .collect(Collectors.joining(" "));
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.graph;
+
+import com.sun.tools.javac.code.Kinds;
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.util.Context;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Computes and caches the names used for symbol nodes and method signature nodes.
+ *
+ * <p>One instance is shared by every compilation unit of a javac task (see {@link
+ * #instance(Context)}) so the names of common owners are only built once. The resulting strings are
+ * interned in a pool belonging to the instance so that graphs built from different compilation
+ * units share the storage for the same name.
+ */
+public class SymbolNames {
+
+  private static final Context.Key<SymbolNames> KEY = new Context.Key<>();
+
+  private final Map<Symbol, String> names = new HashMap<>();
+  private final Map<Symbol, String> signatures = new HashMap<>();
+  private final Map<String, String> pool = new HashMap<>();
+
+  /** Returns the instance shared by everything using this context. */
+  public static SymbolNames instance(Context context) {
+    SymbolNames instance = context.get(KEY);
+    if (instance == null) {
+      instance = new SymbolNames();
+      context.put(KEY, instance);
+    }
+    return instance;
+  }
+
+  /**
+   * The name of a symbol has to be globally unique. It also has to be derivable from different
+   * compilation units that reference the symbol.
+   *
+   * <p>The idea here is that most of the time you can get a unique name for a symbol by appending
+   * the symbol name to the unique name for its owner. This doesn't work in situations of nested
+   * block scope. e.g {@code void f() { { int x; } { int x;} } } will compile but the two x's have
+   * the same owner (f()) and so won't get unique names.
+   *
+   * <p>This doesn't just apply to variables since java now has method-local classes e.g.
+   *
+   * <pre>
+   *   void f() {
+   *     {
+   *       class A {}
+   *     }
+   *     {
+   *       class A {}
+   *     }
+   *   }
+   * </pre>
+   *
+   * <p>For classes (or new types in general a new name is generated anyway by the compiler e.g.
+   * Test$1A and Test$2A so we are good here.
+   *
+   * <p>This can also happen within a static initialiser (but that's also a method). On the plus
+   * side I think it is the case that its not possible to reference a symbol with an ambiguous owner
+   * from outside the compilation unit (this follows from the classfile format and definition of
+   * binary name in the JLS).
+   */
+  public String getName(Symbol symbol) {
+    String name = names.get(symbol);
+    if (name == null) {
+      name = intern(computeName(symbol));
+      names.put(symbol, name);
+    }
+    return name;
+  }
+
+  /** Returns the signature of a method symbol. */
+  public String getSignature(Symbol symbol) {
+    String signature = signatures.get(symbol);
+    if (signature == null) {
+      signature = intern(symbol.toString());
+      signatures.put(symbol, signature);
+    }
+    return signature;
+  }
+
+  /** Returns the pooled string equal to this one. */
+  public String intern(String value) {
+    String pooled = pool.putIfAbsent(value, value);
+    return pooled == null ? value : pooled;
+  }
+
+  private String computeName(Symbol symbol) {
+    if (symbol.owner != null && symbol.owner.kind == Kinds.Kind.MTH) {
+      if (symbol.kind == Kinds.Kind.VAR) {
+        Symbol.VarSymbol varSymbol = (Symbol.VarSymbol) symbol;
+        return getName(varSymbol.owner) + "." + varSymbol.name + "@" + varSymbol.pos;
+      }
+    }
+    switch (symbol.kind) {
+      case TYP:
+      case PCK:
+        return symbol.flatName().toString();
+      default:
+        return getName(symbol.owner) + "." + symbol.toString();
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.graph;
+
+import java.util.Arrays;
+
+/**
+ * Partitions a set of int ids by a small integer type (an enum ordinal).
+ *
+ * <p>Adding and removing an id is constant time. Removal leaves a hole in the list for that type
+ * which is squeezed out the next time the list is read, so reading the ids of a type costs time
+ * proportional to the number of ids of that type added since the last read.
+ */
+final class TypeIndex {
+
+  private static final int REMOVED = -1;
+
+  private final int[][] members;
+  private final int[] sizes;
+  private final boolean[] compact;
+  /** The slot holding each id in the list for its type, or -1 if the id is not indexed. */
+  private int[] slots = new int[0];
+
+  TypeIndex(int typeCount) {
+    this.members = new int[typeCount][];
+    this.sizes = new int[typeCount];
+    this.compact = new boolean[typeCount];
+    Arrays.fill(members, new int[0]);
+    Arrays.fill(compact, true);
+  }
+
+  void add(int id, int type) {
+    if (id >= slots.length) {
+      int oldLength = slots.length;
+      slots = Arrays.copyOf(slots, Math.max(64, Math.max(id + 1, oldLength * 2)));
+      Arrays.fill(slots, oldLength, slots.length, REMOVED);
+    }
+    int size = sizes[type];
+    if (size == members[type].length) {
+      members[type] = Arrays.copyOf(members[type], Math.max(16, size * 2));
+    }
+    if (size > 0 && members[type][size - 1] > id) {
+      compact[type] = false;
+    }
+    members[type][size] = id;
+    slots[id] = size;
+    sizes[type] = size + 1;
+  }
+
+  void remove(int id, int type) {
+    members[type][slots[id]] = REMOVED;
+    slots[id] = REMOVED;
+    compact[type] = false;
+  }
+
+  /** Returns a new array of the ids with this type in ascending order. */
+  int[] ids(int type) {
+    if (!compact[type]) {
+      compactAndSort(type);
+    }
+    return Arrays.copyOf(members[type], sizes[type]);
+  }
+
+  /** Returns a new array of the ids with any of these types in ascending order. */
+  int[] ids(int... types) {
+    if (types.length == 1) {
+      return ids(types[0]);
+    }
+    int total = 0;
+    for (int type : types) {
+      if (!compact[type]) {
+        compactAndSort(type);
+      }
+      total += sizes[type];
+    }
+    int[] result = new int[total];
+    int offset = 0;
+    for (int type : types) {
+      System.arraycopy(members[type], 0, result, offset, sizes[type]);
+      offset += sizes[type];
+    }
+    Arrays.sort(result);
+    return result;
+  }
+
+  private void compactAndSort(int type) {
+    int[] ids = members[type];
+    int size = 0;
+    for (int i = 0; i < sizes[type]; i++) {
+      if (ids[i] != REMOVED) {
+        ids[size++] = ids[i];
+      }
+    }
+    Arrays.sort(ids, 0, size);
+    for (int i = 0; i < size; i++) {
+      slots[ids[i]] = i;
+    }
+    sizes[type] = size;
+    compact[type] = true;
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.graph;
+
+import com.sun.tools.javac.code.Type;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * Computes a hash key for a type such that any two types which {@code Types.isSameType} considers
+ * equal have the same key.
+ *
+ * <p>The key is the erasure of the type together with the number of type arguments at each level of
+ * array nesting. Type arguments themselves are left out because javac considers some type arguments
+ * equal to wildcards (e.g. {@code Object} and {@code ? super Object}). Types for which no sound key
+ * exists (wildcards, intersections, erroneous types and so on) have no key and must be compared
+ * against every other type.
+ */
+final class TypeKey {
+
+  private TypeKey() {
+    // no instances
+  }
+
+  /** Returns the key for this type or null if it has no key. */
+  static String of(TypeMirror type) {
+    StringBuilder key = new StringBuilder();
+    return append(key, (Type) type) ? key.toString() : null;
+  }
+
+  private static boolean append(StringBuilder key, Type type) {
+    switch (type.getTag()) {
+      case BYTE:
+      case CHAR:
+      case SHORT:
+      case INT:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+      case BOOLEAN:
+      case VOID:
+      case BOT:
+        key.append(type.getTag());
+        return true;
+      case CLASS:
+        if (type.isCompound()) {
+          return false;
+        }
+        key.append(type.tsym.flatName()).append('/').append(type.getTypeArguments().size());
+        return true;
+      case ARRAY:
+        if (!append(key, ((Type.ArrayType) type).elemtype)) {
+          return false;
+        }
+        key.append("[]");
+        return true;
+      case TYPEVAR:
+        key.append("typevar:").append(type.tsym.name);
+        return true;
+      default:
+        return false;
+    }
+  }
+}
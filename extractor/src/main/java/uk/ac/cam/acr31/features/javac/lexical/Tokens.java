@@ -33,8 +33,11 @@ import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureNode.NodeType;
 /** Static method for extracting tokens from a source file. */
 public class Tokens {
 
-  /** Add all the tokens in the source file to the given featureGraph. */
-  public static void addToGraph(
+  /**
+   * Add all the tokens in the source file to the given featureGraph and return them, ending with
+   * the EOF token.
+   */
+  public static ImmutableList<ErrorProneToken> addToGraph(
       JavaFileObject sourceFile, Context context, FeatureGraph featureGraph) {
 
     ImmutableList<ErrorProneToken> tokens =
@@ -68,6 +71,7 @@ public class Tokens {
         }
       }
     }
+    return tokens;
   }
 
   private static CharSequence getSourceFileContent(JavaFileObject sourceFile) {
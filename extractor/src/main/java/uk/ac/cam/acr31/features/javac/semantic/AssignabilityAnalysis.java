@@ -16,38 +16,184 @@
 
 package uk.ac.cam.acr31.features.javac.semantic;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
 import javax.lang.model.type.TypeMirror;
 import uk.ac.cam.acr31.features.javac.graph.FeatureGraph;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos;
 
 public class AssignabilityAnalysis {
+
+  /** Which of the assignable pairs of types get an edge. */
+  public enum EdgeMode {
+    /** An edge from each type to every other type it is assignable to. */
+    ALL,
+    /**
+     * Only the edges which are not implied by a path through some other type, so that the types
+     * reachable from each type are the same as with {@link #ALL}.
+     */
+    REDUCED;
+
+    /** Parse the value of the plugin option, which defaults to ALL if it is not set. */
+    public static EdgeMode fromOption(String value) {
+      if (value == null) {
+        return ALL;
+      }
+      try {
+        return valueOf(value.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(
+            "Unknown ASSIGNABLE_TO edge mode " + value + ", expected all or reduced", e);
+      }
+    }
+  }
+
   private final FeatureGraph graph;
   private final TypeAnalysis analysis;
+  private final SupertypeClosures supertypeClosures;
+  private final EdgeMode edgeMode;
 
-  public AssignabilityAnalysis(FeatureGraph graph, TypeAnalysis analysis) {
+  /** Create an analysis of the types in this graph. */
+  public AssignabilityAnalysis(
+      FeatureGraph graph,
+      TypeAnalysis analysis,
+      SupertypeClosures supertypeClosures,
+      EdgeMode edgeMode) {
     this.graph = graph;
     this.analysis = analysis;
+    this.supertypeClosures = supertypeClosures;
+    this.edgeMode = edgeMode;
   }
 
-  public static void addToGraph(FeatureGraph graph, TypeAnalysis analysis) {
-    AssignabilityAnalysis assignabilityAnalysis = new AssignabilityAnalysis(graph, analysis);
+  /** Add an edge from each type in the graph to the other types it is assignable to. */
+  public static void addToGraph(
+      FeatureGraph graph,
+      TypeAnalysis analysis,
+      SupertypeClosures supertypeClosures,
+      EdgeMode edgeMode) {
+    AssignabilityAnalysis assignabilityAnalysis =
+        new AssignabilityAnalysis(graph, analysis, supertypeClosures, edgeMode);
     assignabilityAnalysis.performAnalysis();
   }
 
   private void performAnalysis() {
+    List<GraphProtos.FeatureNode> typeNodes = new ArrayList<>();
+    List<TypeMirror> types = new ArrayList<>();
     for (GraphProtos.FeatureNode typeNode : graph.types()) {
       TypeMirror type = graph.lookupTypeMirror(typeNode);
-      if (type == null) {
-        continue;
+      if (type != null) {
+        typeNodes.add(typeNode);
+        types.add(type);
       }
-      for (GraphProtos.FeatureNode assignToTypeNode : graph.types()) {
-        TypeMirror assignToType = graph.lookupTypeMirror(assignToTypeNode);
-        if (assignToType == null || analysis.getTypes().isSameType(type, assignToType)) {
+    }
+
+    boolean[][] assignable = new boolean[typeNodes.size()][typeNodes.size()];
+    long pruned = 0;
+    long checked = 0;
+    for (int i = 0; i < typeNodes.size(); i++) {
+      TypeMirror type = types.get(i);
+      for (int j = 0; j < typeNodes.size(); j++) {
+        TypeMirror assignToType = types.get(j);
+        // Pairs ruled out by the supertypes can't be assignable, so skip asking javac about them.
+        if (!supertypeClosures.mayBeAssignable(type, assignToType)) {
+          pruned++;
+          continue;
+        }
+        if (analysis.getTypes().isSameType(type, assignToType)) {
           continue;
         }
 
-        if (analysis.isAssignable(type, assignToType)) {
-          graph.addEdge(typeNode, assignToTypeNode, GraphProtos.FeatureEdge.EdgeType.ASSIGNABLE_TO);
+        checked++;
+        assignable[i][j] = analysis.isAssignable(type, assignToType);
+      }
+    }
+    graph.getStatistics().add("assignability.pruned", pruned);
+    graph.getStatistics().add("assignability.checked", checked);
+
+    if (edgeMode == EdgeMode.REDUCED) {
+      removeImpliedEdges(assignable);
+    }
+    for (int i = 0; i < typeNodes.size(); i++) {
+      for (int j = 0; j < typeNodes.size(); j++) {
+        if (assignable[i][j]) {
+          graph.addEdge(
+              typeNodes.get(i), typeNodes.get(j), GraphProtos.FeatureEdge.EdgeType.ASSIGNABLE_TO);
+        }
+      }
+    }
+  }
+
+  /**
+   * Remove each edge which is implied by a path through some other type.
+   *
+   * <p>Assignability isn't antisymmetric (a raw type and its parameterizations are assignable to
+   * each other, as are a primitive and its box) so types which can reach each other are grouped
+   * into components first. The edges within a component are all kept. An edge between components is
+   * removed if its target can also be reached by leaving the source component through some third
+   * component. This is the transitive reduction of the graph of components so the types reachable
+   * from each type are unchanged.
+   */
+  private static void removeImpliedEdges(boolean[][] edges) {
+    int n = edges.length;
+    BitSet[] reach = new BitSet[n];
+    for (int i = 0; i < n; i++) {
+      reach[i] = new BitSet(n);
+      for (int j = 0; j < n; j++) {
+        if (edges[i][j]) {
+          reach[i].set(j);
+        }
+      }
+    }
+    for (int k = 0; k < n; k++) {
+      for (int i = 0; i < n; i++) {
+        if (reach[i].get(k)) {
+          reach[i].or(reach[k]);
+        }
+      }
+    }
+
+    // Each component is identified by the lowest index of the types in it.
+    int[] component = new int[n];
+    for (int i = 0; i < n; i++) {
+      component[i] = i;
+      for (int j = 0; j < i; j++) {
+        if (reach[i].get(j) && reach[j].get(i)) {
+          component[i] = j;
+          break;
+        }
+      }
+    }
+
+    // The types reachable from each type without staying within its component.
+    BitSet[] below = new BitSet[n];
+    for (int i = 0; i < n; i++) {
+      below[i] = (BitSet) reach[i].clone();
+      for (int j = 0; j < n; j++) {
+        if (component[j] == component[i]) {
+          below[i].clear(j);
+        }
+      }
+    }
+
+    // The types reachable from each component through a path visiting some other component.
+    BitSet[] implied = new BitSet[n];
+    for (int i = 0; i < n; i++) {
+      implied[i] = new BitSet(n);
+    }
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < n; j++) {
+        if (edges[i][j] && component[i] != component[j]) {
+          implied[component[i]].or(below[j]);
+        }
+      }
+    }
+
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < n; j++) {
+        if (edges[i][j] && component[i] != component[j] && implied[component[i]].get(j)) {
+          edges[i][j] = false;
         }
       }
     }
@@ -0,0 +1,337 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.semantic;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.errorprone.util.ErrorProneToken;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.NewClassTree;
+import com.sun.source.tree.ThrowTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.TreeScanner;
+import com.sun.tools.javac.parser.Tokens.TokenKind;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeInfo;
+import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.Position;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An on-disk cache of the dataflow results of methods, so that extracting features again after a
+ * change only analyses the methods which changed.
+ *
+ * <p>A method is keyed by its tokens, which leaves out its comments, whitespace and position in the
+ * file, and by the types it refers to, which decide where its exceptions go and how its operands
+ * are converted. The results are stored relative to the method: each tree is the index of the
+ * identifier or variable in a preorder walk of the method, so they replay onto any copy of it.
+ */
+final class DataflowCache {
+
+  /** Changes whenever the analyses or the format of the entries change. */
+  private static final int VERSION = 1;
+
+  private final Path directory;
+  private final TypeFingerprints typeFingerprints;
+  private final List<ErrorProneToken> tokens;
+  /** The start position of each token, for finding the tokens of a method. */
+  private final int[] tokenStarts;
+
+  /**
+   * Creates a cache in this directory for a compilation unit with these tokens, which must be in
+   * position order.
+   */
+  DataflowCache(Path directory, Context context, List<ErrorProneToken> tokens) {
+    this.directory = directory;
+    this.typeFingerprints = TypeFingerprints.instance(context);
+    this.tokens = tokens;
+    this.tokenStarts = new int[tokens.size()];
+    for (int i = 0; i < tokenStarts.length; i++) {
+      tokenStarts[i] = tokens.get(i).pos();
+    }
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      // Every lookup then misses and every store is skipped, which only costs the time saved.
+    }
+  }
+
+  /** Returns the key of this method, which must be computed on the compiling thread. */
+  String key(CompilationUnitTree compilationUnitTree, MethodTree methodTree, String configuration) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putInt(VERSION);
+    putString(hasher, configuration);
+    JCTree method = (JCTree) methodTree;
+    int end =
+        TreeInfo.getEndPos(method, ((JCTree.JCCompilationUnit) compilationUnitTree).endPositions);
+    if (end == Position.NOPOS) {
+      // Generated members, such as default constructors, have no source of their own.
+      putString(hasher, methodTree.toString());
+    } else {
+      putTokens(hasher, TreeInfo.getStartPos(method), end);
+    }
+    new TypeHasher(hasher).scan(methodTree, null);
+    return hasher.hash().toString();
+  }
+
+  /** Adds the tokens lying within this span. */
+  private void putTokens(Hasher hasher, int start, int end) {
+    int index = Arrays.binarySearch(tokenStarts, start);
+    for (int i = index < 0 ? -index - 1 : index; i < tokenStarts.length; i++) {
+      ErrorProneToken token = tokens.get(i);
+      if (token.kind() == TokenKind.EOF || token.endPos() > end) {
+        break;
+      }
+      hasher.putInt(token.kind().ordinal());
+      switch (token.kind().tag) {
+        case STRING:
+        case NUMERIC:
+          putString(hasher, token.stringVal());
+          break;
+        case NAMED:
+          putString(hasher, token.name().toString());
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  static void putString(Hasher hasher, String value) {
+    hasher.putInt(value.length());
+    hasher.putString(value, UTF_8);
+  }
+
+  /** Adds the types referred to by a method to its key. */
+  private final class TypeHasher extends TreeScanner<Void, Void> {
+
+    private final Hasher hasher;
+
+    TypeHasher(Hasher hasher) {
+      this.hasher = hasher;
+    }
+
+    @Override
+    public Void scan(Tree tree, Void unused) {
+      if (tree instanceof JCTree.JCExpression) {
+        typeFingerprints.putType(hasher, ((JCTree.JCExpression) tree).type);
+      }
+      return super.scan(tree, null);
+    }
+
+    @Override
+    public Void visitVariable(VariableTree tree, Void unused) {
+      // Catch parameters and the variables of enhanced for loops are matched against supertypes.
+      typeFingerprints.putSupertypes(hasher, ((JCTree.JCVariableDecl) tree).type);
+      return super.visitVariable(tree, null);
+    }
+
+    @Override
+    public Void visitThrow(ThrowTree tree, Void unused) {
+      // The handler a throw goes to depends on which caught types its exception is a subtype of.
+      typeFingerprints.putSupertypes(hasher, ((JCTree) tree.getExpression()).type);
+      return super.visitThrow(tree, null);
+    }
+
+    @Override
+    public Void visitIdentifier(IdentifierTree tree, Void unused) {
+      typeFingerprints.putSymbol(hasher, ((JCTree.JCIdent) tree).sym);
+      return null;
+    }
+
+    @Override
+    public Void visitMemberSelect(MemberSelectTree tree, Void unused) {
+      typeFingerprints.putSymbol(hasher, ((JCTree.JCFieldAccess) tree).sym);
+      return super.visitMemberSelect(tree, null);
+    }
+
+    @Override
+    public Void visitNewClass(NewClassTree tree, Void unused) {
+      typeFingerprints.putSymbol(hasher, ((JCTree.JCNewClass) tree).constructor);
+      return super.visitNewClass(tree, null);
+    }
+  }
+
+  /** Returns the cached results for this method, or null if there are none. */
+  DataflowOutputs get(String key, MethodTree methodTree) {
+    List<Tree> trees = indexedTrees(methodTree);
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(entry(key)))) {
+      boolean approximated = in.readBoolean();
+      List<Tree> order = new ArrayList<>();
+      int orderSize = in.readInt();
+      for (int i = 0; i < orderSize; i++) {
+        order.add(trees.get(in.readInt()));
+      }
+      TreeNumbering numbering = TreeNumbering.create(order);
+      Map<Tree, PossibleTreeSetPair> values = new IdentityHashMap<>();
+      int size = in.readInt();
+      for (int i = 0; i < size; i++) {
+        Tree tree = trees.get(in.readInt());
+        PossibleTreeSet lastWrites = readSet(in, numbering);
+        PossibleTreeSet lastUses = readSet(in, numbering);
+        values.put(tree, new PossibleTreeSetPair(lastWrites, lastUses));
+      }
+      return DataflowOutputs.fromValues(values::get, approximated);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException | IndexOutOfBoundsException e) {
+      // A truncated or stale entry is treated as a miss and overwritten.
+      return null;
+    }
+  }
+
+  private static PossibleTreeSet readSet(DataInputStream in, TreeNumbering numbering)
+      throws IOException {
+    PossibleTreeSet set = new PossibleTreeSet();
+    int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      set = set.leastUpperBound(numbering.singleton(in.readInt()));
+    }
+    return set;
+  }
+
+  /** Stores the results for this method. */
+  void put(String key, MethodTree methodTree, DataflowOutputs outputs) {
+    List<Tree> trees = indexedTrees(methodTree);
+    Map<Tree, Integer> indices = new IdentityHashMap<>();
+    for (int i = 0; i < trees.size(); i++) {
+      // The generated parts of a method can share trees, so a tree is known by where it first is.
+      indices.putIfAbsent(trees.get(i), i);
+    }
+
+    // The trees in the sets are stored in the order they were numbered in, so that replaying the
+    // sets gives their trees in the same order and the edges are added to the graph in that order.
+    Map<Tree, Integer> numbers = new IdentityHashMap<>();
+    List<Tree> used = new ArrayList<>();
+    for (Tree tree : trees) {
+      PossibleTreeSet lastWrites = outputs.lastWrites.getValue(tree);
+      if (lastWrites != null) {
+        used.add(tree);
+        addNumbers(lastWrites, numbers);
+        addNumbers(outputs.lastUses.getValue(tree), numbers);
+      }
+    }
+    Tree[] order = numbers.keySet().toArray(new Tree[0]);
+    Arrays.sort(order, (a, b) -> Integer.compare(numbers.get(a), numbers.get(b)));
+    Map<Tree, Integer> positions = new IdentityHashMap<>();
+    for (Tree tree : order) {
+      if (!indices.containsKey(tree)) {
+        // Only the trees of this method can be replayed.
+        return;
+      }
+      positions.put(tree, positions.size());
+    }
+
+    // The cache only saves time, so an entry which can't be written is skipped.
+    Path temporary = null;
+    try {
+      temporary = Files.createTempFile(directory, key, ".tmp");
+      try (OutputStream file = Files.newOutputStream(temporary);
+          DataOutputStream out = new DataOutputStream(file)) {
+        out.writeBoolean(outputs.approximated);
+        out.writeInt(order.length);
+        for (Tree tree : order) {
+          out.writeInt(indices.get(tree));
+        }
+        out.writeInt(used.size());
+        for (Tree tree : used) {
+          out.writeInt(indices.get(tree));
+          writeSet(out, outputs.lastWrites.getValue(tree), positions);
+          writeSet(out, outputs.lastUses.getValue(tree), positions);
+        }
+      }
+      // Another compilation might be writing the same entry, so replace it in one step.
+      Files.move(
+          temporary,
+          entry(key),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      temporary = null;
+    } catch (IOException e) {
+      // Skip the entry.
+    } finally {
+      if (temporary != null) {
+        deleteQuietly(temporary);
+      }
+    }
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      // Nothing more can be done about it.
+    }
+  }
+
+  private static void addNumbers(PossibleTreeSet set, Map<Tree, Integer> numbers) {
+    int[] setNumbers = set.numbers();
+    int i = 0;
+    for (Tree tree : set.nodes()) {
+      numbers.put(tree, setNumbers[i++]);
+    }
+  }
+
+  private static void writeSet(
+      DataOutputStream out, PossibleTreeSet set, Map<Tree, Integer> positions) throws IOException {
+    out.writeInt(set.nodes().size());
+    for (Tree tree : set.nodes()) {
+      out.writeInt(positions.get(tree));
+    }
+  }
+
+  private Path entry(String key) {
+    return directory.resolve(key);
+  }
+
+  /** Returns the identifiers and variables of this method in preorder. */
+  private static List<Tree> indexedTrees(MethodTree methodTree) {
+    List<Tree> trees = new ArrayList<>();
+    new TreeScanner<Void, Void>() {
+      @Override
+      public Void visitIdentifier(IdentifierTree tree, Void unused) {
+        trees.add(tree);
+        return null;
+      }
+
+      @Override
+      public Void visitVariable(VariableTree tree, Void unused) {
+        trees.add(tree);
+        return super.visitVariable(tree, null);
+      }
+    }.scan(methodTree, null);
+    return trees;
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.semantic;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TreeScanner;
+import com.sun.tools.javac.api.BasicJavacTask;
+import com.sun.tools.javac.api.JavacTool;
+import com.sun.tools.javac.processing.JavacProcessingEnvironment;
+import com.sun.tools.javac.tree.JCTree;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+
+/**
+ * Compares the results and running times of the two dataflow {@link DataflowOutputs.Engine}s.
+ *
+ * <p>The native engine is meant to give exactly the results of the checker framework for every
+ * method the checker framework can build a graph for. {@link #compare} checks this for a
+ * compilation unit and {@link #main} checks it for a corpus of source files while timing each
+ * engine on it:
+ *
+ * <pre>
+ * java -cp features-javac-extractor-latest.jar \
+ *     uk.ac.cam.acr31.features.javac.semantic.DataflowEngineComparison \
+ *     [-runs N] SOURCE_FILE_OR_DIRECTORY... [-- JAVAC_OPTION...]
+ * </pre>
+ *
+ * <p>The corpus is compiled in one javac task with the given options, and must compile without
+ * errors. The compare-dataflow-engines.sh script next to the extractor's pom runs this on the
+ * corpus in its test resources and on the extractor's own sources.
+ *
+ * <p>Only the analyses are timed, not the compilation or the rest of the feature extraction. The
+ * engines take turns so that both see the same warm up and the same machine load, and the first
+ * run of each is left out of the summary.
+ */
+public final class DataflowEngineComparison {
+
+  /** The outcome of comparing the engines on a compilation unit. */
+  public static final class Comparison {
+
+    /** The number of methods which both engines analysed. */
+    public final int methods;
+    /** A description of each tree for which the engines disagree. */
+    public final ImmutableList<String> differences;
+
+    private Comparison(int methods, ImmutableList<String> differences) {
+      this.methods = methods;
+      this.differences = differences;
+    }
+  }
+
+  private DataflowEngineComparison() {
+    // no instances
+  }
+
+  /**
+   * Run both engines on this compilation unit and compare their results for each method the
+   * checker framework analysed.
+   */
+  public static Comparison compare(
+      CompilationUnitTree compilationUnitTree, ProcessingEnvironment processingEnvironment) {
+    ImmutableMap<ClassTree, ImmutableMap<MethodTree, DataflowOutputs>> expected =
+        analyse(
+            compilationUnitTree, processingEnvironment, DataflowOutputs.Engine.CHECKER_FRAMEWORK);
+    ImmutableMap<ClassTree, ImmutableMap<MethodTree, DataflowOutputs>> actual =
+        analyse(compilationUnitTree, processingEnvironment, DataflowOutputs.Engine.NATIVE);
+    int methods = 0;
+    ImmutableList.Builder<String> differences = ImmutableList.builder();
+    for (ClassTree classTree : expected.keySet()) {
+      for (MethodTree methodTree : expected.get(classTree).keySet()) {
+        methods++;
+        DataflowOutputs expectedOutputs = expected.get(classTree).get(methodTree);
+        DataflowOutputs actualOutputs = actual.get(classTree).get(methodTree);
+        String method = compilationUnitTree.getSourceFile().getName() + " " + methodTree.getName();
+        if (actualOutputs == null) {
+          differences.add(method + " was not analysed by the native engine");
+          continue;
+        }
+        for (Tree tree : analysedTrees(methodTree)) {
+          compare(
+              method + " last writes",
+              tree,
+              expectedOutputs.lastWrites,
+              actualOutputs.lastWrites,
+              differences);
+          compare(
+              method + " last uses",
+              tree,
+              expectedOutputs.lastUses,
+              actualOutputs.lastUses,
+              differences);
+        }
+      }
+    }
+    return new Comparison(methods, differences.build());
+  }
+
+  private static void compare(
+      String description,
+      Tree tree,
+      PossibleTreeSetResult expected,
+      PossibleTreeSetResult actual,
+      ImmutableList.Builder<String> differences) {
+    PossibleTreeSet expectedValue = expected.getValue(tree);
+    PossibleTreeSet actualValue = actual.getValue(tree);
+    if (expectedValue == null && actualValue == null) {
+      return;
+    }
+    if (expectedValue == null
+        || actualValue == null
+        || !expectedValue.nodes().equals(actualValue.nodes())) {
+      differences.add(
+          String.format(
+              "%s of %s:%d: expected [%s] but was [%s]",
+              description, tree, ((JCTree) tree).pos, expectedValue, actualValue));
+    }
+  }
+
+  private static ImmutableMap<ClassTree, ImmutableMap<MethodTree, DataflowOutputs>> analyse(
+      CompilationUnitTree compilationUnitTree,
+      ProcessingEnvironment processingEnvironment,
+      DataflowOutputs.Engine engine) {
+    return DataflowOutputs.create(
+        compilationUnitTree,
+        processingEnvironment,
+        engine,
+        DataflowOutputs.Budget.UNLIMITED,
+        null,
+        null,
+        null);
+  }
+
+  /**
+   * Returns the identifiers and variables of this method which the feature graph takes dataflow
+   * edges to, which leaves out those in the bodies of local and anonymous classes.
+   */
+  private static List<Tree> analysedTrees(MethodTree methodTree) {
+    List<Tree> trees = new ArrayList<>();
+    new TreeScanner<Void, Void>() {
+      @Override
+      public Void visitClass(ClassTree tree, Void unused) {
+        return null;
+      }
+
+      @Override
+      public Void visitIdentifier(IdentifierTree tree, Void unused) {
+        trees.add(tree);
+        return null;
+      }
+
+      @Override
+      public Void visitVariable(VariableTree tree, Void unused) {
+        trees.add(tree);
+        return super.visitVariable(tree, null);
+      }
+    }.scan(methodTree, null);
+    return trees;
+  }
+
+  public static void main(String[] args) throws IOException {
+    int runs = 5;
+    List<Path> sourceFiles = new ArrayList<>();
+    List<String> options = new ArrayList<>(Arrays.asList("-proc:none"));
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-runs") && i + 1 < args.length) {
+        runs = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--")) {
+        options.addAll(Arrays.asList(args).subList(i + 1, args.length));
+        break;
+      } else {
+        sourceFiles.addAll(javaFiles(Paths.get(args[i])));
+      }
+    }
+    if (sourceFiles.isEmpty() || runs < 2) {
+      System.err.println(
+          "Usage: DataflowEngineComparison [-runs N] SOURCE_FILE_OR_DIRECTORY..."
+              + " [-- JAVAC_OPTION...]");
+      System.exit(2);
+    }
+
+    JavacTool javacTool = JavacTool.create();
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+    StandardJavaFileManager fileManager = javacTool.getStandardFileManager(null, null, null);
+    JavacTask task =
+        javacTool.getTask(
+            null,
+            fileManager,
+            diagnostics,
+            options,
+            null,
+            fileManager.getJavaFileObjectsFromPaths(sourceFiles));
+    List<CompilationUnitTree> compilationUnits = new ArrayList<>();
+    task.parse().forEach(compilationUnits::add);
+    task.analyze();
+    boolean failed = false;
+    for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+      if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+        System.err.println(diagnostic);
+        failed = true;
+      }
+    }
+    if (failed) {
+      System.err.println("The corpus must compile without errors.");
+      System.exit(2);
+    }
+    ProcessingEnvironment processingEnvironment =
+        JavacProcessingEnvironment.instance(((BasicJavacTask) task).getContext());
+
+    DataflowOutputs.Engine[] engines = DataflowOutputs.Engine.values();
+    long[][] times = new long[engines.length][runs];
+    for (int run = 0; run < runs; run++) {
+      StringBuilder line = new StringBuilder("run " + (run + 1) + ":");
+      for (int i = 0; i < engines.length; i++) {
+        // Alternate which engine goes first so that neither always inherits the other's garbage.
+        int e = run % 2 == 0 ? i : engines.length - 1 - i;
+        long start = System.nanoTime();
+        for (CompilationUnitTree compilationUnit : compilationUnits) {
+          analyse(compilationUnit, processingEnvironment, engines[e]);
+        }
+        times[e][run] = (System.nanoTime() - start) / 1_000_000;
+        line.append(String.format(" %s %d ms", engines[e], times[e][run]));
+      }
+      System.out.println(line);
+    }
+    for (int e = 0; e < engines.length; e++) {
+      long[] measured = Arrays.copyOfRange(times[e], 1, runs);
+      Arrays.sort(measured);
+      System.out.printf(
+          "%s: median %d ms, min %d ms, max %d ms over %d runs%n",
+          engines[e],
+          measured[measured.length / 2],
+          measured[0],
+          measured[measured.length - 1],
+          measured.length);
+    }
+
+    int methods = 0;
+    int differences = 0;
+    for (CompilationUnitTree compilationUnit : compilationUnits) {
+      Comparison comparison = compare(compilationUnit, processingEnvironment);
+      methods += comparison.methods;
+      differences += comparison.differences.size();
+      comparison.differences.forEach(System.out::println);
+    }
+    System.out.printf(
+        "%d files, %d methods compared, %d differences%n",
+        compilationUnits.size(), methods, differences);
+    System.exit(differences == 0 ? 0 : 1);
+  }
+
+  private static List<Path> javaFiles(Path path) throws IOException {
+    try (Stream<Path> paths = Files.walk(path)) {
+      return paths
+          .filter(p -> p.toString().endsWith(".java") && Files.isRegularFile(p))
+          .sorted()
+          .collect(Collectors.toList());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+}
@@ -20,45 +20,225 @@ import static com.google.common.collect.ImmutableList.toImmutableList;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.errorprone.util.ErrorProneToken;
 import com.sun.source.tree.ClassTree;
 import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.MethodTree;
 import com.sun.source.tree.Tree;
+import com.sun.tools.javac.processing.JavacProcessingEnvironment;
+import java.nio.file.Path;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import javax.annotation.processing.ProcessingEnvironment;
 import org.checkerframework.dataflow.analysis.Analysis;
 import org.checkerframework.dataflow.analysis.AnalysisResult;
 import org.checkerframework.dataflow.cfg.CFGBuilder;
 import org.checkerframework.dataflow.cfg.ControlFlowGraph;
+import org.checkerframework.dataflow.cfg.block.Block;
+import org.checkerframework.dataflow.cfg.block.RegularBlock;
 
 public class DataflowOutputs {
 
-  public final AnalysisResult<PossibleTreeSet, PossibleTreeSetStore> lastWrites;
-  public final AnalysisResult<PossibleTreeSet, PossibleTreeSetStore> lastUses;
+  /** The implementation of the last write and last use analysis. */
+  public enum Engine {
+    /** Run the analysis over the control flow graph built by the checker framework. */
+    CHECKER_FRAMEWORK,
+    /**
+     * Run the analysis over a compact control flow graph built by {@link DefUseAnalysis}, which
+     * also covers the methods the checker framework can't build a graph for.
+     */
+    NATIVE;
+
+    /**
+     * Parse the value of the plugin option, which defaults to CHECKER_FRAMEWORK if it is not set.
+     */
+    public static Engine fromOption(String value) {
+      if (value == null) {
+        return CHECKER_FRAMEWORK;
+      }
+      try {
+        return valueOf(value.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(
+            "Unknown dataflow engine " + value + ", expected checker_framework or native", e);
+      }
+    }
+  }
+
+  /** Limits on the work the analysis of one method may do before it is approximated instead. */
+  public static final class Budget {
+
+    public static final Budget UNLIMITED = new Budget(Integer.MAX_VALUE, Long.MAX_VALUE);
+
+    /**
+     * The most nodes in the control flow graph of a method. For the native engine this is the
+     * number of instructions, of which there are fewer than checker framework nodes.
+     */
+    final int maxNodes;
+    /**
+     * The most times the analysis may apply its transfer function to a node to reach a fixpoint.
+     */
+    final long maxVisits;
+
+    public Budget(int maxNodes, long maxVisits) {
+      this.maxNodes = maxNodes;
+      this.maxVisits = maxVisits;
+    }
+
+    /**
+     * Parse the values of the plugin options, either of which may be unset to leave it unlimited.
+     */
+    public static Budget fromOptions(String maxNodes, String maxVisits) {
+      try {
+        return new Budget(
+            maxNodes == null ? Integer.MAX_VALUE : Integer.parseInt(maxNodes),
+            maxVisits == null ? Long.MAX_VALUE : Long.parseLong(maxVisits));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException(
+            "Invalid dataflow budget " + maxNodes + " nodes, " + maxVisits + " visits", e);
+      }
+    }
+  }
+
+  /** Thrown from within the analysis of a method once it exceeds its budget. */
+  static final class OverBudgetException extends RuntimeException {
+
+    OverBudgetException() {
+      // The stack trace is never looked at so don't pay for filling it in.
+      super(null, null, false, false);
+    }
+  }
+
+  public final PossibleTreeSetResult lastWrites;
+  public final PossibleTreeSetResult lastUses;
+  /**
+   * True if the analysis was over budget and these results come from {@link
+   * LexicalLastWriteAndUse}, which ignores control flow.
+   */
+  public final boolean approximated;
 
   private DataflowOutputs(
-      AnalysisResult<PossibleTreeSet, PossibleTreeSetStore> lastWrites,
-      AnalysisResult<PossibleTreeSet, PossibleTreeSetStore> lastUses) {
+      PossibleTreeSetResult lastWrites, PossibleTreeSetResult lastUses, boolean approximated) {
     this.lastWrites = lastWrites;
     this.lastUses = lastUses;
+    this.approximated = approximated;
   }
 
-  /** Run the dataflow analysis on this compilation unit. */
+  /**
+   * Run the dataflow analysis on this compilation unit.
+   *
+   * <p>If a pool is given then the analyses of the methods run in it, otherwise they run on this
+   * thread. The control flow graphs and the analysis objects are always created on this thread
+   * since that uses javac's types and symbol tables, which aren't thread safe. Running an analysis
+   * in the pool only walks its own graph, calls the transfer function and reads the trees.
+   *
+   * <p>The checker framework fails to build a graph for some methods and these are left out of the
+   * results. The native engine analyses every method.
+   *
+   * <p>The results for a method whose graph or fixpoint iteration is larger than the budget allows
+   * are approximated in source order instead. The graph is still built, but building is linear in
+   * the size of the method and it is the iteration that can take minutes.
+   *
+   * <p>If a cache directory is given then the results of each method are looked up in it first, and
+   * the results of the methods which had to be analysed are stored in it afterwards. The methods
+   * are keyed by the tokens of the compilation unit, which must be in position order.
+   */
   public static ImmutableMap<ClassTree, ImmutableMap<MethodTree, DataflowOutputs>> create(
-      CompilationUnitTree compilationUnitTree, ProcessingEnvironment processingEnvironment) {
+      CompilationUnitTree compilationUnitTree,
+      ProcessingEnvironment processingEnvironment,
+      Engine engine,
+      Budget budget,
+      Path cacheDirectory,
+      List<ErrorProneToken> tokens,
+      ForkJoinPool pool) {
 
-    ImmutableMap.Builder<ClassTree, ImmutableMap<MethodTree, DataflowOutputs>> result =
-        ImmutableMap.builder();
+    DefUseAnalysis.KnownTypes knownTypes =
+        engine == Engine.NATIVE ? new DefUseAnalysis.KnownTypes(processingEnvironment) : null;
+    DataflowCache cache =
+        cacheDirectory == null
+            ? null
+            : new DataflowCache(
+                cacheDirectory,
+                ((JavacProcessingEnvironment) processingEnvironment).getContext(),
+                tokens);
+    String configuration = engine + " " + budget.maxNodes + " " + budget.maxVisits;
+    // The keys of the methods which weren't in the cache.
+    Map<MethodTree, String> misses = new IdentityHashMap<>();
+    Map<ClassTree, Map<MethodTree, ForkJoinTask<DataflowOutputs>>> tasks = new LinkedHashMap<>();
     for (ClassTree classTree : getClasses(compilationUnitTree)) {
-      ImmutableMap.Builder<MethodTree, DataflowOutputs> methodResult = ImmutableMap.builder();
+      Map<MethodTree, ForkJoinTask<DataflowOutputs>> methodTasks = new LinkedHashMap<>();
       for (MethodTree methodTree : getMethods(classTree)) {
-        Optional<DataflowOutputs> results =
-            DataflowOutputs.createForMethod(
-                compilationUnitTree, classTree, methodTree, processingEnvironment);
-        results.ifPresent(r -> methodResult.put(methodTree, r));
+        DataflowOutputs cached = null;
+        if (cache != null) {
+          String key = cache.key(compilationUnitTree, methodTree, configuration);
+          cached = cache.get(key, methodTree);
+          if (cached == null) {
+            misses.put(methodTree, key);
+          }
+        }
+        Callable<DataflowOutputs> analysis;
+        if (cached != null) {
+          DataflowOutputs hit = cached;
+          analysis = () -> hit;
+        } else if (engine == Engine.NATIVE) {
+          DefUseAnalysis defUseAnalysis = DefUseAnalysis.create(methodTree, knownTypes);
+          analysis = () -> withinBudget(methodTree, () -> analyseNatively(defUseAnalysis, budget));
+        } else {
+          Optional<ControlFlowGraph> controlFlowGraph =
+              buildControlFlowGraph(
+                  compilationUnitTree, classTree, methodTree, processingEnvironment);
+          if (!controlFlowGraph.isPresent()) {
+            continue;
+          }
+          // Both analyses run as one over the product of their lattices so the graph is only
+          // walked once.
+          Analysis<PossibleTreeSetPair, PossibleTreeSetStorePair, LastWriteAndUseTransferFunction>
+              checkerAnalysis =
+                  new Analysis<>(
+                      new LastWriteAndUseTransferFunction(
+                          TreeNumbering.create(methodTree, controlFlowGraph.get()),
+                          budget.maxVisits),
+                      processingEnvironment);
+          analysis =
+              () ->
+                  withinBudget(
+                      methodTree, () -> analyse(checkerAnalysis, controlFlowGraph.get(), budget));
+        }
+        ForkJoinTask<DataflowOutputs> task = ForkJoinTask.adapt(analysis);
+        if (pool == null) {
+          task.invoke();
+        } else {
+          pool.execute(task);
+        }
+        methodTasks.put(methodTree, task);
       }
-      result.put(classTree, methodResult.build());
+      tasks.put(classTree, methodTasks);
     }
+
+    ImmutableMap.Builder<ClassTree, ImmutableMap<MethodTree, DataflowOutputs>> result =
+        ImmutableMap.builder();
+    tasks.forEach(
+        (classTree, methodTasks) -> {
+          ImmutableMap.Builder<MethodTree, DataflowOutputs> methodResult = ImmutableMap.builder();
+          methodTasks.forEach(
+              (methodTree, task) -> {
+                DataflowOutputs outputs = task.join();
+                if (misses.containsKey(methodTree)) {
+                  cache.put(misses.get(methodTree), methodTree, outputs);
+                }
+                methodResult.put(methodTree, outputs);
+              });
+          result.put(classTree, methodResult.build());
+        });
     return result.build();
   }
 
@@ -76,33 +256,70 @@ public class DataflowOutputs {
         .collect(toImmutableList());
   }
 
-  private static Optional<DataflowOutputs> createForMethod(
+  private static Optional<ControlFlowGraph> buildControlFlowGraph(
       CompilationUnitTree compilationUnitTree,
       ClassTree classTree,
       MethodTree methodTree,
       ProcessingEnvironment processingEnvironment) {
-
-    ControlFlowGraph controlFlowGraph;
     try {
-      controlFlowGraph =
-          CFGBuilder.build(compilationUnitTree, methodTree, classTree, processingEnvironment);
+      return Optional.of(
+          CFGBuilder.build(compilationUnitTree, methodTree, classTree, processingEnvironment));
     } catch (NullPointerException e) {
       return Optional.empty();
     }
+  }
 
-    LastWriteTransferFunction lastWriteTransferFunction = new LastWriteTransferFunction();
-    Analysis<PossibleTreeSet, PossibleTreeSetStore, LastWriteTransferFunction> lastWriteAnalysis =
-        new Analysis<>(lastWriteTransferFunction, processingEnvironment);
-    lastWriteAnalysis.performAnalysis(controlFlowGraph);
-    AnalysisResult<PossibleTreeSet, PossibleTreeSetStore> lastWrites =
-        lastWriteAnalysis.getResult();
+  /** Runs this analysis, or approximates its results if it goes over budget. */
+  private static DataflowOutputs withinBudget(
+      MethodTree methodTree, Supplier<DataflowOutputs> analysis) {
+    try {
+      return analysis.get();
+    } catch (OverBudgetException e) {
+      return fromValues(LexicalLastWriteAndUse.run(methodTree)::get, true);
+    }
+  }
 
-    LastUseTransferFunction lastUseTransferFunction = new LastUseTransferFunction();
-    Analysis<PossibleTreeSet, PossibleTreeSetStore, LastUseTransferFunction> lastUseAnalysis =
-        new Analysis<>(lastUseTransferFunction, processingEnvironment);
-    lastUseAnalysis.performAnalysis(controlFlowGraph);
-    AnalysisResult<PossibleTreeSet, PossibleTreeSetStore> lastUses = lastUseAnalysis.getResult();
+  private static DataflowOutputs analyse(
+      Analysis<PossibleTreeSetPair, PossibleTreeSetStorePair, LastWriteAndUseTransferFunction>
+          analysis,
+      ControlFlowGraph controlFlowGraph,
+      Budget budget) {
+    if (size(controlFlowGraph) > budget.maxNodes) {
+      throw new OverBudgetException();
+    }
+    analysis.performAnalysis(controlFlowGraph);
+    AnalysisResult<PossibleTreeSetPair, PossibleTreeSetStorePair> result = analysis.getResult();
+    return fromValues(result::getValue, false);
+  }
+
+  private static DataflowOutputs analyseNatively(DefUseAnalysis defUseAnalysis, Budget budget) {
+    if (defUseAnalysis.size() > budget.maxNodes) {
+      throw new OverBudgetException();
+    }
+    return fromValues(defUseAnalysis.run(budget.maxVisits)::get, false);
+  }
+
+  /** Returns the number of nodes in the graph, counting a block without any nodes as one. */
+  private static int size(ControlFlowGraph controlFlowGraph) {
+    int size = 0;
+    for (Block block : controlFlowGraph.getDepthFirstOrderedBlocks()) {
+      size += block instanceof RegularBlock ? ((RegularBlock) block).getContents().size() : 1;
+    }
+    return size;
+  }
 
-    return Optional.of(new DataflowOutputs(lastWrites, lastUses));
+  static DataflowOutputs fromValues(
+      Function<Tree, PossibleTreeSetPair> values, boolean approximated) {
+    PossibleTreeSetResult lastWrites =
+        tree -> {
+          PossibleTreeSetPair value = values.apply(tree);
+          return value == null ? null : value.lastWrites;
+        };
+    PossibleTreeSetResult lastUses =
+        tree -> {
+          PossibleTreeSetPair value = values.apply(tree);
+          return value == null ? null : value.lastUses;
+        };
+    return new DataflowOutputs(lastWrites, lastUses, approximated);
   }
 }
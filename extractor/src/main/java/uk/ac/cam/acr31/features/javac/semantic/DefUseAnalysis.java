@@ -0,0 +1,1570 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.semantic;
+
+import com.sun.source.tree.ArrayAccessTree;
+import com.sun.source.tree.AssertTree;
+import com.sun.source.tree.AssignmentTree;
+import com.sun.source.tree.BinaryTree;
+import com.sun.source.tree.BreakTree;
+import com.sun.source.tree.CaseTree;
+import com.sun.source.tree.CatchTree;
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompoundAssignmentTree;
+import com.sun.source.tree.ConditionalExpressionTree;
+import com.sun.source.tree.ContinueTree;
+import com.sun.source.tree.DoWhileLoopTree;
+import com.sun.source.tree.EnhancedForLoopTree;
+import com.sun.source.tree.ExpressionTree;
+import com.sun.source.tree.ForLoopTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.IfTree;
+import com.sun.source.tree.LabeledStatementTree;
+import com.sun.source.tree.LambdaExpressionTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.NewArrayTree;
+import com.sun.source.tree.NewClassTree;
+import com.sun.source.tree.ReturnTree;
+import com.sun.source.tree.StatementTree;
+import com.sun.source.tree.SwitchTree;
+import com.sun.source.tree.ThrowTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.TryTree;
+import com.sun.source.tree.TypeCastTree;
+import com.sun.source.tree.UnaryTree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.tree.WhileLoopTree;
+import com.sun.source.util.TreeScanner;
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeInfo;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ReferenceType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+/**
+ * Finds the last writes and last uses of the local variables of one method without building a
+ * checker framework control flow graph.
+ *
+ * <p>The method body is translated into a flat program whose only instructions are the uses and
+ * writes of local variables and the control flow between them, and the analysis then runs over the
+ * basic blocks of that program. The results are the same as {@link LastWriteAndUseTransferFunction}
+ * gives over the checker framework graph, so the translation follows the choices the checker
+ * framework makes: which expressions might throw and where the exception goes, how finally blocks
+ * are copied and the order in which operands are evaluated. Variables are identified by name, as
+ * they are in {@link PossibleTreeSetStore}.
+ *
+ * <p>Translation numbers every tree the analysis can put in a set and uses javac, so it must happen
+ * on the compiling thread. The analysis itself only reads the program and can run anywhere.
+ */
+final class DefUseAnalysis {
+
+  /** Record the last writes and last uses of a variable and then make this tree its last use. */
+  private static final int USE = 0;
+  /** Make this tree the last write of a variable. */
+  private static final int WRITE = 1;
+  /** Control might continue at a label as well as at the next instruction. */
+  private static final int FORK = 2;
+  /** Control continues at a label. */
+  private static final int JUMP = 3;
+  /** Control continues at one of two labels. */
+  private static final int BRANCH = 4;
+  /** Control does not continue. */
+  private static final int STOP = 5;
+
+  private static final PossibleTreeSet EMPTY = new PossibleTreeSet();
+
+  private final TreeNumbering numbering;
+  private final int variableCount;
+  /** The variable and tree number of each parameter. */
+  private final int[] parameters;
+  /** Three ints for each instruction: the opcode and then two operands. */
+  private final int[] code;
+  /** The instruction each label is bound to, or -1 if the label is never bound. */
+  private final int[] labels;
+  /** The numbers of the uses whose value is converted to another type. */
+  private final BitSet converted;
+
+  private DefUseAnalysis(
+      TreeNumbering numbering,
+      int variableCount,
+      int[] parameters,
+      int[] code,
+      int[] labels,
+      BitSet converted) {
+    this.numbering = numbering;
+    this.variableCount = variableCount;
+    this.parameters = parameters;
+    this.code = code;
+    this.labels = labels;
+    this.converted = converted;
+  }
+
+  /** Translate the body of this method. */
+  static DefUseAnalysis create(MethodTree methodTree, KnownTypes knownTypes) {
+    return new Translator(methodTree, knownTypes).translate();
+  }
+
+  /** Returns the number of instructions in the program. */
+  int size() {
+    return code.length / 3;
+  }
+
+  /**
+   * Returns the last writes and last uses before each use of a variable which can be reached.
+   *
+   * @throws DataflowOutputs.OverBudgetException if reaching the fixpoint takes more than this many
+   *     instructions
+   */
+  Map<Tree, PossibleTreeSetPair> run(long maxVisits) {
+    int length = code.length / 3;
+
+    // Blocks start at the targets of labels and after the instructions which don't fall through.
+    BitSet starts = new BitSet(length);
+    starts.set(0);
+    for (int i = 0; i < length; i++) {
+      int op = code[3 * i];
+      if (op == JUMP || op == BRANCH || op == STOP) {
+        starts.set(i + 1);
+      }
+    }
+    for (int target : labels) {
+      if (target >= 0) {
+        starts.set(target);
+      }
+    }
+    int[] blockStarts = new int[starts.cardinality() + 1];
+    int[] blockOf = new int[length];
+    int blockCount = 0;
+    for (int i = 0; i < length; i++) {
+      if (starts.get(i)) {
+        blockStarts[blockCount++] = i;
+      }
+      blockOf[i] = blockCount - 1;
+    }
+    blockStarts[blockCount] = length;
+    int[] labelBlocks = new int[labels.length];
+    for (int label = 0; label < labels.length; label++) {
+      labelBlocks[label] = labels[label] < 0 ? -1 : blockOf[labels[label]];
+    }
+
+    PossibleTreeSet[] writes = new PossibleTreeSet[variableCount];
+    PossibleTreeSet[] uses = new PossibleTreeSet[variableCount];
+    Arrays.fill(writes, EMPTY);
+    Arrays.fill(uses, EMPTY);
+    for (int i = 0; i < parameters.length; i += 2) {
+      writes[parameters[i]] = numbering.singleton(parameters[i + 1]);
+      uses[parameters[i]] = numbering.singleton(parameters[i + 1]);
+    }
+    Fixpoint fixpoint = new Fixpoint(blockCount, variableCount);
+    fixpoint.join(0, writes, uses);
+
+    PossibleTreeSetPair[] values = new PossibleTreeSetPair[length];
+    long visits = 0;
+    for (int block = fixpoint.next(); block >= 0; block = fixpoint.next()) {
+      visits += blockStarts[block + 1] - blockStarts[block];
+      if (visits > maxVisits) {
+        throw new DataflowOutputs.OverBudgetException();
+      }
+      System.arraycopy(fixpoint.entryWrites[block], 0, writes, 0, variableCount);
+      System.arraycopy(fixpoint.entryUses[block], 0, uses, 0, variableCount);
+      boolean fallsThrough = true;
+      for (int i = blockStarts[block]; i < blockStarts[block + 1]; i++) {
+        int first = code[3 * i + 1];
+        int second = code[3 * i + 2];
+        switch (code[3 * i]) {
+          case USE:
+            values[i] = new PossibleTreeSetPair(writes[first], uses[first]);
+            uses[first] = numbering.singleton(second);
+            break;
+          case WRITE:
+            writes[first] = numbering.singleton(second);
+            break;
+          case FORK:
+            fixpoint.join(labelBlocks[first], writes, uses);
+            break;
+          case JUMP:
+            fixpoint.join(labelBlocks[first], writes, uses);
+            fallsThrough = false;
+            break;
+          case BRANCH:
+            fixpoint.join(labelBlocks[first], writes, uses);
+            fixpoint.join(labelBlocks[second], writes, uses);
+            fallsThrough = false;
+            break;
+          default:
+            fallsThrough = false;
+            break;
+        }
+      }
+      if (fallsThrough && block + 1 < blockCount) {
+        fixpoint.join(block + 1, writes, uses);
+      }
+    }
+
+    // A tree is used more than once when it is in a finally block, which is copied onto each path
+    // out of the try statement. The checker framework looks a tree up in a set of its nodes which
+    // keeps the first node and then only those not equal to one it already has, and the copies of a
+    // variable are all equal. So the value of a tree is that of its first copy and, unless a
+    // conversion node took the second place, that of its second copy too.
+    Map<Tree, PossibleTreeSetPair> result = new IdentityHashMap<>();
+    BitSet seenOnce = new BitSet();
+    BitSet seenTwice = new BitSet();
+    for (int i = 0; i < length; i++) {
+      if (code[3 * i] != USE) {
+        continue;
+      }
+      int number = code[3 * i + 2];
+      if (!seenOnce.get(number)) {
+        seenOnce.set(number);
+      } else if (!converted.get(number) && !seenTwice.get(number)) {
+        seenTwice.set(number);
+      } else {
+        continue;
+      }
+      if (values[i] != null) {
+        result.merge(numbering.tree(number), values[i], PossibleTreeSetPair::leastUpperBound);
+      }
+    }
+    return result;
+  }
+
+  /** The stores on entry to each block and the blocks whose entry stores have changed. */
+  private static final class Fixpoint {
+
+    private final PossibleTreeSet[][] entryWrites;
+    private final PossibleTreeSet[][] entryUses;
+    private final BitSet worklist = new BitSet();
+    private final int variableCount;
+
+    Fixpoint(int blockCount, int variableCount) {
+      this.entryWrites = new PossibleTreeSet[blockCount][];
+      this.entryUses = new PossibleTreeSet[blockCount][];
+      this.variableCount = variableCount;
+    }
+
+    /** Returns the earliest block waiting to be analysed, or -1 when the fixpoint is reached. */
+    int next() {
+      int block = worklist.nextSetBit(0);
+      if (block >= 0) {
+        worklist.clear(block);
+      }
+      return block;
+    }
+
+    /** Merge these stores into the entry of a block and queue the block if they changed it. */
+    void join(int block, PossibleTreeSet[] writes, PossibleTreeSet[] uses) {
+      if (block < 0) {
+        return;
+      }
+      if (entryWrites[block] == null) {
+        entryWrites[block] = writes.clone();
+        entryUses[block] = uses.clone();
+        worklist.set(block);
+        return;
+      }
+      if (joinInto(entryWrites[block], writes) | joinInto(entryUses[block], uses)) {
+        worklist.set(block);
+      }
+    }
+
+    private boolean joinInto(PossibleTreeSet[] entry, PossibleTreeSet[] incoming) {
+      boolean changed = false;
+      for (int variable = 0; variable < variableCount; variable++) {
+        PossibleTreeSet joined = entry[variable].leastUpperBound(incoming[variable]);
+        if (joined != entry[variable]) {
+          entry[variable] = joined;
+          changed = true;
+        }
+      }
+      return changed;
+    }
+  }
+
+  /** The types and classes the translation asks about, looked up once for a compilation unit. */
+  static final class KnownTypes {
+
+    private static final String TERMINATES_EXECUTION =
+        "org.checkerframework.dataflow.qual.TerminatesExecution";
+
+    private final Types types;
+    private final TypeMirror throwable;
+    private final TypeMirror nullPointerException;
+    private final TypeMirror arithmeticException;
+    private final TypeMirror classCastException;
+    private final TypeMirror arrayIndexOutOfBoundsException;
+    private final TypeMirror assertionError;
+    private final TypeMirror iterable;
+    private final Element string;
+    private final Element booleanBox;
+    private final Element enumClass;
+    private final Set<Element> boxes = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    KnownTypes(ProcessingEnvironment processingEnvironment) {
+      Elements elements = processingEnvironment.getElementUtils();
+      this.types = processingEnvironment.getTypeUtils();
+      this.throwable = typeOf(elements, "java.lang.Throwable");
+      this.nullPointerException = typeOf(elements, "java.lang.NullPointerException");
+      this.arithmeticException = typeOf(elements, "java.lang.ArithmeticException");
+      this.classCastException = typeOf(elements, "java.lang.ClassCastException");
+      this.arrayIndexOutOfBoundsException =
+          typeOf(elements, "java.lang.ArrayIndexOutOfBoundsException");
+      this.assertionError = typeOf(elements, "java.lang.AssertionError");
+      this.iterable = types.erasure(typeOf(elements, "java.lang.Iterable"));
+      this.string = elements.getTypeElement("java.lang.String");
+      this.booleanBox = elements.getTypeElement("java.lang.Boolean");
+      this.enumClass = elements.getTypeElement("java.lang.Enum");
+      for (String box :
+          List.of("Boolean", "Byte", "Character", "Short", "Integer", "Long", "Float", "Double")) {
+        boxes.add(elements.getTypeElement("java.lang." + box));
+      }
+    }
+
+    private static TypeMirror typeOf(Elements elements, String name) {
+      return elements.getTypeElement(name).asType();
+    }
+
+    private boolean isBoxed(TypeMirror type) {
+      return type != null
+          && type.getKind() == TypeKind.DECLARED
+          && boxes.contains(((DeclaredType) type).asElement());
+    }
+
+    private boolean isDeclaredOf(TypeMirror type, Element element) {
+      return type != null
+          && type.getKind() == TypeKind.DECLARED
+          && ((DeclaredType) type).asElement() == element;
+    }
+
+    /** Returns the kind of the type, after unboxing it if it is a box. */
+    private TypeKind unboxedKind(TypeMirror type) {
+      return isBoxed(type) ? types.unboxedType(type).getKind() : type.getKind();
+    }
+
+    private boolean isNumeric(TypeKind kind) {
+      switch (kind) {
+        case BYTE:
+        case CHAR:
+        case SHORT:
+        case INT:
+        case LONG:
+        case FLOAT:
+        case DOUBLE:
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    private boolean isBooleanType(TypeMirror type) {
+      return type != null && (type.getKind() == TypeKind.BOOLEAN || isDeclaredOf(type, booleanBox));
+    }
+
+    private boolean terminatesExecution(Element method) {
+      for (AnnotationMirror annotation : method.getAnnotationMirrors()) {
+        TypeElement annotationType = (TypeElement) annotation.getAnnotationType().asElement();
+        if (annotationType.getQualifiedName().contentEquals(TERMINATES_EXECUTION)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /** Translates a method body into a program, one statement or expression at a time. */
+  private static final class Translator extends TreeScanner<Void, Void> {
+
+    private final MethodTree methodTree;
+    private final KnownTypes known;
+    private final Types types;
+    private final TreeNumbering numbering;
+    private final Map<Name, Integer> variables = new HashMap<>();
+
+    private int[] code = new int[96];
+    private int codeLength = 0;
+    private int[] labels = new int[16];
+    private int labelCount = 0;
+
+    /** The enclosing try statements, innermost first. */
+    private final Deque<Frame> frames = new ArrayDeque<>();
+    /** The labels an exception of each type might go to from within the current frames. */
+    private final Map<TypeMirror, int[]> routes = new IdentityHashMap<>();
+    /** The labels which have been forked to since the store last changed. */
+    private final BitSet forked = new BitSet();
+    /** The numbers of the uses whose value is converted to another type. */
+    private final BitSet converted = new BitSet();
+
+    private LabelCell returnTarget;
+    private LabelCell breakTarget;
+    private LabelCell continueTarget;
+    private ScopeMap breakLabels = new ScopeMap(false);
+    private ScopeMap continueLabels = new ScopeMap(false);
+    /** The label of the labeled statement around the loop about to be translated. */
+    private Name loopLabel;
+
+    Translator(MethodTree methodTree, KnownTypes known) {
+      this.methodTree = methodTree;
+      this.known = known;
+      this.types = known.types;
+      this.numbering = TreeNumbering.create(methodTree);
+    }
+
+    DefUseAnalysis translate() {
+      List<? extends VariableTree> parameterTrees = methodTree.getParameters();
+      int[] parameters = new int[2 * parameterTrees.size()];
+      for (int i = 0; i < parameterTrees.size(); i++) {
+        VariableTree parameter = parameterTrees.get(i);
+        parameters[2 * i] = variable(parameter.getName());
+        parameters[2 * i + 1] = numbering.number(parameter);
+      }
+      int exit = newLabel();
+      returnTarget = new LabelCell(exit);
+      scan(methodTree.getBody(), null);
+      bind(exit);
+      emit(STOP, 0, 0);
+      return new DefUseAnalysis(
+          numbering,
+          variables.size(),
+          parameters,
+          Arrays.copyOf(code, 3 * codeLength),
+          Arrays.copyOf(labels, labelCount),
+          converted);
+    }
+
+    // Emitting the program
+
+    private void emit(int op, int first, int second) {
+      if (3 * codeLength + 3 > code.length) {
+        code = Arrays.copyOf(code, 2 * code.length);
+      }
+      code[3 * codeLength] = op;
+      code[3 * codeLength + 1] = first;
+      code[3 * codeLength + 2] = second;
+      codeLength++;
+      if (op != FORK && !forked.isEmpty()) {
+        forked.clear();
+      }
+    }
+
+    private int variable(Name name) {
+      return variables.computeIfAbsent(name, n -> variables.size());
+    }
+
+    private void use(Name name, Tree tree) {
+      emit(USE, variable(name), numbering.number(tree));
+    }
+
+    private void write(Name name, Tree tree) {
+      emit(WRITE, variable(name), numbering.number(tree));
+    }
+
+    private int newLabel() {
+      if (labelCount == labels.length) {
+        labels = Arrays.copyOf(labels, 2 * labels.length);
+      }
+      labels[labelCount] = -1;
+      return labelCount++;
+    }
+
+    private void bind(int label) {
+      labels[label] = codeLength;
+      if (!forked.isEmpty()) {
+        forked.clear();
+      }
+    }
+
+    private void jump(int label) {
+      if (label < 0) {
+        emit(STOP, 0, 0);
+      } else {
+        emit(JUMP, label, 0);
+      }
+    }
+
+    private void branch(int first, int second) {
+      emit(BRANCH, first, second);
+    }
+
+    // Exceptions
+
+    /** The expression just translated might throw an exception of this type. */
+    private void mayThrow(TypeMirror type) {
+      if (frames.isEmpty()) {
+        // Nothing can be caught so the exception leaves the method.
+        return;
+      }
+      for (int label : routes(type)) {
+        if (!forked.get(label)) {
+          emit(FORK, label, 0);
+          forked.set(label);
+        }
+      }
+    }
+
+    /** The expression just translated always throws an exception of this type. */
+    private void alwaysThrows(TypeMirror type) {
+      mayThrow(type);
+      emit(STOP, 0, 0);
+    }
+
+    /** Unboxing the value of the expression just translated might throw if it is a box. */
+    private void unbox(TypeMirror type) {
+      if (known.isBoxed(type)) {
+        mayThrow(known.nullPointerException);
+        mayThrow(known.throwable);
+      }
+    }
+
+    /** Converting the value of the expression just translated might throw. */
+    private void convert(TypeMirror from, TypeMirror to) {
+      if (from == null || to == null) {
+        return;
+      }
+      if (from.getKind().isPrimitive() && to instanceof ReferenceType) {
+        // Boxing calls valueOf.
+        mayThrow(known.throwable);
+      } else if (known.isBoxed(from) && to.getKind().isPrimitive()) {
+        unbox(from);
+      }
+    }
+
+    /** The promotion of a branch of a conditional expression to the type of the expression. */
+    private void promote(TypeMirror from, TypeMirror to) {
+      if (from == null || to == null || types.isSameType(from, to)) {
+        return;
+      }
+      if (from.getKind().isPrimitive() && known.isBoxed(to)) {
+        mayThrow(known.throwable);
+      } else if (known.isNumeric(known.unboxedKind(from))
+          && known.isNumeric(known.unboxedKind(to))) {
+        unbox(from);
+      } else if (from.getKind().isPrimitive()
+          && (to.getKind() == TypeKind.DECLARED
+              || to.getKind() == TypeKind.UNION
+              || to.getKind() == TypeKind.INTERSECTION)) {
+        mayThrow(known.throwable);
+      }
+    }
+
+    // Conversions, which only matter for the copies of a finally block
+
+    /** The value of this operand is converted, so it stands for two nodes in the lookup. */
+    private void converted(ExpressionTree operand) {
+      JCTree.JCExpression expression = TreeInfo.skipParens((JCTree.JCExpression) operand);
+      if (expression.getKind() == Tree.Kind.IDENTIFIER && isLocal(expression)) {
+        converted.set(numbering.number(expression));
+      }
+    }
+
+    /** Assigning this operand to a variable of the type widens or narrows a primitive value. */
+    private void assignmentConversion(ExpressionTree operand, TypeMirror to) {
+      TypeMirror from = typeOf(operand);
+      if (from != null
+          && to != null
+          && from.getKind().isPrimitive()
+          && (to.getKind().isPrimitive() || known.isBoxed(to))
+          && known.unboxedKind(to) != from.getKind()) {
+        converted(operand);
+      }
+    }
+
+    /** Byte, short and char values are widened to int. */
+    private void unaryPromotion(ExpressionTree operand) {
+      TypeMirror type = typeOf(operand);
+      if (type != null && known.isNumeric(type.getKind())) {
+        binaryPromotion(operand, promotedKind(type, type));
+      }
+    }
+
+    private void binaryPromotion(ExpressionTree operand, TypeKind promoted) {
+      TypeMirror type = typeOf(operand);
+      if (type != null && type.getKind().isPrimitive() && type.getKind() != promoted) {
+        converted(operand);
+      }
+    }
+
+    private void stringConversion(ExpressionTree operand) {
+      if (!known.isDeclaredOf(typeOf(operand), known.string)) {
+        converted(operand);
+      }
+    }
+
+    /** The kind both operands of a numeric operator are promoted to. */
+    private TypeKind promotedKind(TypeMirror left, TypeMirror right) {
+      TypeKind leftKind = known.unboxedKind(left);
+      TypeKind rightKind = known.unboxedKind(right);
+      for (TypeKind kind : List.of(TypeKind.DOUBLE, TypeKind.FLOAT, TypeKind.LONG)) {
+        if (leftKind == kind || rightKind == kind) {
+          return kind;
+        }
+      }
+      return TypeKind.INT;
+    }
+
+    private int[] routes(TypeMirror thrown) {
+      int[] result = routes.get(thrown);
+      if (result == null) {
+        TypeMirror type = thrown;
+        while (type.getKind() == TypeKind.TYPEVAR) {
+          type = ((TypeVariable) type).getUpperBound();
+        }
+        List<Integer> targets = new ArrayList<>();
+        for (Frame frame : frames) {
+          if (frame.route(type, targets)) {
+            break;
+          }
+        }
+        result = targets.stream().mapToInt(Integer::intValue).toArray();
+        routes.put(thrown, result);
+      }
+      return result;
+    }
+
+    private void pushFrame(Frame frame) {
+      frames.push(frame);
+      routes.clear();
+    }
+
+    private void popFrame() {
+      frames.pop();
+      routes.clear();
+    }
+
+    /** An enclosing try statement, seen from its try block or from its catch blocks. */
+    private final class Frame {
+
+      /** The types caught by each catch block, or null when only the finally block is left. */
+      private final List<TypeMirror> caught;
+      /** The label of each catch block, or just the label of the finally block. */
+      private final int[] targets;
+      /** Whether an exception might go to the finally block. */
+      private boolean usesFinally;
+
+      Frame(List<TypeMirror> caught, int[] targets) {
+        this.caught = caught;
+        this.targets = targets;
+      }
+
+      /** Add the labels an exception might go to and return true if it can't go any further. */
+      boolean route(TypeMirror thrown, List<Integer> result) {
+        if (caught == null) {
+          usesFinally = true;
+          result.add(targets[0]);
+          return true;
+        }
+        for (int i = 0; i < caught.size(); i++) {
+          TypeMirror type = caught.get(i);
+          if (types.isSubtype(thrown, type)) {
+            result.add(targets[i]);
+            return true;
+          }
+          if (types.isSubtype(type, thrown)) {
+            result.add(targets[i]);
+          }
+        }
+        return false;
+      }
+    }
+
+    // Expressions
+
+    @Override
+    public Void visitIdentifier(IdentifierTree tree, Void unused) {
+      Symbol symbol = ((JCTree.JCIdent) tree).sym;
+      if (symbol != null && isLocal(symbol)) {
+        use(tree.getName(), tree);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitMemberSelect(MemberSelectTree tree, Void unused) {
+      scan(tree.getExpression(), null);
+      Symbol symbol = ((JCTree.JCFieldAccess) tree).sym;
+      if (symbol != null
+          && symbol.getKind().isField()
+          && !isStatic(symbol)
+          && !isThis(tree.getExpression())) {
+        mayThrow(known.nullPointerException);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitMethodInvocation(MethodInvocationTree tree, Void unused) {
+      Symbol method = TreeInfo.symbol(((JCTree.JCMethodInvocation) tree).meth);
+      if (!(method instanceof Symbol.MethodSymbol)) {
+        // Only a call javac couldn't attribute has no method symbol. Such a file didn't compile, so
+        // nothing in the call is analysed rather than guessing at what it does.
+        return null;
+      }
+      ExpressionTree select = tree.getMethodSelect();
+      if (select.getKind() == Tree.Kind.MEMBER_SELECT) {
+        ExpressionTree receiver = ((MemberSelectTree) select).getExpression();
+        scan(receiver, null);
+        if (!isStatic(method) && !isThis(receiver)) {
+          mayThrow(known.nullPointerException);
+        }
+      }
+      boolean enumSuper =
+          method.getKind() == ElementKind.CONSTRUCTOR && method.owner == known.enumClass;
+      if (!enumSuper) {
+        arguments((Symbol.MethodSymbol) method, tree.getArguments());
+      }
+      // Throwable covers the declared exceptions too since every handler of those also catches it.
+      mayThrow(known.throwable);
+      if (known.terminatesExecution(method)) {
+        emit(STOP, 0, 0);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitNewClass(NewClassTree tree, Void unused) {
+      scan(tree.getEnclosingExpression(), null);
+      Symbol constructor = ((JCTree.JCNewClass) tree).constructor;
+      if (constructor instanceof Symbol.MethodSymbol) {
+        arguments((Symbol.MethodSymbol) constructor, tree.getArguments());
+      } else {
+        scan(tree.getArguments(), null);
+      }
+      // The body of an anonymous class is analysed on its own, if at all.
+      mayThrow(known.throwable);
+      return null;
+    }
+
+    /** The arguments of a call, converted to the types of the parameters in order. */
+    private void arguments(Symbol.MethodSymbol method, List<? extends ExpressionTree> arguments) {
+      List<? extends VariableElement> parameters = method.getParameters();
+      int last = parameters.size() - 1;
+      boolean packed =
+          method.isVarArgs()
+              && !(arguments.size() == parameters.size()
+                  && types.isAssignable(
+                      typeOf(arguments.get(last)), parameters.get(last).asType()));
+      for (int i = 0; i < arguments.size(); i++) {
+        ExpressionTree argument = arguments.get(i);
+        scan(argument, null);
+        TypeMirror parameterType = null;
+        if (packed && i >= last) {
+          parameterType = ((ArrayType) parameters.get(last).asType()).getComponentType();
+        } else if (i < parameters.size()) {
+          parameterType = parameters.get(i).asType();
+        }
+        convert(typeOf(argument), parameterType);
+        assignmentConversion(argument, parameterType);
+      }
+    }
+
+    @Override
+    public Void visitAssignment(AssignmentTree tree, Void unused) {
+      ExpressionTree variable = tree.getVariable();
+      ExpressionTree expression = tree.getExpression();
+      if (isFieldAccess(variable)) {
+        // The receiver is evaluated first but the access can only fail once the value is known.
+        ExpressionTree receiver = null;
+        if (variable.getKind() == Tree.Kind.MEMBER_SELECT) {
+          receiver = ((MemberSelectTree) variable).getExpression();
+          scan(receiver, null);
+        }
+        scan(expression, null);
+        convert(typeOf(expression), typeOf(variable));
+        assignmentConversion(expression, typeOf(variable));
+        if (receiver != null && !isStatic(symbolOf(variable)) && !isThis(receiver)) {
+          mayThrow(known.nullPointerException);
+        }
+        return null;
+      }
+      // A local variable being assigned to isn't a use of it, though an array being indexed is.
+      if (!isLocal(TreeInfo.skipParens((JCTree.JCExpression) variable))) {
+        scan(variable, null);
+      }
+      scan(expression, null);
+      convert(typeOf(expression), typeOf(variable));
+      assignmentConversion(expression, typeOf(variable));
+      writeTarget(variable);
+      return null;
+    }
+
+    @Override
+    public Void visitCompoundAssignment(CompoundAssignmentTree tree, Void unused) {
+      ExpressionTree variable = tree.getVariable();
+      ExpressionTree expression = tree.getExpression();
+      TypeMirror variableType = typeOf(variable);
+      TypeMirror expressionType = typeOf(expression);
+      boolean unboxes = true;
+      switch (tree.getKind()) {
+        case PLUS_ASSIGNMENT:
+        case MINUS_ASSIGNMENT:
+          if (known.isDeclaredOf(variableType, known.string)
+              || known.isDeclaredOf(expressionType, known.string)) {
+            // String concatenation isn't an assignment as far as the analysis is concerned.
+            scan(variable, null);
+            scan(expression, null);
+            stringConversion(variable);
+            stringConversion(expression);
+            return null;
+          }
+          break;
+        case AND_ASSIGNMENT:
+        case OR_ASSIGNMENT:
+        case XOR_ASSIGNMENT:
+          unboxes =
+              (known.isNumeric(known.unboxedKind(variableType))
+                      && known.isNumeric(known.unboxedKind(expressionType)))
+                  || (known.isBooleanType(variableType) && known.isBooleanType(expressionType));
+          break;
+        default:
+          break;
+      }
+      // Both operands are evaluated before either is promoted.
+      scan(variable, null);
+      scan(expression, null);
+      if (unboxes) {
+        unbox(variableType);
+        unbox(expressionType);
+      }
+      promotion(tree.getKind(), variable, expression);
+      if ((tree.getKind() == Tree.Kind.DIVIDE_ASSIGNMENT
+              || tree.getKind() == Tree.Kind.REMAINDER_ASSIGNMENT)
+          && isIntegralDivision(variableType, expressionType)) {
+        mayThrow(known.arithmeticException);
+      }
+      writeTarget(variable);
+      return null;
+    }
+
+    @Override
+    public Void visitBinary(BinaryTree tree, Void unused) {
+      ExpressionTree left = tree.getLeftOperand();
+      ExpressionTree right = tree.getRightOperand();
+      Tree.Kind kind = tree.getKind();
+      if (kind == Tree.Kind.CONDITIONAL_AND || kind == Tree.Kind.CONDITIONAL_OR) {
+        scan(left, null);
+        int rightStart = newLabel();
+        int shortCircuit = newLabel();
+        branch(rightStart, shortCircuit);
+        bind(rightStart);
+        scan(right, null);
+        bind(shortCircuit);
+        return null;
+      }
+      TypeMirror leftType = typeOf(left);
+      TypeMirror rightType = typeOf(right);
+      boolean unboxes = binaryUnboxes(kind, leftType, rightType);
+      scan(left, null);
+      if (unboxes) {
+        unbox(leftType);
+      }
+      scan(right, null);
+      if (unboxes) {
+        unbox(rightType);
+      }
+      if (!unboxes && (kind == Tree.Kind.PLUS || kind == Tree.Kind.MINUS)) {
+        stringConversion(left);
+        stringConversion(right);
+      } else {
+        promotion(kind, left, right);
+      }
+      if ((kind == Tree.Kind.DIVIDE || kind == Tree.Kind.REMAINDER)
+          && isIntegralDivision(leftType, rightType)) {
+        mayThrow(known.arithmeticException);
+      }
+      return null;
+    }
+
+    /** Notes the conversions of the operands of a binary operator, or of a compound assignment. */
+    private void promotion(Tree.Kind kind, ExpressionTree left, ExpressionTree right) {
+      TypeMirror leftType = typeOf(left);
+      TypeMirror rightType = typeOf(right);
+      if (leftType == null
+          || rightType == null
+          || !known.isNumeric(known.unboxedKind(leftType))
+          || !known.isNumeric(known.unboxedKind(rightType))) {
+        return;
+      }
+      switch (kind) {
+        case LEFT_SHIFT:
+        case RIGHT_SHIFT:
+        case UNSIGNED_RIGHT_SHIFT:
+        case LEFT_SHIFT_ASSIGNMENT:
+        case RIGHT_SHIFT_ASSIGNMENT:
+        case UNSIGNED_RIGHT_SHIFT_ASSIGNMENT:
+          unaryPromotion(left);
+          unaryPromotion(right);
+          break;
+        default:
+          TypeKind promoted = promotedKind(leftType, rightType);
+          binaryPromotion(left, promoted);
+          binaryPromotion(right, promoted);
+          break;
+      }
+    }
+
+    /** Returns true if this operator unboxes its operands, or promotes them, which unboxes too. */
+    private boolean binaryUnboxes(Tree.Kind kind, TypeMirror leftType, TypeMirror rightType) {
+      switch (kind) {
+        case PLUS:
+        case MINUS:
+          return !known.isDeclaredOf(leftType, known.string)
+              && !known.isDeclaredOf(rightType, known.string);
+        case EQUAL_TO:
+        case NOT_EQUAL_TO:
+          // Two boxes are compared by reference.
+          return !(known.isBoxed(leftType) && known.isBoxed(rightType))
+              && ((known.isNumeric(known.unboxedKind(leftType))
+                      && known.isNumeric(known.unboxedKind(rightType)))
+                  || (known.isBooleanType(leftType) && known.isBooleanType(rightType)));
+        default:
+          return true;
+      }
+    }
+
+    @Override
+    public Void visitUnary(UnaryTree tree, Void unused) {
+      ExpressionTree expression = tree.getExpression();
+      scan(expression, null);
+      switch (tree.getKind()) {
+        case PREFIX_INCREMENT:
+        case PREFIX_DECREMENT:
+        case POSTFIX_INCREMENT:
+        case POSTFIX_DECREMENT:
+          // Unboxing the old value covers boxing the new one, since that can only throw Throwable.
+          unbox(typeOf(expression));
+          unaryPromotion(expression);
+          writeTarget(expression);
+          break;
+        case BITWISE_COMPLEMENT:
+        case UNARY_MINUS:
+        case UNARY_PLUS:
+          unbox(typeOf(expression));
+          unaryPromotion(expression);
+          break;
+        case LOGICAL_COMPLEMENT:
+          unbox(typeOf(expression));
+          break;
+        default:
+          break;
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitConditionalExpression(ConditionalExpressionTree tree, Void unused) {
+      scan(tree.getCondition(), null);
+      unbox(typeOf(tree.getCondition()));
+      int trueStart = newLabel();
+      int falseStart = newLabel();
+      branch(trueStart, falseStart);
+      bind(trueStart);
+      scan(tree.getTrueExpression(), null);
+      promote(typeOf(tree.getTrueExpression()), typeOf(tree));
+      assignmentConversion(tree.getTrueExpression(), typeOf(tree));
+      int merge = newLabel();
+      jump(merge);
+      bind(falseStart);
+      scan(tree.getFalseExpression(), null);
+      promote(typeOf(tree.getFalseExpression()), typeOf(tree));
+      assignmentConversion(tree.getFalseExpression(), typeOf(tree));
+      bind(merge);
+      return null;
+    }
+
+    @Override
+    public Void visitArrayAccess(ArrayAccessTree tree, Void unused) {
+      scan(tree.getExpression(), null);
+      scan(tree.getIndex(), null);
+      unbox(typeOf(tree.getIndex()));
+      unaryPromotion(tree.getIndex());
+      mayThrow(known.arrayIndexOutOfBoundsException);
+      mayThrow(known.nullPointerException);
+      return null;
+    }
+
+    @Override
+    public Void visitNewArray(NewArrayTree tree, Void unused) {
+      for (ExpressionTree dimension : tree.getDimensions()) {
+        scan(dimension, null);
+        unbox(typeOf(dimension));
+        unaryPromotion(dimension);
+      }
+      if (tree.getInitializers() != null) {
+        TypeMirror component = ((ArrayType) typeOf(tree)).getComponentType();
+        for (ExpressionTree initializer : tree.getInitializers()) {
+          scan(initializer, null);
+          convert(typeOf(initializer), component);
+          assignmentConversion(initializer, component);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitTypeCast(TypeCastTree tree, Void unused) {
+      scan(tree.getExpression(), null);
+      mayThrow(known.classCastException);
+      return null;
+    }
+
+    @Override
+    public Void visitLambdaExpression(LambdaExpressionTree tree, Void unused) {
+      // The body of a lambda isn't part of the control flow of the method.
+      return null;
+    }
+
+    @Override
+    public Void visitClass(ClassTree tree, Void unused) {
+      // Nor is a local class.
+      return null;
+    }
+
+    // Statements
+
+    @Override
+    public Void visitVariable(VariableTree tree, Void unused) {
+      ExpressionTree initializer = tree.getInitializer();
+      if (initializer != null) {
+        scan(initializer, null);
+        convert(typeOf(initializer), typeOf(tree));
+        assignmentConversion(initializer, typeOf(tree));
+        write(tree.getName(), tree);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitReturn(ReturnTree tree, Void unused) {
+      scan(tree.getExpression(), null);
+      jump(returnTarget.access());
+      return null;
+    }
+
+    @Override
+    public Void visitThrow(ThrowTree tree, Void unused) {
+      scan(tree.getExpression(), null);
+      alwaysThrows(typeOf(tree.getExpression()));
+      return null;
+    }
+
+    @Override
+    public Void visitAssert(AssertTree tree, Void unused) {
+      // Assertions might or might not be enabled.
+      int enabled = newLabel();
+      int end = newLabel();
+      branch(enabled, end);
+      bind(enabled);
+      scan(tree.getCondition(), null);
+      int failed = newLabel();
+      unbox(typeOf(tree.getCondition()));
+      branch(end, failed);
+      bind(failed);
+      scan(tree.getDetail(), null);
+      alwaysThrows(known.assertionError);
+      bind(end);
+      return null;
+    }
+
+    @Override
+    public Void visitIf(IfTree tree, Void unused) {
+      scan(tree.getCondition(), null);
+      unbox(typeOf(tree.getCondition()));
+      int thenStart = newLabel();
+      int elseStart = newLabel();
+      branch(thenStart, elseStart);
+      bind(thenStart);
+      scan(tree.getThenStatement(), null);
+      int end = newLabel();
+      jump(end);
+      bind(elseStart);
+      scan(tree.getElseStatement(), null);
+      bind(end);
+      return null;
+    }
+
+    @Override
+    public Void visitLabeledStatement(LabeledStatementTree tree, Void unused) {
+      Name name = tree.getLabel();
+      int breakLabel = newLabel();
+      breakLabels.labels.put(name, breakLabel);
+      continueLabels.labels.put(name, newLabel());
+      StatementTree statement = tree.getStatement();
+      switch (statement.getKind()) {
+        case WHILE_LOOP:
+        case DO_WHILE_LOOP:
+        case FOR_LOOP:
+        case ENHANCED_FOR_LOOP:
+          loopLabel = name;
+          break;
+        default:
+          break;
+      }
+      scan(statement, null);
+      bind(breakLabel);
+      breakLabels.labels.remove(name);
+      continueLabels.labels.remove(name);
+      return null;
+    }
+
+    /** Returns the label to continue this loop at, which is shared with a labeled statement. */
+    private int continueLabel() {
+      Name name = loopLabel;
+      loopLabel = null;
+      return name == null ? newLabel() : labelFor(continueLabels, name);
+    }
+
+    /** Translate a loop with these targets for break and continue statements. */
+    private void loop(int exit, int next, Runnable translation) {
+      LabelCell oldContinue = continueTarget;
+      continueTarget = new LabelCell(next);
+      withBreakTarget(exit, translation);
+      continueTarget = oldContinue;
+    }
+
+    /** Translate a loop or switch statement with this target for break statements. */
+    private void withBreakTarget(int exit, Runnable translation) {
+      LabelCell oldBreak = breakTarget;
+      breakTarget = new LabelCell(exit);
+      translation.run();
+      breakTarget = oldBreak;
+    }
+
+    @Override
+    public Void visitWhileLoop(WhileLoopTree tree, Void unused) {
+      int conditionStart = continueLabel();
+      int exit = newLabel();
+      loop(
+          exit,
+          conditionStart,
+          () -> {
+            bind(conditionStart);
+            scan(tree.getCondition(), null);
+            unbox(typeOf(tree.getCondition()));
+            int entry = newLabel();
+            branch(entry, exit);
+            bind(entry);
+            scan(tree.getStatement(), null);
+            jump(conditionStart);
+            bind(exit);
+          });
+      return null;
+    }
+
+    @Override
+    public Void visitDoWhileLoop(DoWhileLoopTree tree, Void unused) {
+      int conditionStart = continueLabel();
+      int exit = newLabel();
+      loop(
+          exit,
+          conditionStart,
+          () -> {
+            int entry = newLabel();
+            bind(entry);
+            scan(tree.getStatement(), null);
+            bind(conditionStart);
+            scan(tree.getCondition(), null);
+            unbox(typeOf(tree.getCondition()));
+            branch(entry, exit);
+            bind(exit);
+          });
+      return null;
+    }
+
+    @Override
+    public Void visitForLoop(ForLoopTree tree, Void unused) {
+      int updateStart = continueLabel();
+      int exit = newLabel();
+      loop(
+          exit,
+          updateStart,
+          () -> {
+            scan(tree.getInitializer(), null);
+            int conditionStart = newLabel();
+            bind(conditionStart);
+            int entry = newLabel();
+            if (tree.getCondition() != null) {
+              scan(tree.getCondition(), null);
+              unbox(typeOf(tree.getCondition()));
+              branch(entry, exit);
+            }
+            bind(entry);
+            scan(tree.getStatement(), null);
+            bind(updateStart);
+            scan(tree.getUpdate(), null);
+            jump(conditionStart);
+            bind(exit);
+          });
+      return null;
+    }
+
+    @Override
+    public Void visitEnhancedForLoop(EnhancedForLoopTree tree, Void unused) {
+      int updateStart = continueLabel();
+      int exit = newLabel();
+      loop(
+          exit,
+          updateStart,
+          () -> {
+            scan(tree.getExpression(), null);
+            int conditionStart = newLabel();
+            bind(conditionStart);
+            int entry = newLabel();
+            branch(entry, exit);
+            bind(entry);
+            nextElement(tree.getVariable(), upperBound(typeOf(tree.getExpression())));
+            scan(tree.getStatement(), null);
+            bind(updateStart);
+            jump(conditionStart);
+            bind(exit);
+          });
+      return null;
+    }
+
+    /** Write the next element of an array or iterable to the variable of an enhanced for loop. */
+    private void nextElement(VariableTree variable, TypeMirror expressionType) {
+      if (types.isSubtype(expressionType, known.iterable)) {
+        // Calling next() on the iterator might throw before the variable is written.
+        mayThrow(known.nullPointerException);
+        mayThrow(known.throwable);
+        write(variable.getName(), variable);
+      } else {
+        // Reading the array element only throws after the variable is written.
+        if (expressionType.getKind() == TypeKind.ARRAY) {
+          convert(((ArrayType) expressionType).getComponentType(), typeOf(variable));
+        }
+        write(variable.getName(), variable);
+        mayThrow(known.nullPointerException);
+      }
+    }
+
+    @Override
+    public Void visitSwitch(SwitchTree tree, Void unused) {
+      int breakLabel = newLabel();
+      withBreakTarget(
+          breakLabel,
+          () -> {
+            scan(tree.getExpression(), null);
+            unbox(typeOf(tree.getExpression()));
+            switchCases(tree.getCases(), breakLabel);
+            bind(breakLabel);
+          });
+      return null;
+    }
+
+    private void switchCases(List<? extends CaseTree> cases, int breakLabel) {
+      int[] bodies = new int[cases.size() + 1];
+      for (int i = 0; i < cases.size(); i++) {
+        bodies[i] = newLabel();
+      }
+      bodies[cases.size()] = breakLabel;
+      // The default case is tested last wherever it is.
+      int defaultCase = -1;
+      for (int i = 0; i < cases.size(); i++) {
+        if (cases.get(i).getExpression() == null) {
+          defaultCase = i;
+        } else {
+          switchCase(cases.get(i), bodies[i], bodies[i + 1]);
+        }
+      }
+      if (defaultCase >= 0) {
+        switchCase(cases.get(defaultCase), bodies[defaultCase], bodies[defaultCase + 1]);
+      }
+    }
+
+    private void switchCase(CaseTree tree, int body, int nextBody) {
+      int nextCase = newLabel();
+      if (tree.getExpression() != null) {
+        scan(tree.getExpression(), null);
+        branch(body, nextCase);
+      }
+      bind(body);
+      scan(tree.getStatements(), null);
+      jump(nextBody);
+      bind(nextCase);
+    }
+
+    @Override
+    public Void visitBreak(BreakTree tree, Void unused) {
+      if (tree.getLabel() != null) {
+        jump(labelFor(breakLabels, tree.getLabel()));
+      } else {
+        jump(breakTarget == null ? -1 : breakTarget.access());
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitContinue(ContinueTree tree, Void unused) {
+      if (tree.getLabel() != null) {
+        jump(labelFor(continueLabels, tree.getLabel()));
+      } else {
+        jump(continueTarget == null ? -1 : continueTarget.access());
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitTry(TryTree tree, Void unused) {
+      List<? extends CatchTree> catches = tree.getCatches();
+      Tree finallyBlock = tree.getFinallyBlock();
+      LabelCell oldReturn = returnTarget;
+      LabelCell oldBreak = breakTarget;
+      LabelCell oldContinue = continueTarget;
+      ScopeMap oldBreakLabels = breakLabels;
+      ScopeMap oldContinueLabels = continueLabels;
+
+      // Resources are translated before the catch blocks can catch anything.
+      scan(tree.getResources(), null);
+
+      List<TypeMirror> caught = new ArrayList<>();
+      int[] catchLabels = new int[catches.size()];
+      for (int i = 0; i < catches.size(); i++) {
+        caught.add(typeOf(catches.get(i).getParameter().getType()));
+        catchLabels[i] = newLabel();
+      }
+      int done = newLabel();
+      int afterBody = done;
+      Frame finallyFrame = null;
+      int exceptionalFinally = -1;
+      if (finallyBlock != null) {
+        afterBody = newLabel();
+        exceptionalFinally = newLabel();
+        finallyFrame = new Frame(null, new int[] {exceptionalFinally});
+        pushFrame(finallyFrame);
+        returnTarget = new LabelCell(newLabel());
+        breakTarget = new LabelCell(newLabel());
+        continueTarget = new LabelCell(newLabel());
+        breakLabels = new ScopeMap(true);
+        continueLabels = new ScopeMap(true);
+      }
+
+      pushFrame(new Frame(caught, catchLabels));
+      scan(tree.getBlock(), null);
+      jump(afterBody);
+      popFrame();
+      for (int i = 0; i < catches.size(); i++) {
+        bind(catchLabels[i]);
+        scan(catches.get(i).getBlock(), null);
+        jump(afterBody);
+      }
+
+      if (finallyBlock != null) {
+        // The finally block is copied onto each way out of the try statement. The jumps out of
+        // the copies go to the targets restored so far, as they do in the checker framework.
+        popFrame();
+        bind(afterBody);
+        scan(finallyBlock, null);
+        jump(done);
+
+        if (finallyFrame.usesFinally) {
+          bind(exceptionalFinally);
+          scan(finallyBlock, null);
+          alwaysThrows(known.throwable);
+        }
+
+        LabelCell innerReturn = returnTarget;
+        returnTarget = oldReturn;
+        finallyCopy(finallyBlock, innerReturn, returnTarget);
+        LabelCell innerBreak = breakTarget;
+        breakTarget = oldBreak;
+        finallyCopy(finallyBlock, innerBreak, breakTarget);
+        ScopeMap innerBreakLabels = breakLabels;
+        breakLabels = oldBreakLabels;
+        finallyCopies(finallyBlock, innerBreakLabels, breakLabels);
+        LabelCell innerContinue = continueTarget;
+        continueTarget = oldContinue;
+        finallyCopy(finallyBlock, innerContinue, continueTarget);
+        ScopeMap innerContinueLabels = continueLabels;
+        continueLabels = oldContinueLabels;
+        finallyCopies(finallyBlock, innerContinueLabels, continueLabels);
+      }
+      bind(done);
+      return null;
+    }
+
+    /** Copy the finally block onto the jumps to this target from inside the try statement. */
+    private void finallyCopy(Tree finallyBlock, LabelCell inner, LabelCell outer) {
+      if (inner.accessed) {
+        bind(inner.label);
+        scan(finallyBlock, null);
+        jump(outer == null ? -1 : outer.access());
+      }
+    }
+
+    /** Copy the finally block onto the jumps to labeled statements outside the try statement. */
+    private void finallyCopies(Tree finallyBlock, ScopeMap inner, ScopeMap outer) {
+      for (Map.Entry<Name, Integer> entry : inner.accessed.entrySet()) {
+        bind(entry.getValue());
+        scan(finallyBlock, null);
+        jump(labelFor(outer, entry.getKey()));
+      }
+    }
+
+    // Helpers
+
+    private int labelFor(ScopeMap map, Name name) {
+      Integer label = map.labels.get(name);
+      if (label != null) {
+        return label;
+      }
+      if (map.accessed == null) {
+        return -1;
+      }
+      return map.accessed.computeIfAbsent(name, n -> newLabel());
+    }
+
+    private void writeTarget(ExpressionTree target) {
+      ExpressionTree tree = TreeInfo.skipParens((JCTree.JCExpression) target);
+      if (isLocal(tree)) {
+        write(((IdentifierTree) tree).getName(), tree);
+      }
+    }
+
+    private boolean isIntegralDivision(TypeMirror left, TypeMirror right) {
+      TypeKind leftKind = known.unboxedKind(left);
+      TypeKind rightKind = known.unboxedKind(right);
+      return leftKind != TypeKind.DOUBLE
+          && leftKind != TypeKind.FLOAT
+          && rightKind != TypeKind.DOUBLE
+          && rightKind != TypeKind.FLOAT;
+    }
+
+    private static TypeMirror typeOf(Tree tree) {
+      return ((JCTree) tree).type;
+    }
+
+    private static TypeMirror upperBound(TypeMirror type) {
+      while (true) {
+        if (type.getKind() == TypeKind.TYPEVAR) {
+          type = ((TypeVariable) type).getUpperBound();
+        } else if (type.getKind() == TypeKind.WILDCARD
+            && ((WildcardType) type).getExtendsBound() != null) {
+          type = ((WildcardType) type).getExtendsBound();
+        } else {
+          return type;
+        }
+      }
+    }
+
+    private static Symbol symbolOf(ExpressionTree tree) {
+      return TreeInfo.symbol((JCTree) tree);
+    }
+
+    /** Returns true if this is an identifier for a local variable. */
+    private static boolean isLocal(ExpressionTree tree) {
+      if (tree.getKind() != Tree.Kind.IDENTIFIER) {
+        return false;
+      }
+      Symbol symbol = ((JCTree.JCIdent) tree).sym;
+      return symbol != null && isLocal(symbol);
+    }
+
+    private static boolean isLocal(Symbol symbol) {
+      switch (symbol.getKind()) {
+        case LOCAL_VARIABLE:
+        case PARAMETER:
+        case EXCEPTION_PARAMETER:
+        case RESOURCE_VARIABLE:
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    private static boolean isStatic(Symbol symbol) {
+      return symbol.getModifiers().contains(Modifier.STATIC);
+    }
+
+    /** Returns true for this, which can't be null, as opposed to super or Outer.this. */
+    private static boolean isThis(ExpressionTree tree) {
+      ExpressionTree receiver = TreeInfo.skipParens((JCTree.JCExpression) tree);
+      return receiver.getKind() == Tree.Kind.IDENTIFIER
+          && ((IdentifierTree) receiver).getName().contentEquals("this");
+    }
+
+    private static boolean isFieldAccess(ExpressionTree tree) {
+      if (tree.getKind() != Tree.Kind.MEMBER_SELECT && tree.getKind() != Tree.Kind.IDENTIFIER) {
+        return false;
+      }
+      Symbol symbol = symbolOf(tree);
+      if (symbol == null || !symbol.getKind().isField()) {
+        return false;
+      }
+      return tree.getKind() == Tree.Kind.MEMBER_SELECT
+          || !(((IdentifierTree) tree).getName().contentEquals("this")
+              || ((IdentifierTree) tree).getName().contentEquals("super"));
+    }
+  }
+
+  /** The target of a jump which records whether anything jumped to it. */
+  private static final class LabelCell {
+
+    private final int label;
+    private boolean accessed;
+
+    LabelCell(int label) {
+      this.label = label;
+    }
+
+    int access() {
+      accessed = true;
+      return label;
+    }
+  }
+
+  /** The labels of the enclosing labeled statements. */
+  private static final class ScopeMap {
+
+    private final Map<Name, Integer> labels = new HashMap<>();
+    /**
+     * Inside a try statement with a finally block, the labels standing in for labeled statements
+     * outside it. Null elsewhere.
+     */
+    private final Map<Name, Integer> accessed;
+
+    ScopeMap(boolean insideFinally) {
+      this.accessed = insideFinally ? new LinkedHashMap<>() : null;
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.semantic;
+
+import java.util.List;
+import org.checkerframework.dataflow.analysis.RegularTransferResult;
+import org.checkerframework.dataflow.analysis.TransferFunction;
+import org.checkerframework.dataflow.analysis.TransferInput;
+import org.checkerframework.dataflow.analysis.TransferResult;
+import org.checkerframework.dataflow.cfg.UnderlyingAST;
+import org.checkerframework.dataflow.cfg.node.AbstractNodeVisitor;
+import org.checkerframework.dataflow.cfg.node.AssignmentNode;
+import org.checkerframework.dataflow.cfg.node.LocalVariableNode;
+import org.checkerframework.dataflow.cfg.node.Node;
+
+/**
+ * Computes the last writes and the last uses of each variable together, so that one pass over the
+ * control flow graph gives both results.
+ *
+ * <p>The last writes of a variable are the assignments (or the parameter) which might have given it
+ * its current value. The last uses of a variable are the places it might last have been read or
+ * assigned to. The value of each use of a variable is the pair of these before the use.
+ */
+public class LastWriteAndUseTransferFunction
+    extends AbstractNodeVisitor<
+        TransferResult<PossibleTreeSetPair, PossibleTreeSetStorePair>,
+        TransferInput<PossibleTreeSetPair, PossibleTreeSetStorePair>>
+    implements TransferFunction<PossibleTreeSetPair, PossibleTreeSetStorePair> {
+
+  private final TreeNumbering numbering;
+  private final long maxVisits;
+  private long visits = 0;
+
+  /**
+   * Creates a transfer function which throws {@link DataflowOutputs.OverBudgetException} once it
+   * has been applied to more than this many nodes.
+   */
+  LastWriteAndUseTransferFunction(TreeNumbering numbering, long maxVisits) {
+    this.numbering = numbering;
+    this.maxVisits = maxVisits;
+  }
+
+  private void visited() {
+    if (++visits > maxVisits) {
+      throw new DataflowOutputs.OverBudgetException();
+    }
+  }
+
+  @Override
+  public PossibleTreeSetStorePair initialStore(
+      UnderlyingAST underlyingAst, List<LocalVariableNode> parameters) {
+    PossibleTreeSetStore lastWrites = new PossibleTreeSetStore();
+    PossibleTreeSetStore lastUses = new PossibleTreeSetStore();
+    for (LocalVariableNode n : parameters) {
+      lastWrites.setInformation(n, numbering.singleton(n.getTree()));
+      lastUses.setInformation(n, numbering.singleton(n.getTree()));
+    }
+    return new PossibleTreeSetStorePair(lastWrites, lastUses);
+  }
+
+  @Override
+  public TransferResult<PossibleTreeSetPair, PossibleTreeSetStorePair> visitLocalVariable(
+      LocalVariableNode node, TransferInput<PossibleTreeSetPair, PossibleTreeSetStorePair> before) {
+    visited();
+    PossibleTreeSetStorePair store = before.getRegularStore();
+    PossibleTreeSetPair result =
+        new PossibleTreeSetPair(
+            store.lastWrites.getInformation(node), store.lastUses.getInformation(node));
+    store.lastUses.setInformation(node, numbering.singleton(node.getTree()));
+    return new RegularTransferResult<>(result, store);
+  }
+
+  @Override
+  public TransferResult<PossibleTreeSetPair, PossibleTreeSetStorePair> visitNode(
+      Node n, TransferInput<PossibleTreeSetPair, PossibleTreeSetStorePair> p) {
+    visited();
+    return new RegularTransferResult<>(null, p.getRegularStore());
+  }
+
+  @Override
+  public TransferResult<PossibleTreeSetPair, PossibleTreeSetStorePair> visitAssignment(
+      AssignmentNode n, TransferInput<PossibleTreeSetPair, PossibleTreeSetStorePair> pi) {
+    visited();
+    PossibleTreeSetStorePair p = pi.getRegularStore();
+    Node target = n.getTarget();
+    if (target instanceof LocalVariableNode) {
+      LocalVariableNode t = (LocalVariableNode) target;
+      p.lastWrites.setInformation(t, numbering.singleton(t.getTree()));
+    }
+    return new RegularTransferResult<>(null, p);
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.semantic;
+
+import com.sun.source.tree.AssignmentTree;
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompoundAssignmentTree;
+import com.sun.source.tree.EnhancedForLoopTree;
+import com.sun.source.tree.ExpressionTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.LambdaExpressionTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.UnaryTree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.TreeScanner;
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeInfo;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import javax.lang.model.element.Name;
+
+/**
+ * Approximates the last writes and last uses of the local variables of one method by ignoring
+ * control flow: each use sees the write and the use of its variable which were evaluated just
+ * before it, taking the method body in source order.
+ *
+ * <p>This takes one pass over the method, however it branches, so it stands in for the dataflow
+ * analysis of a method which is over budget. It agrees with the analysis on straight-line code but
+ * misses the writes and uses reaching a use along loop back edges or from the other arm of a
+ * branch.
+ */
+final class LexicalLastWriteAndUse extends TreeScanner<Void, Void> {
+
+  private static final PossibleTreeSet EMPTY = new PossibleTreeSet();
+
+  private final TreeNumbering numbering;
+  private final Map<Name, PossibleTreeSet> lastWrites = new HashMap<>();
+  private final Map<Name, PossibleTreeSet> lastUses = new HashMap<>();
+  private final Map<Tree, PossibleTreeSetPair> result = new IdentityHashMap<>();
+
+  private LexicalLastWriteAndUse(TreeNumbering numbering) {
+    this.numbering = numbering;
+  }
+
+  /** Returns the last writes and last uses before each use of a variable in this method. */
+  static Map<Tree, PossibleTreeSetPair> run(MethodTree methodTree) {
+    LexicalLastWriteAndUse scanner = new LexicalLastWriteAndUse(TreeNumbering.create(methodTree));
+    for (VariableTree parameter : methodTree.getParameters()) {
+      scanner.write(parameter.getName(), parameter);
+      scanner.lastUses.put(parameter.getName(), scanner.numbering.singleton(parameter));
+    }
+    scanner.scan(methodTree.getBody(), null);
+    return scanner.result;
+  }
+
+  private void write(Name name, Tree tree) {
+    lastWrites.put(name, numbering.singleton(tree));
+  }
+
+  /** Write the variable if this is a local variable, looking through any parentheses. */
+  private void writeTarget(ExpressionTree target) {
+    ExpressionTree tree = TreeInfo.skipParens((JCTree.JCExpression) target);
+    if (isLocal(tree)) {
+      write(((IdentifierTree) tree).getName(), tree);
+    }
+  }
+
+  @Override
+  public Void visitIdentifier(IdentifierTree tree, Void unused) {
+    if (isLocal(tree)) {
+      Name name = tree.getName();
+      result.put(
+          tree,
+          new PossibleTreeSetPair(
+              lastWrites.getOrDefault(name, EMPTY), lastUses.getOrDefault(name, EMPTY)));
+      lastUses.put(name, numbering.singleton(tree));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitAssignment(AssignmentTree tree, Void unused) {
+    // A local variable being assigned to isn't a use of it, though an array being indexed is.
+    if (!isLocal(TreeInfo.skipParens((JCTree.JCExpression) tree.getVariable()))) {
+      scan(tree.getVariable(), null);
+    }
+    scan(tree.getExpression(), null);
+    writeTarget(tree.getVariable());
+    return null;
+  }
+
+  @Override
+  public Void visitCompoundAssignment(CompoundAssignmentTree tree, Void unused) {
+    super.visitCompoundAssignment(tree, null);
+    writeTarget(tree.getVariable());
+    return null;
+  }
+
+  @Override
+  public Void visitUnary(UnaryTree tree, Void unused) {
+    super.visitUnary(tree, null);
+    switch (tree.getKind()) {
+      case PREFIX_INCREMENT:
+      case PREFIX_DECREMENT:
+      case POSTFIX_INCREMENT:
+      case POSTFIX_DECREMENT:
+        writeTarget(tree.getExpression());
+        break;
+      default:
+        break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVariable(VariableTree tree, Void unused) {
+    if (tree.getInitializer() != null) {
+      scan(tree.getInitializer(), null);
+      write(tree.getName(), tree);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitEnhancedForLoop(EnhancedForLoopTree tree, Void unused) {
+    scan(tree.getExpression(), null);
+    write(tree.getVariable().getName(), tree.getVariable());
+    scan(tree.getStatement(), null);
+    return null;
+  }
+
+  @Override
+  public Void visitLambdaExpression(LambdaExpressionTree tree, Void unused) {
+    // The body of a lambda isn't part of the control flow of the method.
+    return null;
+  }
+
+  @Override
+  public Void visitClass(ClassTree tree, Void unused) {
+    // Nor is a local class.
+    return null;
+  }
+
+  private static boolean isLocal(Tree tree) {
+    if (tree.getKind() != Tree.Kind.IDENTIFIER) {
+      return false;
+    }
+    Symbol symbol = ((JCTree.JCIdent) tree).sym;
+    if (symbol == null) {
+      return false;
+    }
+    switch (symbol.getKind()) {
+      case LOCAL_VARIABLE:
+      case PARAMETER:
+      case EXCEPTION_PARAMETER:
+      case RESOURCE_VARIABLE:
+        return true;
+      default:
+        return false;
+    }
+  }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.semantic;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+
+/**
+ * An immutable hash map in which updates return a new map sharing most of its structure with the
+ * old one.
+ *
+ * <p>Entries are held in a trie indexed by five bits of the key's hash code at each level. Each
+ * trie node holds a bitmap of the slots in use and an array with a key and value for each of them.
+ * A slot holding more than one entry has a null key and a child node in place of the value. Keys
+ * whose hash codes are equal are kept in a collision node once all the bits have been used.
+ *
+ * <p>Updates which don't change anything return the same map so callers can detect this with {@code
+ * ==}. Keys and values must not be null.
+ */
+final class PersistentMap<K, V> {
+
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+
+  private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+  /** A trie node, a collision node or null for the empty map. */
+  private final Object root;
+
+  private final int size;
+
+  private PersistentMap(Object root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  static <K, V> PersistentMap<K, V> empty() {
+    return (PersistentMap<K, V>) EMPTY;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** Returns the value for this key or null if there isn't one. */
+  @SuppressWarnings("unchecked")
+  V get(K key) {
+    return root == null ? null : (V) getIn(root, key.hashCode(), 0, key);
+  }
+
+  /** Returns a map with this entry added or replaced. */
+  PersistentMap<K, V> put(K key, V value) {
+    Objects.requireNonNull(value);
+    if (root == null) {
+      return new PersistentMap<>(new Trie(bit(key.hashCode(), 0), new Object[] {key, value}), 1);
+    }
+    boolean[] added = new boolean[1];
+    Object newRoot = putIn(root, key.hashCode(), 0, key, value, added);
+    if (newRoot == root) {
+      return this;
+    }
+    return new PersistentMap<>(newRoot, added[0] ? size + 1 : size);
+  }
+
+  /** Returns a map without an entry for this key. */
+  PersistentMap<K, V> remove(K key) {
+    if (root == null) {
+      return this;
+    }
+    Object newRoot = removeFrom(root, key.hashCode(), 0, key);
+    if (newRoot == root) {
+      return this;
+    }
+    return newRoot == null ? empty() : new PersistentMap<>(newRoot, size - 1);
+  }
+
+  /**
+   * Returns a map with the entries of both maps, combining the values for keys which are in both.
+   * The entries of the smaller map are added to the larger one so the result shares the structure
+   * of the larger map, and is that map if combining the values changes nothing.
+   */
+  PersistentMap<K, V> merge(PersistentMap<K, V> other, BinaryOperator<V> combine) {
+    if (root == other.root) {
+      return this;
+    }
+    if (size < other.size) {
+      return other.merge(this, (a, b) -> combine.apply(b, a));
+    }
+    return other.root == null ? this : mergeInto(this, other.root, combine);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K, V> PersistentMap<K, V> mergeInto(
+      PersistentMap<K, V> result, Object node, BinaryOperator<V> combine) {
+    if (node instanceof Collision) {
+      Object[] entries = ((Collision) node).entries;
+      for (int i = 0; i < entries.length; i += 2) {
+        result = mergeEntry(result, (K) entries[i], (V) entries[i + 1], combine);
+      }
+      return result;
+    }
+    Object[] slots = ((Trie) node).slots;
+    for (int i = 0; i < slots.length; i += 2) {
+      if (slots[i] == null) {
+        result = mergeInto(result, slots[i + 1], combine);
+      } else {
+        result = mergeEntry(result, (K) slots[i], (V) slots[i + 1], combine);
+      }
+    }
+    return result;
+  }
+
+  private static <K, V> PersistentMap<K, V> mergeEntry(
+      PersistentMap<K, V> result, K key, V value, BinaryOperator<V> combine) {
+    V existing = result.get(key);
+    return result.put(key, existing == null ? value : combine.apply(existing, value));
+  }
+
+  /** Call the consumer on each entry in the map. */
+  @SuppressWarnings("unchecked")
+  void forEach(BiConsumer<? super K, ? super V> consumer) {
+    if (root != null) {
+      forEachIn(root, (BiConsumer<Object, Object>) consumer);
+    }
+  }
+
+  /** Maps are equal if they have equal values for the same keys, as for java.util.Map. */
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof PersistentMap)) {
+      return false;
+    }
+    PersistentMap<?, ?> other = (PersistentMap<?, ?>) obj;
+    if (root == other.root) {
+      return true;
+    }
+    if (size != other.size) {
+      return false;
+    }
+    boolean[] equal = {true};
+    forEachIn(
+        root,
+        (key, value) -> {
+          if (equal[0] && !value.equals(getIn(other.root, key.hashCode(), 0, key))) {
+            equal[0] = false;
+          }
+        });
+    return equal[0];
+  }
+
+  @Override
+  public int hashCode() {
+    int[] hash = {0};
+    forEach((key, value) -> hash[0] += key.hashCode() ^ value.hashCode());
+    return hash[0];
+  }
+
+  @Override
+  public String toString() {
+    StringJoiner joiner = new StringJoiner(", ", "{", "}");
+    forEach((key, value) -> joiner.add(key + "=" + value));
+    return joiner.toString();
+  }
+
+  /** A node of the trie. */
+  private static final class Trie {
+    private final int bitmap;
+    private final Object[] slots;
+
+    private Trie(int bitmap, Object[] slots) {
+      this.bitmap = bitmap;
+      this.slots = slots;
+    }
+
+    private int index(int bit) {
+      return 2 * Integer.bitCount(bitmap & (bit - 1));
+    }
+  }
+
+  /** Entries with keys which have the same hash code. */
+  private static final class Collision {
+    private final Object[] entries;
+
+    private Collision(Object[] entries) {
+      this.entries = entries;
+    }
+  }
+
+  private static int bit(int hash, int shift) {
+    return 1 << ((hash >>> shift) & MASK);
+  }
+
+  private static Object getIn(Object node, int hash, int shift, Object key) {
+    if (node instanceof Collision) {
+      Object[] entries = ((Collision) node).entries;
+      for (int i = 0; i < entries.length; i += 2) {
+        if (key.equals(entries[i])) {
+          return entries[i + 1];
+        }
+      }
+      return null;
+    }
+    Trie trie = (Trie) node;
+    int bit = bit(hash, shift);
+    if ((trie.bitmap & bit) == 0) {
+      return null;
+    }
+    int index = trie.index(bit);
+    Object slotKey = trie.slots[index];
+    if (slotKey == null) {
+      return getIn(trie.slots[index + 1], hash, shift + BITS, key);
+    }
+    return key.equals(slotKey) ? trie.slots[index + 1] : null;
+  }
+
+  private static Object putIn(
+      Object node, int hash, int shift, Object key, Object value, boolean[] added) {
+    if (node instanceof Collision) {
+      Object[] entries = ((Collision) node).entries;
+      for (int i = 0; i < entries.length; i += 2) {
+        if (key.equals(entries[i])) {
+          if (entries[i + 1] == value) {
+            return node;
+          }
+          Object[] newEntries = entries.clone();
+          newEntries[i + 1] = value;
+          return new Collision(newEntries);
+        }
+      }
+      Object[] newEntries = Arrays.copyOf(entries, entries.length + 2);
+      newEntries[entries.length] = key;
+      newEntries[entries.length + 1] = value;
+      added[0] = true;
+      return new Collision(newEntries);
+    }
+    Trie trie = (Trie) node;
+    int bit = bit(hash, shift);
+    int index = trie.index(bit);
+    if ((trie.bitmap & bit) == 0) {
+      Object[] newSlots = new Object[trie.slots.length + 2];
+      System.arraycopy(trie.slots, 0, newSlots, 0, index);
+      newSlots[index] = key;
+      newSlots[index + 1] = value;
+      System.arraycopy(trie.slots, index, newSlots, index + 2, trie.slots.length - index);
+      added[0] = true;
+      return new Trie(trie.bitmap | bit, newSlots);
+    }
+    Object slotKey = trie.slots[index];
+    Object slotValue = trie.slots[index + 1];
+    Object newSlotKey = slotKey;
+    Object newSlotValue;
+    if (slotKey == null) {
+      newSlotValue = putIn(slotValue, hash, shift + BITS, key, value, added);
+    } else if (key.equals(slotKey)) {
+      newSlotValue = value;
+    } else {
+      newSlotKey = null;
+      newSlotValue = pair(shift + BITS, slotKey, slotKey.hashCode(), slotValue, key, hash, value);
+      added[0] = true;
+    }
+    if (newSlotValue == slotValue) {
+      return node;
+    }
+    Object[] newSlots = trie.slots.clone();
+    newSlots[index] = newSlotKey;
+    newSlots[index + 1] = newSlotValue;
+    return new Trie(trie.bitmap, newSlots);
+  }
+
+  /** Returns a node holding both of these entries, whose keys are different. */
+  private static Object pair(
+      int shift, Object key1, int hash1, Object value1, Object key2, int hash2, Object value2) {
+    if (shift >= Integer.SIZE) {
+      return new Collision(new Object[] {key1, value1, key2, value2});
+    }
+    int bit1 = bit(hash1, shift);
+    int bit2 = bit(hash2, shift);
+    if (bit1 == bit2) {
+      return new Trie(
+          bit1, new Object[] {null, pair(shift + BITS, key1, hash1, value1, key2, hash2, value2)});
+    }
+    Object[] slots =
+        Integer.compareUnsigned(bit1, bit2) < 0
+            ? new Object[] {key1, value1, key2, value2}
+            : new Object[] {key2, value2, key1, value1};
+    return new Trie(bit1 | bit2, slots);
+  }
+
+  /** Returns the node without this key, or null if nothing would be left in it. */
+  private static Object removeFrom(Object node, int hash, int shift, Object key) {
+    if (node instanceof Collision) {
+      Object[] entries = ((Collision) node).entries;
+      for (int i = 0; i < entries.length; i += 2) {
+        if (key.equals(entries[i])) {
+          if (entries.length == 2) {
+            return null;
+          }
+          Object[] newEntries = new Object[entries.length - 2];
+          System.arraycopy(entries, 0, newEntries, 0, i);
+          System.arraycopy(entries, i + 2, newEntries, i, entries.length - i - 2);
+          return new Collision(newEntries);
+        }
+      }
+      return node;
+    }
+    Trie trie = (Trie) node;
+    int bit = bit(hash, shift);
+    if ((trie.bitmap & bit) == 0) {
+      return node;
+    }
+    int index = trie.index(bit);
+    Object slotKey = trie.slots[index];
+    if (slotKey == null) {
+      Object child = trie.slots[index + 1];
+      Object newChild = removeFrom(child, hash, shift + BITS, key);
+      if (newChild == child) {
+        return node;
+      }
+      if (newChild != null) {
+        Object[] newSlots = trie.slots.clone();
+        newSlots[index + 1] = newChild;
+        return new Trie(trie.bitmap, newSlots);
+      }
+    } else if (!key.equals(slotKey)) {
+      return node;
+    }
+    if (trie.bitmap == bit) {
+      return null;
+    }
+    Object[] newSlots = new Object[trie.slots.length - 2];
+    System.arraycopy(trie.slots, 0, newSlots, 0, index);
+    System.arraycopy(trie.slots, index + 2, newSlots, index, trie.slots.length - index - 2);
+    return new Trie(trie.bitmap & ~bit, newSlots);
+  }
+
+  private static void forEachIn(Object node, BiConsumer<Object, Object> consumer) {
+    if (node instanceof Collision) {
+      Object[] entries = ((Collision) node).entries;
+      for (int i = 0; i < entries.length; i += 2) {
+        consumer.accept(entries[i], entries[i + 1]);
+      }
+      return;
+    }
+    Object[] slots = ((Trie) node).slots;
+    for (int i = 0; i < slots.length; i += 2) {
+      if (slots[i] == null) {
+        forEachIn(slots[i + 1], consumer);
+      } else {
+        consumer.accept(slots[i], slots[i + 1]);
+      }
+    }
+  }
+}
@@ -19,42 +19,113 @@ package uk.ac.cam.acr31.features.javac.semantic;
 import com.google.common.collect.ImmutableSet;
 import com.sun.source.tree.Tree;
 import com.sun.tools.javac.tree.JCTree;
-import java.util.Collections;
-import java.util.IdentityHashMap;
+import java.util.Arrays;
 import java.util.Set;
 import java.util.stream.Collectors;
 import org.checkerframework.dataflow.analysis.AbstractValue;
 
+/**
+ * A set of the trees of one method, held as a bitset of their numbers in a {@link TreeNumbering}.
+ *
+ * <p>Sets are immutable. The words of the bitset have no trailing zero words, so sets with the same
+ * trees have equal words and can be compared a word at a time.
+ */
 public class PossibleTreeSet implements AbstractValue<PossibleTreeSet> {
 
-  private final Set<Tree> nodes;
+  private static final long[] NO_WORDS = new long[0];
+
+  private final TreeNumbering numbering;
+  private final long[] words;
 
-  private PossibleTreeSet(Set<Tree> nodes) {
-    this.nodes = nodes;
+  private PossibleTreeSet(TreeNumbering numbering, long[] words) {
+    this.numbering = numbering;
+    this.words = words;
   }
 
-  PossibleTreeSet(Tree node) {
-    this(ImmutableSet.of(node));
+  PossibleTreeSet(TreeNumbering numbering, int number) {
+    this(numbering, singleton(number));
   }
 
   PossibleTreeSet() {
-    this(ImmutableSet.of());
+    this(null, NO_WORDS);
+  }
+
+  private static long[] singleton(int number) {
+    long[] words = new long[(number >>> 6) + 1];
+    words[number >>> 6] = 1L << number;
+    return words;
   }
 
+  /** Returns the trees in the set in the order they were numbered. */
   public Set<Tree> nodes() {
-    return nodes;
+    ImmutableSet.Builder<Tree> nodes = ImmutableSet.builder();
+    for (int i = 0; i < words.length; i++) {
+      long word = words[i];
+      while (word != 0) {
+        nodes.add(numbering.tree((i << 6) + Long.numberOfTrailingZeros(word)));
+        word &= word - 1;
+      }
+    }
+    return nodes.build();
+  }
+
+  /** Returns the numbers of the trees in the set in increasing order. */
+  int[] numbers() {
+    int[] numbers = new int[cardinality()];
+    int next = 0;
+    for (int i = 0; i < words.length; i++) {
+      long word = words[i];
+      while (word != 0) {
+        numbers[next++] = (i << 6) + Long.numberOfTrailingZeros(word);
+        word &= word - 1;
+      }
+    }
+    return numbers;
+  }
+
+  private int cardinality() {
+    int cardinality = 0;
+    for (long word : words) {
+      cardinality += Long.bitCount(word);
+    }
+    return cardinality;
   }
 
   boolean isEmpty() {
-    return nodes.isEmpty();
+    return words.length == 0;
   }
 
+  /**
+   * Returns the union of the two sets. The sets are immutable so if one already contains the other
+   * then it is returned rather than a copy.
+   */
   @Override
   public PossibleTreeSet leastUpperBound(PossibleTreeSet other) {
-    Set<Tree> newNodes = Collections.newSetFromMap(new IdentityHashMap<>());
-    newNodes.addAll(nodes);
-    newNodes.addAll(other.nodes);
-    return new PossibleTreeSet(newNodes);
+    if (this == other || containsAll(other)) {
+      return this;
+    }
+    if (other.containsAll(this)) {
+      return other;
+    }
+    long[] longer = words.length >= other.words.length ? words : other.words;
+    long[] shorter = longer == words ? other.words : words;
+    long[] union = longer.clone();
+    for (int i = 0; i < shorter.length; i++) {
+      union[i] |= shorter[i];
+    }
+    return new PossibleTreeSet(numbering, union);
+  }
+
+  private boolean containsAll(PossibleTreeSet other) {
+    if (other.words.length > words.length) {
+      return false;
+    }
+    for (int i = 0; i < other.words.length; i++) {
+      if ((other.words[i] & ~words[i]) != 0) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
@@ -63,17 +134,17 @@ public class PossibleTreeSet implements AbstractValue<PossibleTreeSet> {
       return false;
     }
     PossibleTreeSet other = (PossibleTreeSet) obj;
-    return nodes.equals(other.nodes);
+    return Arrays.equals(words, other.words);
   }
 
   @Override
   public int hashCode() {
-    return nodes.hashCode();
+    return Arrays.hashCode(words);
   }
 
   @Override
   public String toString() {
-    return nodes.stream()
+    return nodes().stream()
         .map(n -> n.toString() + ":" + (((JCTree) n).pos))
         .collect(Collectors.joining(","));
   }
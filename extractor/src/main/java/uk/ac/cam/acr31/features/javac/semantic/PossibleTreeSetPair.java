@@ -0,0 +1,64 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.semantic;
+
+import org.checkerframework.dataflow.analysis.AbstractValue;
+
+/** The last writes and the last uses which a use of a variable might see. */
+public class PossibleTreeSetPair implements AbstractValue<PossibleTreeSetPair> {
+
+  final PossibleTreeSet lastWrites;
+  final PossibleTreeSet lastUses;
+
+  PossibleTreeSetPair(PossibleTreeSet lastWrites, PossibleTreeSet lastUses) {
+    this.lastWrites = lastWrites;
+    this.lastUses = lastUses;
+  }
+
+  /** Returns the union of each component, or this pair if that changes neither of them. */
+  @Override
+  public PossibleTreeSetPair leastUpperBound(PossibleTreeSetPair other) {
+    PossibleTreeSet newLastWrites = lastWrites.leastUpperBound(other.lastWrites);
+    PossibleTreeSet newLastUses = lastUses.leastUpperBound(other.lastUses);
+    if (newLastWrites == lastWrites && newLastUses == lastUses) {
+      return this;
+    }
+    if (newLastWrites == other.lastWrites && newLastUses == other.lastUses) {
+      return other;
+    }
+    return new PossibleTreeSetPair(newLastWrites, newLastUses);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof PossibleTreeSetPair)) {
+      return false;
+    }
+    PossibleTreeSetPair other = (PossibleTreeSetPair) obj;
+    return lastWrites.equals(other.lastWrites) && lastUses.equals(other.lastUses);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * lastWrites.hashCode() + lastUses.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "writes: " + lastWrites + " uses: " + lastUses;
+  }
+}
@@ -14,22 +14,13 @@
  * limitations under the License.
  */
 
-package uk.ac.cam.acr31.features.javac;
+package uk.ac.cam.acr31.features.javac.semantic;
 
-import java.util.Optional;
-import java.util.function.BiConsumer;
+import com.sun.source.tree.Tree;
 
-public class Optionals {
+/** The result of a dataflow analysis for the trees of one method. */
+public interface PossibleTreeSetResult {
 
-  /** Execute the given function if both optionals are present. */
-  public static <U, V> void ifBothPresent(
-      Optional<U> first, Optional<V> second, BiConsumer<U, V> consumer) {
-    if (first.isPresent() && second.isPresent()) {
-      consumer.accept(first.get(), second.get());
-    }
-  }
-
-  private Optionals() {
-    // no instances
-  }
+  /** Returns the possible trees for this tree or null if the analysis has no value for it. */
+  PossibleTreeSet getValue(Tree tree);
 }
@@ -16,66 +16,54 @@
 
 package uk.ac.cam.acr31.features.javac.semantic;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
 import org.checkerframework.dataflow.analysis.FlowExpressions;
 import org.checkerframework.dataflow.analysis.Store;
 import org.checkerframework.dataflow.cfg.CFGVisualizer;
 import org.checkerframework.dataflow.cfg.node.Node;
 
+/**
+ * The possible trees for each variable at a point in the control flow graph.
+ *
+ * <p>The analysis copies the store at every node of the graph and most nodes leave it unchanged, so
+ * the contents are held in a {@link PersistentMap}. Copies share the map and a store only gets a
+ * map of its own, sharing most of its structure, when it is updated.
+ */
 public class PossibleTreeSetStore implements Store<PossibleTreeSetStore> {
 
-  private Map<Node, PossibleTreeSet> contents;
+  private static final PossibleTreeSet EMPTY = new PossibleTreeSet();
 
-  private PossibleTreeSetStore(Map<Node, PossibleTreeSet> contents) {
+  private PersistentMap<Node, PossibleTreeSet> contents;
+
+  private PossibleTreeSetStore(PersistentMap<Node, PossibleTreeSet> contents) {
     this.contents = contents;
   }
 
   PossibleTreeSetStore() {
-    this(new HashMap<>());
+    this(PersistentMap.empty());
   }
 
   PossibleTreeSet getInformation(Node n) {
-    return contents.getOrDefault(n, new PossibleTreeSet());
+    PossibleTreeSet value = contents.get(n);
+    return value == null ? EMPTY : value;
   }
 
   void setInformation(Node n, PossibleTreeSet val) {
     if (val.isEmpty()) {
-      contents.remove(n);
+      contents = contents.remove(n);
     } else {
-      contents.put(n, val);
+      contents = contents.put(n, val);
     }
   }
 
   @Override
   public PossibleTreeSetStore copy() {
-    return new PossibleTreeSetStore(new HashMap<>(contents));
+    return new PossibleTreeSetStore(contents);
   }
 
   @Override
   public PossibleTreeSetStore leastUpperBound(PossibleTreeSetStore other) {
-    Map<Node, PossibleTreeSet> newContents = new HashMap<>();
-
-    for (Entry<Node, PossibleTreeSet> e : other.contents.entrySet()) {
-      Node n = e.getKey();
-      PossibleTreeSet otherVal = e.getValue();
-      if (contents.containsKey(n)) {
-        newContents.put(n, otherVal.leastUpperBound(contents.get(n)));
-      } else {
-        newContents.put(n, otherVal);
-      }
-    }
-
-    for (Entry<Node, PossibleTreeSet> e : contents.entrySet()) {
-      Node n = e.getKey();
-      PossibleTreeSet thisVal = e.getValue();
-      if (!other.contents.containsKey(n)) {
-        newContents.put(n, thisVal);
-      }
-    }
-
-    return new PossibleTreeSetStore(newContents);
+    return new PossibleTreeSetStore(
+        contents.merge(other.contents, PossibleTreeSet::leastUpperBound));
   }
 
   @Override
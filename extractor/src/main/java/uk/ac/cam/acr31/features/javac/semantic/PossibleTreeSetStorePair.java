@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.semantic;
+
+import org.checkerframework.dataflow.analysis.FlowExpressions;
+import org.checkerframework.dataflow.analysis.Store;
+import org.checkerframework.dataflow.cfg.CFGVisualizer;
+
+/**
+ * A store for the last writes and a store for the last uses of each variable, so that both can be
+ * computed by one analysis. Each operation applies to the two stores independently.
+ */
+public class PossibleTreeSetStorePair implements Store<PossibleTreeSetStorePair> {
+
+  final PossibleTreeSetStore lastWrites;
+  final PossibleTreeSetStore lastUses;
+
+  PossibleTreeSetStorePair(PossibleTreeSetStore lastWrites, PossibleTreeSetStore lastUses) {
+    this.lastWrites = lastWrites;
+    this.lastUses = lastUses;
+  }
+
+  @Override
+  public PossibleTreeSetStorePair copy() {
+    return new PossibleTreeSetStorePair(lastWrites.copy(), lastUses.copy());
+  }
+
+  @Override
+  public PossibleTreeSetStorePair leastUpperBound(PossibleTreeSetStorePair other) {
+    return new PossibleTreeSetStorePair(
+        lastWrites.leastUpperBound(other.lastWrites), lastUses.leastUpperBound(other.lastUses));
+  }
+
+  @Override
+  public PossibleTreeSetStorePair widenedUpperBound(PossibleTreeSetStorePair previous) {
+    return leastUpperBound(previous);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof PossibleTreeSetStorePair)) {
+      return false;
+    }
+    PossibleTreeSetStorePair other = (PossibleTreeSetStorePair) o;
+    return lastWrites.equals(other.lastWrites) && lastUses.equals(other.lastUses);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * lastWrites.hashCode() + lastUses.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "writes: " + lastWrites + " uses: " + lastUses;
+  }
+
+  @Override
+  public boolean canAlias(FlowExpressions.Receiver a, FlowExpressions.Receiver b) {
+    return true;
+  }
+
+  @Override
+  public void visualize(CFGVisualizer<?, PossibleTreeSetStorePair, ?> viz) {
+    // Do nothing since the component stores don't support visualize
+  }
+}
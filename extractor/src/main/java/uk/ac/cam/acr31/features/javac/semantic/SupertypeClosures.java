@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.semantic;
+
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Type;
+import com.sun.tools.javac.code.TypeTag;
+import com.sun.tools.javac.code.Types;
+import com.sun.tools.javac.util.Context;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * The classes and interfaces which each class is a subclass of.
+ *
+ * <p>A class type can only be assigned to another class type if the class of the target is one of
+ * the supertypes of the class of the source, either directly or after boxing a primitive source.
+ * Looking this up rules out most pairs of types without asking javac to check assignability. Pairs
+ * which this does not rule out still have to be checked since type arguments, constant values and
+ * other kinds of type are not considered here.
+ *
+ * <p>One instance is shared by every compilation unit of a javac task (see {@link
+ * #instance(Context)}) so the supertypes of each class are only walked once.
+ */
+public class SupertypeClosures {
+
+  private static final Context.Key<SupertypeClosures> KEY = new Context.Key<>();
+
+  private final Types types;
+  private final Map<Symbol.TypeSymbol, Set<Symbol.TypeSymbol>> closures = new HashMap<>();
+
+  private SupertypeClosures(Types types) {
+    this.types = types;
+  }
+
+  /** Returns the instance shared by everything using this context. */
+  public static SupertypeClosures instance(Context context) {
+    SupertypeClosures instance = context.get(KEY);
+    if (instance == null) {
+      instance = new SupertypeClosures(Types.instance(context));
+      context.put(KEY, instance);
+    }
+    return instance;
+  }
+
+  /**
+   * Returns false if javac would certainly find that the source type is not assignable to the
+   * target type. Returns true if it might be.
+   */
+  public boolean mayBeAssignable(TypeMirror source, TypeMirror target) {
+    Type sourceType = (Type) source;
+    Type targetType = (Type) target;
+    if (!isClass(targetType)) {
+      return true;
+    }
+    Type sourceClass;
+    if (sourceType.isPrimitive()) {
+      // Constants can also be narrowed to the boxes of smaller primitive types.
+      if (sourceType.constValue() != null) {
+        return true;
+      }
+      sourceClass = types.boxedClass(sourceType).type;
+    } else if (isClass(sourceType)) {
+      sourceClass = sourceType;
+    } else {
+      return true;
+    }
+    return closure(sourceClass.tsym).contains(targetType.tsym);
+  }
+
+  private static boolean isClass(Type type) {
+    return type.hasTag(TypeTag.CLASS) && !type.isCompound();
+  }
+
+  private Set<Symbol.TypeSymbol> closure(Symbol.TypeSymbol symbol) {
+    Set<Symbol.TypeSymbol> closure = closures.get(symbol);
+    if (closure == null) {
+      closure = new HashSet<>();
+      for (Type supertype : types.closure(symbol.type)) {
+        closure.add(supertype.tsym);
+      }
+      closures.put(symbol, closure);
+    }
+    return closure;
+  }
+}
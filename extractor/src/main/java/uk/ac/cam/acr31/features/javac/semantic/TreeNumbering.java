@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.semantic;
+
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.VariableTree;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.checkerframework.dataflow.cfg.ControlFlowGraph;
+import org.checkerframework.dataflow.cfg.block.Block;
+import org.checkerframework.dataflow.cfg.block.ExceptionBlock;
+import org.checkerframework.dataflow.cfg.block.RegularBlock;
+import org.checkerframework.dataflow.cfg.node.LocalVariableNode;
+import org.checkerframework.dataflow.cfg.node.Node;
+
+/**
+ * Dense numbers for the trees which can be in a {@link PossibleTreeSet} for one method.
+ *
+ * <p>The parameters and the trees of the local variable nodes in the control flow graph are
+ * numbered before the analyses run. Any other tree is numbered the first time it is seen. The set
+ * holding just one tree is shared, so storing it again for a variable leaves the store unchanged.
+ *
+ * <p>Numbering isn't thread safe, so an analysis running on another thread must only look up trees
+ * which were numbered before it started.
+ */
+final class TreeNumbering {
+
+  private final Map<Tree, Integer> numbers = new IdentityHashMap<>();
+  private final List<Tree> trees = new ArrayList<>();
+  private final List<PossibleTreeSet> singletons = new ArrayList<>();
+
+  /** Number the trees which the analyses of this method will put in sets. */
+  static TreeNumbering create(MethodTree methodTree, ControlFlowGraph controlFlowGraph) {
+    TreeNumbering numbering = create(methodTree);
+    for (Block block : controlFlowGraph.getDepthFirstOrderedBlocks()) {
+      if (block instanceof RegularBlock) {
+        for (Node node : ((RegularBlock) block).getContents()) {
+          numbering.numberLocalVariable(node);
+        }
+      } else if (block instanceof ExceptionBlock) {
+        numbering.numberLocalVariable(((ExceptionBlock) block).getNode());
+      }
+    }
+    return numbering;
+  }
+
+  /** Number just the parameters of this method. */
+  static TreeNumbering create(MethodTree methodTree) {
+    TreeNumbering numbering = new TreeNumbering();
+    for (VariableTree parameter : methodTree.getParameters()) {
+      numbering.number(parameter);
+    }
+    return numbering;
+  }
+
+  /** Number these trees in order. */
+  static TreeNumbering create(List<Tree> trees) {
+    TreeNumbering numbering = new TreeNumbering();
+    for (Tree tree : trees) {
+      numbering.number(tree);
+    }
+    return numbering;
+  }
+
+  private void numberLocalVariable(Node node) {
+    if (node instanceof LocalVariableNode) {
+      number(node.getTree());
+    }
+  }
+
+  /** Returns the number of this tree, numbering it if it hasn't been seen before. */
+  int number(Tree tree) {
+    Integer number = numbers.get(tree);
+    if (number == null) {
+      number = trees.size();
+      numbers.put(tree, number);
+      trees.add(tree);
+      singletons.add(new PossibleTreeSet(this, number));
+    }
+    return number;
+  }
+
+  /** Returns the set holding just this tree. */
+  PossibleTreeSet singleton(Tree tree) {
+    return singletons.get(number(tree));
+  }
+
+  /** Returns the set holding just the tree with this number. */
+  PossibleTreeSet singleton(int number) {
+    return singletons.get(number);
+  }
+
+  Tree tree(int number) {
+    return trees.get(number);
+  }
+}
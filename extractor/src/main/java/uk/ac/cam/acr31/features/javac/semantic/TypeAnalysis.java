@@ -16,10 +16,9 @@
 
 package uk.ac.cam.acr31.features.javac.semantic;
 
-import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.Tree;
-import com.sun.source.util.TreePath;
-import com.sun.source.util.Trees;
+import com.sun.tools.javac.code.Type;
+import com.sun.tools.javac.tree.JCTree;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
@@ -27,20 +26,22 @@ import javax.lang.model.util.Types;
 
 public class TypeAnalysis {
 
-  private final CompilationUnitTree compilationUnitTree;
   private final ProcessingEnvironment processingEnvironment;
 
-  public TypeAnalysis(
-      CompilationUnitTree compilationUnitTree, ProcessingEnvironment processingEnvironment) {
-    this.compilationUnitTree = compilationUnitTree;
+  public TypeAnalysis(ProcessingEnvironment processingEnvironment) {
     this.processingEnvironment = processingEnvironment;
   }
 
-  /** Get the type mirror for this tree. */
-  public TypeMirror getTypeMirror(Tree typeDecl) {
-    Trees trees = Trees.instance(processingEnvironment);
-    TreePath path = TreePath.getPath(compilationUnitTree, typeDecl);
-    return trees.getTypeMirror(path);
+  /**
+   * Get the type mirror for this tree.
+   *
+   * <p>This reads the type which attribution left on the tree, which is what {@link
+   * com.sun.source.util.Trees#getTypeMirror} returns for the path to the tree, without searching
+   * the compilation unit for that path.
+   */
+  public TypeMirror getTypeMirror(Tree tree) {
+    Type type = ((JCTree) tree).type;
+    return type == null ? null : type.stripMetadataIfNeeded();
   }
 
   private boolean canCheckAssignability(TypeMirror type) {
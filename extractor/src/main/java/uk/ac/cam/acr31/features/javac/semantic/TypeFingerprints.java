@@ -0,0 +1,189 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.semantic;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.sun.tools.javac.code.Flags;
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Type;
+import com.sun.tools.javac.code.TypeTag;
+import com.sun.tools.javac.code.Types;
+import com.sun.tools.javac.util.Context;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.lang.model.type.IntersectionType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.UnionType;
+
+/**
+ * Adds the types and symbols a method refers to to its {@link DataflowCache} key.
+ *
+ * <p>Types are hashed by their structure rather than their printed form, with each class, type
+ * variable and method contributing a fingerprint which is worked out once and then remembered.
+ * Captured wildcards are hashed by their wildcard since javac numbers them in the order it makes
+ * them, which differs between runs.
+ *
+ * <p>One instance is shared by every compilation unit of a javac task (see {@link
+ * #instance(Context)}) so the names and supertypes of each class are only hashed once.
+ */
+final class TypeFingerprints {
+
+  private static final Context.Key<TypeFingerprints> KEY = new Context.Key<>();
+
+  private final Types types;
+  private final Map<Symbol, Long> names = new HashMap<>();
+  private final Map<Symbol.TypeSymbol, Long> closures = new HashMap<>();
+  private final Map<Symbol.MethodSymbol, Long> methods = new HashMap<>();
+
+  private TypeFingerprints(Types types) {
+    this.types = types;
+  }
+
+  /** Returns the instance shared by everything using this context. */
+  static TypeFingerprints instance(Context context) {
+    TypeFingerprints instance = context.get(KEY);
+    if (instance == null) {
+      instance = new TypeFingerprints(Types.instance(context));
+      context.put(KEY, instance);
+    }
+    return instance;
+  }
+
+  /**
+   * Adds what the analyses look at: a symbol's kind, whether it is static, which decides whether
+   * selecting it might throw a NullPointerException, and a method's exceptions and owner.
+   */
+  void putSymbol(Hasher hasher, Symbol symbol) {
+    if (symbol == null) {
+      hasher.putInt(-1);
+      return;
+    }
+    hasher.putInt(symbol.getKind().ordinal());
+    hasher.putBoolean((symbol.flags() & Flags.STATIC) != 0);
+    if (symbol instanceof Symbol.MethodSymbol) {
+      hasher.putLong(method((Symbol.MethodSymbol) symbol));
+    }
+  }
+
+  /** Adds this type and, if it is a class, the classes and interfaces it is a subclass of. */
+  void putSupertypes(Hasher hasher, Type type) {
+    putType(hasher, type);
+    if (type != null && type.hasTag(TypeTag.CLASS)) {
+      hasher.putLong(closure(type.tsym));
+    }
+  }
+
+  void putType(Hasher hasher, Type type) {
+    if (type == null) {
+      hasher.putInt(-1);
+      return;
+    }
+    hasher.putInt(type.getTag().ordinal());
+    switch (type.getTag()) {
+      case CLASS:
+        if (type instanceof IntersectionType) {
+          putTypes(hasher, ((IntersectionType) type).getBounds());
+        } else if (type instanceof UnionType) {
+          putTypes(hasher, ((UnionType) type).getAlternatives());
+        } else {
+          hasher.putLong(name(type.tsym));
+          putType(hasher, type.getEnclosingType());
+          putTypes(hasher, type.getTypeArguments());
+        }
+        break;
+      case ARRAY:
+        putType(hasher, ((Type.ArrayType) type).elemtype);
+        break;
+      case METHOD:
+        putTypes(hasher, type.getParameterTypes());
+        putType(hasher, type.getReturnType());
+        putTypes(hasher, type.getThrownTypes());
+        break;
+      case FORALL:
+        putType(hasher, ((Type.ForAll) type).qtype);
+        break;
+      case WILDCARD:
+        hasher.putInt(((Type.WildcardType) type).kind.ordinal());
+        putType(hasher, ((Type.WildcardType) type).type);
+        break;
+      case TYPEVAR:
+        if (type instanceof Type.CapturedType) {
+          putType(hasher, ((Type.CapturedType) type).wildcard);
+        } else {
+          hasher.putLong(name(type.tsym));
+        }
+        break;
+      case ERROR:
+        hasher.putLong(name(type.tsym));
+        break;
+      default:
+        // Primitive and other types are told apart by their tag.
+        break;
+    }
+  }
+
+  private void putTypes(Hasher hasher, List<? extends TypeMirror> typeList) {
+    hasher.putInt(typeList.size());
+    for (TypeMirror type : typeList) {
+      putType(hasher, (Type) type);
+    }
+  }
+
+  private long name(Symbol symbol) {
+    if (symbol == null) {
+      return -1;
+    }
+    Long name = names.get(symbol);
+    if (name == null) {
+      name = Hashing.sha256().hashString(symbol.flatName().toString(), UTF_8).asLong();
+      names.put(symbol, name);
+    }
+    return name;
+  }
+
+  private long closure(Symbol.TypeSymbol symbol) {
+    Long closure = closures.get(symbol);
+    if (closure == null) {
+      Hasher hasher = Hashing.sha256().newHasher();
+      for (Type supertype : types.closure(symbol.type)) {
+        hasher.putLong(name(supertype.tsym));
+      }
+      closure = hasher.hash().asLong();
+      closures.put(symbol, closure);
+    }
+    return closure;
+  }
+
+  private long method(Symbol.MethodSymbol symbol) {
+    Long method = methods.get(symbol);
+    if (method == null) {
+      Hasher hasher = Hashing.sha256().newHasher();
+      hasher.putLong(name(symbol.owner));
+      for (Type thrown : symbol.type.getThrownTypes()) {
+        putSupertypes(hasher, thrown);
+      }
+      DataflowCache.putString(hasher, symbol.getAnnotationMirrors().toString());
+      method = hasher.hash().asLong();
+      methods.put(symbol, method);
+    }
+    return method;
+  }
+}
@@ -18,17 +18,17 @@ package uk.ac.cam.acr31.features.javac.semantic;
 
 import com.sun.source.tree.AssignmentTree;
 import com.sun.source.tree.BinaryTree;
-import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.ExpressionTree;
 import com.sun.source.tree.MethodInvocationTree;
 import com.sun.source.tree.Tree;
 import com.sun.source.tree.VariableTree;
-import com.sun.source.util.TreeScanner;
+import java.util.Set;
 import javax.lang.model.type.TypeMirror;
 import uk.ac.cam.acr31.features.javac.graph.FeatureGraph;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos;
+import uk.ac.cam.acr31.features.javac.syntactic.CompositeScanner;
 
-public class TypeScanner extends TreeScanner<Void, Void> {
+public class TypeScanner extends CompositeScanner.Pass {
   private final FeatureGraph graph;
   private final TypeAnalysis typeAnalysis;
 
@@ -37,10 +37,10 @@ public class TypeScanner extends TreeScanner<Void, Void> {
     this.typeAnalysis = typeAnalysis;
   }
 
-  public static void addToGraph(
-      CompilationUnitTree compilationUnitTree, FeatureGraph graph, TypeAnalysis typeAnalysis) {
-    TypeScanner typeScanner = new TypeScanner(graph, typeAnalysis);
-    compilationUnitTree.accept(typeScanner, null);
+  @Override
+  protected Set<Tree.Kind> kinds() {
+    return CompositeScanner.kindsOf(
+        VariableTree.class, AssignmentTree.class, BinaryTree.class, MethodInvocationTree.class);
   }
 
   private void addTypeEdge(Tree tree) {
@@ -59,31 +59,31 @@ public class TypeScanner extends TreeScanner<Void, Void> {
   }
 
   @Override
-  public Void visitVariable(VariableTree tree, Void ignored) {
+  public Boolean visitVariable(VariableTree tree, Void ignored) {
     addTypeEdge(tree.getType());
     addTypeEdge(tree.getInitializer());
-    return super.visitVariable(tree, ignored);
+    return true;
   }
 
   @Override
-  public Void visitAssignment(AssignmentTree tree, Void ignored) {
+  public Boolean visitAssignment(AssignmentTree tree, Void ignored) {
     addTypeEdge(tree.getExpression());
     addTypeEdge(tree.getVariable());
-    return super.visitAssignment(tree, ignored);
+    return true;
   }
 
   @Override
-  public Void visitBinary(BinaryTree tree, Void ignored) {
+  public Boolean visitBinary(BinaryTree tree, Void ignored) {
     addTypeEdge(tree.getLeftOperand());
     addTypeEdge(tree.getRightOperand());
-    return super.visitBinary(tree, ignored);
+    return true;
   }
 
   @Override
-  public Void visitMethodInvocation(MethodInvocationTree tree, Void ignored) {
+  public Boolean visitMethodInvocation(MethodInvocationTree tree, Void ignored) {
     for (ExpressionTree argTree : tree.getArguments()) {
       addTypeEdge(argTree);
     }
-    return super.visitMethodInvocation(tree, ignored);
+    return true;
   }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.syntactic;
+
+import com.sun.source.tree.Tree;
+import com.sun.source.util.SimpleTreeVisitor;
+import com.sun.source.util.TreeScanner;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs several passes over a tree in a single traversal.
+ *
+ * <p>The traversal visits the same trees in the same order as a {@link TreeScanner}. Each pass is
+ * only called for the kinds of tree it has registered for: {@link Pass#visit} is called before the
+ * children of the tree are scanned and {@link Pass#leave} afterwards. If a pass returns false from
+ * visit then it is not called for any of the descendants of that tree, just as if a {@link
+ * TreeScanner} subclass had not called super. Other passes still see the descendants.
+ */
+public class CompositeScanner extends TreeScanner<Void, Void> {
+
+  /** A pass which keeps its own state and is called back by a CompositeScanner. */
+  public abstract static class Pass extends SimpleTreeVisitor<Boolean, Void> {
+
+    protected Pass() {
+      super(true);
+    }
+
+    /** The kinds of tree which this pass should be called for. */
+    protected abstract Set<Tree.Kind> kinds();
+
+    /** Called on each tree this pass visited after the children of the tree have been scanned. */
+    protected void leave(Tree tree) {
+      // most passes only need visit
+    }
+
+    /** Called once the traversal is complete. */
+    protected void finish() {
+      // most passes add their features while scanning
+    }
+  }
+
+  private final Pass[] passes;
+  /** The indices of the passes registered for each kind of tree, indexed by ordinal. */
+  private final int[][] passesByKind;
+  /** For each pass the tree whose descendants it is not visiting, or null. */
+  private final Tree[] skipping;
+
+  private CompositeScanner(List<? extends Pass> passes) {
+    this.passes = passes.toArray(new Pass[0]);
+    this.passesByKind = new int[Tree.Kind.values().length][];
+    this.skipping = new Tree[this.passes.length];
+    int[] sizes = new int[passesByKind.length];
+    for (int i = 0; i < passesByKind.length; i++) {
+      passesByKind[i] = new int[this.passes.length];
+    }
+    for (int pass = 0; pass < this.passes.length; pass++) {
+      for (Tree.Kind kind : this.passes[pass].kinds()) {
+        passesByKind[kind.ordinal()][sizes[kind.ordinal()]++] = pass;
+      }
+    }
+    for (int i = 0; i < passesByKind.length; i++) {
+      passesByKind[i] = Arrays.copyOf(passesByKind[i], sizes[i]);
+    }
+  }
+
+  /** Scan the tree once calling back each of the passes and then finish them in order. */
+  public static void run(Tree tree, List<? extends Pass> passes) {
+    new CompositeScanner(passes).scan(tree, null);
+    for (Pass pass : passes) {
+      pass.finish();
+    }
+  }
+
+  /** Returns all the kinds of tree which are represented by any of these interfaces. */
+  @SafeVarargs
+  public static Set<Tree.Kind> kindsOf(Class<? extends Tree>... treeInterfaces) {
+    Set<Tree.Kind> result = EnumSet.noneOf(Tree.Kind.class);
+    for (Tree.Kind kind : Tree.Kind.values()) {
+      for (Class<? extends Tree> treeInterface : treeInterfaces) {
+        if (kind.asInterface() == treeInterface) {
+          result.add(kind);
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Void scan(Tree tree, Void ignored) {
+    if (tree == null) {
+      return null;
+    }
+    int[] interested = passesByKind[tree.getKind().ordinal()];
+    for (int pass : interested) {
+      if (skipping[pass] == null && !tree.accept(passes[pass], null)) {
+        skipping[pass] = tree;
+      }
+    }
+    tree.accept(this, null);
+    for (int pass : interested) {
+      if (skipping[pass] == tree) {
+        skipping[pass] = null;
+        passes[pass].leave(tree);
+      } else if (skipping[pass] == null) {
+        passes[pass].leave(tree);
+      }
+    }
+    return null;
+  }
+}
@@ -17,59 +17,64 @@
 package uk.ac.cam.acr31.features.javac.syntactic;
 
 import com.sun.source.tree.AssignmentTree;
-import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.ExpressionTree;
 import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.Tree;
 import com.sun.source.tree.VariableTree;
-import com.sun.source.util.TreeScanner;
+import java.util.List;
+import java.util.Set;
 import uk.ac.cam.acr31.features.javac.graph.FeatureGraph;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureEdge.EdgeType;
 
 /** Add edges connecting v to all variables in expr when we see an assignment v = expr. */
-public class ComputedFromScanner extends TreeScanner<Void, Void> {
+public class ComputedFromScanner extends CompositeScanner.Pass {
 
   private final FeatureGraph graph;
+  private final IdentifierIndex identifierIndex;
 
-  public static void addToGraph(CompilationUnitTree tree, FeatureGraph graph) {
-    ComputedFromScanner computedFromScanner = new ComputedFromScanner(graph);
-    tree.accept(computedFromScanner, null);
-  }
-
-  private ComputedFromScanner(FeatureGraph graph) {
+  public ComputedFromScanner(FeatureGraph graph, IdentifierIndex identifierIndex) {
     this.graph = graph;
+    this.identifierIndex = identifierIndex;
   }
 
   @Override
-  public Void visitAssignment(AssignmentTree node, Void ignored) {
+  protected Set<Tree.Kind> kinds() {
+    return CompositeScanner.kindsOf(AssignmentTree.class, VariableTree.class);
+  }
 
-    IdentifierCollector rhsCollector = new IdentifierCollector();
-    node.getExpression().accept(rhsCollector, null);
+  /** Nested assignments are not followed, the edges are added when the tree is left. */
+  @Override
+  protected Boolean defaultAction(Tree node, Void ignored) {
+    return false;
+  }
 
-    IdentifierCollector lhsCollector = new IdentifierCollector();
-    node.getVariable().accept(lhsCollector, null);
+  @Override
+  protected void leave(Tree tree) {
+    if (tree instanceof AssignmentTree) {
+      addEdges((AssignmentTree) tree);
+    } else {
+      addEdges((VariableTree) tree);
+    }
+  }
 
-    for (IdentifierTree lhs : lhsCollector.identifiers) {
-      for (IdentifierTree rhs : rhsCollector.identifiers) {
+  private void addEdges(AssignmentTree node) {
+    List<IdentifierTree> rhsIdentifiers = identifierIndex.identifiers(node.getExpression());
+    for (IdentifierTree lhs : identifierIndex.identifiers(node.getVariable())) {
+      for (IdentifierTree rhs : rhsIdentifiers) {
         graph.addIdentifierEdge(lhs, rhs, EdgeType.COMPUTED_FROM);
       }
     }
-    return null;
   }
 
-  @Override
-  public Void visitVariable(VariableTree node, Void ignored) {
+  private void addEdges(VariableTree node) {
     ExpressionTree initializer = node.getInitializer();
     // if the initialiser is a NewClassTree then we are creating an anonymous inner class of some
     // sort. so it doesn't make sense to try and flow variables out of it.
     if (initializer == null) { // || initializer instanceof NewClassTree) {
-      return null;
+      return;
     }
-    IdentifierCollector rhsCollector = new IdentifierCollector();
-    initializer.accept(rhsCollector, null);
-
-    for (IdentifierTree rhs : rhsCollector.identifiers) {
+    for (IdentifierTree rhs : identifierIndex.identifiers(initializer)) {
       graph.addIdentifierEdge(node, rhs, EdgeType.COMPUTED_FROM);
     }
-    return null;
   }
 }
@@ -17,79 +17,100 @@
 package uk.ac.cam.acr31.features.javac.syntactic;
 
 import com.google.common.collect.ImmutableMap;
-import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.ExpressionTree;
 import com.sun.source.tree.IdentifierTree;
 import com.sun.source.tree.MethodInvocationTree;
 import com.sun.source.tree.MethodTree;
 import com.sun.source.tree.NewClassTree;
+import com.sun.source.tree.Tree;
 import com.sun.source.tree.VariableTree;
-import com.sun.source.util.TreeScanner;
 import com.sun.tools.javac.code.Symbol;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import uk.ac.cam.acr31.features.javac.Symbols;
+import java.util.Set;
+import uk.ac.cam.acr31.features.javac.TreeSymbols;
 import uk.ac.cam.acr31.features.javac.graph.FeatureGraph;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureEdge.EdgeType;
 
 /**
  * Creates edges between actual parameters (method arguments) and formal parameters within the same
  * compilation unit.
+ *
+ * <p>A call can appear before the declaration of the method it calls so the calls are recorded
+ * during the scan and only matched against the methods declared in the compilation unit once the
+ * scan has finished.
  */
-public class FormalArgScanner extends TreeScanner<Void, Void> {
+public class FormalArgScanner extends CompositeScanner.Pass {
 
   private final FeatureGraph graph;
-  private final Map<Symbol.MethodSymbol, MethodTree> methodSymbols;
-
-  private static class MethodSymbolCollector extends TreeScanner<Void, Void> {
+  private final IdentifierIndex identifierIndex;
+  private final TreeSymbols treeSymbols;
+  private final ImmutableMap.Builder<Symbol.MethodSymbol, MethodTree> methodSymbols =
+      ImmutableMap.builder();
+  private final List<Call> calls = new ArrayList<>();
 
-    private ImmutableMap.Builder<Symbol.MethodSymbol, MethodTree> methodSymbols =
-        ImmutableMap.builder();
+  private static class Call {
+    private final Symbol.MethodSymbol symbol;
+    private final List<? extends ExpressionTree> arguments;
 
-    @Override
-    public Void visitMethod(MethodTree node, Void ignored) {
-      Symbols.getSymbol(node).ifPresent(sym -> methodSymbols.put(sym, node));
-      return super.visitMethod(node, ignored);
+    private Call(Symbol.MethodSymbol symbol, List<? extends ExpressionTree> arguments) {
+      this.symbol = symbol;
+      this.arguments = arguments;
     }
+  }
 
-    private static ImmutableMap<Symbol.MethodSymbol, MethodTree> collect(
-        CompilationUnitTree compilationUnitTree) {
-      MethodSymbolCollector methodSymbolCollector = new MethodSymbolCollector();
-      compilationUnitTree.accept(methodSymbolCollector, null);
-      return methodSymbolCollector.methodSymbols.build();
-    }
+  /** Create a pass which matches the arguments of calls to the methods declared in the file. */
+  public FormalArgScanner(
+      FeatureGraph graph, IdentifierIndex identifierIndex, TreeSymbols treeSymbols) {
+    this.graph = graph;
+    this.identifierIndex = identifierIndex;
+    this.treeSymbols = treeSymbols;
   }
 
-  /** Scan this compilation tree and add all features to the graph. */
-  public static void addToGraph(CompilationUnitTree compilationUnitTree, FeatureGraph graph) {
-    ImmutableMap<Symbol.MethodSymbol, MethodTree> methodSymbols =
-        MethodSymbolCollector.collect(compilationUnitTree);
-    FormalArgScanner formalArgScanner = new FormalArgScanner(graph, methodSymbols);
-    compilationUnitTree.accept(formalArgScanner, null);
+  @Override
+  protected Set<Tree.Kind> kinds() {
+    return CompositeScanner.kindsOf(
+        MethodTree.class, MethodInvocationTree.class, NewClassTree.class);
   }
 
-  private FormalArgScanner(FeatureGraph graph, Map<Symbol.MethodSymbol, MethodTree> methodSymbols) {
-    this.graph = graph;
-    this.methodSymbols = methodSymbols;
+  @Override
+  public Boolean visitMethod(MethodTree node, Void ignored) {
+    Symbol.MethodSymbol symbol = treeSymbols.get(node);
+    if (symbol != null) {
+      methodSymbols.put(symbol, node);
+    }
+    return true;
   }
 
   @Override
-  public Void visitMethodInvocation(MethodInvocationTree node, Void ignored) {
-    Symbols.getSymbol(node)
-        .filter(methodSymbols::containsKey)
-        .map(methodSymbols::get)
-        .ifPresent(mth -> process(node.getArguments(), mth.getParameters()));
-    return super.visitMethodInvocation(node, ignored);
+  public Boolean visitMethodInvocation(MethodInvocationTree node, Void ignored) {
+    addCall(treeSymbols.get(node), node.getArguments());
+    return true;
   }
 
   @Override
-  public Void visitNewClass(NewClassTree node, Void ignored) {
-    Symbols.getSymbol(node)
-        .filter(methodSymbols::containsKey)
-        .map(methodSymbols::get)
-        .ifPresent(mth -> process(node.getArguments(), mth.getParameters()));
-    return super.visitNewClass(node, ignored);
+  public Boolean visitNewClass(NewClassTree node, Void ignored) {
+    addCall(treeSymbols.get(node), node.getArguments());
+    return true;
+  }
+
+  private void addCall(Symbol.MethodSymbol symbol, List<? extends ExpressionTree> arguments) {
+    if (symbol != null) {
+      calls.add(new Call(symbol, arguments));
+    }
+  }
+
+  @Override
+  protected void finish() {
+    Map<Symbol.MethodSymbol, MethodTree> methods = methodSymbols.build();
+    for (Call call : calls) {
+      MethodTree method = methods.get(call.symbol);
+      if (method != null) {
+        process(call.arguments, method.getParameters());
+      }
+    }
   }
 
   private void process(
@@ -99,9 +120,7 @@ public class FormalArgScanner extends TreeScanner<Void, Void> {
     while (argumentIterator.hasNext() && parameterIterator.hasNext()) {
       ExpressionTree argument = argumentIterator.next();
       VariableTree parameter = parameterIterator.next();
-      IdentifierCollector c = new IdentifierCollector();
-      argument.accept(c, null);
-      for (IdentifierTree identifierTree : c.identifiers) {
+      for (IdentifierTree identifierTree : identifierIndex.identifiers(argument)) {
         graph.addIdentifierEdge(identifierTree, parameter, EdgeType.FORMAL_ARG_NAME);
       }
     }
@@ -16,11 +16,10 @@
 
 package uk.ac.cam.acr31.features.javac.syntactic;
 
-import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.IdentifierTree;
 import com.sun.source.tree.IfTree;
 import com.sun.source.tree.Tree;
-import com.sun.source.util.TreeScanner;
+import java.util.Set;
 import uk.ac.cam.acr31.features.javac.graph.FeatureGraph;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureEdge.EdgeType;
 
@@ -31,35 +30,30 @@ import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureEdge.EdgeType;
  * <p>e.g. {@code if (x>y) { ... x ...} else { ... y ....}} results in GUARDED_BY edge from x to
  * (x>y) and a GUARDED_BY_NEGATION edge from y to (x>y).
  */
-public class GuardedByScanner extends TreeScanner<Void, Void> {
+public class GuardedByScanner extends CompositeScanner.Pass {
 
   private final FeatureGraph graph;
+  private final IdentifierIndex identifierIndex;
 
-  public static void addToGraph(
-      CompilationUnitTree compilationUnitTree, FeatureGraph featureGraph) {
-    GuardedByScanner guardedByVisitor = new GuardedByScanner(featureGraph);
-    compilationUnitTree.accept(guardedByVisitor, null);
+  public GuardedByScanner(FeatureGraph graph, IdentifierIndex identifierIndex) {
+    this.graph = graph;
+    this.identifierIndex = identifierIndex;
   }
 
-  private GuardedByScanner(FeatureGraph graph) {
-    this.graph = graph;
+  @Override
+  protected Set<Tree.Kind> kinds() {
+    return CompositeScanner.kindsOf(IfTree.class);
   }
 
   @Override
-  public Void visitIf(IfTree node, Void ignored) {
+  protected void leave(Tree tree) {
+    IfTree node = (IfTree) tree;
     findIdentifiers(node.getCondition(), node.getThenStatement(), EdgeType.GUARDED_BY);
     findIdentifiers(node.getCondition(), node.getElseStatement(), EdgeType.GUARDED_BY_NEGATION);
-
-    return super.visitIf(node, ignored);
   }
 
   private void findIdentifiers(Tree root, Tree node, EdgeType edgeType) {
-    if (node == null) {
-      return;
-    }
-    IdentifierCollector ic = new IdentifierCollector();
-    node.accept(ic, null);
-    for (IdentifierTree identifierTree : ic.identifiers) {
+    for (IdentifierTree identifierTree : identifierIndex.identifiers(node)) {
       graph.addEdge(identifierTree, root, edgeType);
     }
   }
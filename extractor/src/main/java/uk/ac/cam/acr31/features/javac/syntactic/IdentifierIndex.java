@@ -0,0 +1,187 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.syntactic;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+import com.google.common.collect.ImmutableList;
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.NewClassTree;
+import com.sun.source.tree.Tree;
+import com.sun.tools.javac.code.Kinds;
+import com.sun.tools.javac.code.Symbol;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import uk.ac.cam.acr31.features.javac.TreeSymbols;
+
+/**
+ * The variable identifiers beneath each tree, as an {@link IdentifierCollector} would find them.
+ *
+ * <p>The identifiers are recorded once in the order they are scanned and each tree remembers the
+ * range of that list which falls within it. The bodies of anonymous classes are left out of the
+ * identifiers of any tree enclosing their creation; their ranges are recorded too so that they can
+ * be skipped.
+ *
+ * <p>The identifiers of a tree are only complete once the tree has been left, so passes sharing a
+ * scan with this one must be registered after it and query it from {@link Pass#leave} or {@link
+ * Pass#finish}.
+ */
+public class IdentifierIndex extends CompositeScanner.Pass {
+
+  private final TreeSymbols treeSymbols;
+  private final List<IdentifierTree> identifiers = new ArrayList<>();
+  private final Map<Tree, Integer> treeIndex = new IdentityHashMap<>();
+  private final Map<Tree, Integer> pendingBodies = new IdentityHashMap<>();
+
+  /** For each tree in scan order, where its identifiers start and end. */
+  private int[] from = new int[64];
+
+  private int[] to = new int[64];
+  /** For each tree in scan order, the anonymous class bodies created within it. */
+  private int[] firstBody = new int[64];
+
+  private int[] lastBody = new int[64];
+  private int treeCount = 0;
+
+  /** For each anonymous class body in the order their creation is scanned, its identifiers. */
+  private int[] bodyFrom = new int[16];
+
+  private int[] bodyTo = new int[16];
+  private int bodyCount = 0;
+
+  public IdentifierIndex(TreeSymbols treeSymbols) {
+    this.treeSymbols = treeSymbols;
+  }
+
+  @Override
+  protected Set<Tree.Kind> kinds() {
+    return EnumSet.allOf(Tree.Kind.class);
+  }
+
+  /** Returns the variable identifiers found by scanning this tree. */
+  public List<IdentifierTree> identifiers(Tree tree) {
+    if (tree == null) {
+      return ImmutableList.of();
+    }
+    Integer index = treeIndex.get(tree);
+    if (index == null) {
+      IdentifierCollector collector = new IdentifierCollector();
+      tree.accept(collector, null);
+      return collector.identifiers;
+    }
+    if (firstBody[index] == lastBody[index]) {
+      return new RangeView(from[index], to[index]);
+    }
+    List<IdentifierTree> result = new ArrayList<>();
+    int cursor = from[index];
+    // Bodies are in scan order so a body starting before the cursor is nested in one skipped.
+    for (int body = firstBody[index]; body < lastBody[index]; body++) {
+      if (bodyFrom[body] >= cursor) {
+        result.addAll(new RangeView(cursor, bodyFrom[body]));
+        cursor = bodyTo[body];
+      }
+    }
+    result.addAll(new RangeView(cursor, to[index]));
+    return result;
+  }
+
+  /**
+   * A view of part of the identifiers. Identifiers are only ever appended so the view stays valid
+   * as the scan continues.
+   */
+  private class RangeView extends AbstractList<IdentifierTree> implements RandomAccess {
+    private final int start;
+    private final int end;
+
+    private RangeView(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public IdentifierTree get(int index) {
+      checkElementIndex(index, end - start);
+      return identifiers.get(start + index);
+    }
+
+    @Override
+    public int size() {
+      return end - start;
+    }
+  }
+
+  @Override
+  protected Boolean defaultAction(Tree node, Void ignored) {
+    int index = treeCount++;
+    if (index == from.length) {
+      int length = index * 2;
+      from = Arrays.copyOf(from, length);
+      to = Arrays.copyOf(to, length);
+      firstBody = Arrays.copyOf(firstBody, length);
+      lastBody = Arrays.copyOf(lastBody, length);
+    }
+    from[index] = identifiers.size();
+    firstBody[index] = bodyCount;
+    treeIndex.put(node, index);
+    return true;
+  }
+
+  @Override
+  public Boolean visitIdentifier(IdentifierTree node, Void ignored) {
+    defaultAction(node, ignored);
+    Symbol symbol = treeSymbols.get(node);
+    if (symbol != null && symbol.kind == Kinds.Kind.VAR) {
+      identifiers.add(node);
+    }
+    return true;
+  }
+
+  @Override
+  public Boolean visitNewClass(NewClassTree node, Void ignored) {
+    defaultAction(node, ignored);
+    if (node.getClassBody() != null) {
+      if (bodyCount == bodyFrom.length) {
+        bodyFrom = Arrays.copyOf(bodyFrom, bodyCount * 2);
+        bodyTo = Arrays.copyOf(bodyTo, bodyCount * 2);
+      }
+      pendingBodies.put(node.getClassBody(), bodyCount++);
+    }
+    return true;
+  }
+
+  @Override
+  protected void leave(Tree tree) {
+    int index = treeIndex.get(tree);
+    to[index] = identifiers.size();
+    lastBody[index] = bodyCount;
+    if (tree instanceof ClassTree) {
+      Integer body = pendingBodies.remove(tree);
+      if (body != null) {
+        bodyFrom[body] = from[index];
+        bodyTo[body] = to[index];
+      }
+    }
+  }
+}
@@ -19,32 +19,39 @@ package uk.ac.cam.acr31.features.javac.syntactic;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
-import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.IdentifierTree;
 import com.sun.source.tree.Tree;
 import com.sun.source.tree.VariableTree;
-import com.sun.source.util.TreeScanner;
 import com.sun.tools.javac.code.Kinds;
 import com.sun.tools.javac.code.Symbol;
 import java.util.Collection;
 import java.util.Iterator;
-import uk.ac.cam.acr31.features.javac.Symbols;
+import java.util.Set;
+import uk.ac.cam.acr31.features.javac.TreeSymbols;
 import uk.ac.cam.acr31.features.javac.graph.FeatureGraph;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureEdge.EdgeType;
 
 /** Adds edges between each usage of a variable in lexical order in the file. */
-public class LastLexicalUseScanner extends TreeScanner<Void, Void> {
+public class LastLexicalUseScanner extends CompositeScanner.Pass {
 
+  private final FeatureGraph featureGraph;
+  private final TreeSymbols treeSymbols;
   private ImmutableMultimap.Builder<Symbol, Tree> symbolMap = ImmutableListMultimap.builder();
 
-  /** Scan this tree and add all the features to the graph. */
-  public static void addToGraph(
-      CompilationUnitTree compilationUnitTree, FeatureGraph featureGraph) {
+  public LastLexicalUseScanner(FeatureGraph featureGraph, TreeSymbols treeSymbols) {
+    this.featureGraph = featureGraph;
+    this.treeSymbols = treeSymbols;
+  }
 
-    LastLexicalUseScanner lastLexicalUseScanner = new LastLexicalUseScanner();
-    compilationUnitTree.accept(lastLexicalUseScanner, null);
-    ImmutableMap<Symbol, Collection<Tree>> symbolMap =
-        lastLexicalUseScanner.symbolMap.build().asMap();
+  @Override
+  protected Set<Tree.Kind> kinds() {
+    return CompositeScanner.kindsOf(VariableTree.class, IdentifierTree.class);
+  }
+
+  /** Add edges between the uses of each symbol that the scan found. */
+  @Override
+  protected void finish() {
+    ImmutableMap<Symbol, Collection<Tree>> symbolMap = this.symbolMap.build().asMap();
 
     for (Collection<Tree> commonIds : symbolMap.values()) {
       Iterator<Tree> idIterator = commonIds.iterator();
@@ -58,16 +65,20 @@ public class LastLexicalUseScanner extends TreeScanner<Void, Void> {
   }
 
   @Override
-  public Void visitVariable(VariableTree node, Void ignored) {
-    Symbols.getSymbol(node).ifPresent(sym -> symbolMap.put(sym, node));
-    return super.visitVariable(node, ignored);
+  public Boolean visitVariable(VariableTree node, Void ignored) {
+    Symbol symbol = treeSymbols.get(node);
+    if (symbol != null) {
+      symbolMap.put(symbol, node);
+    }
+    return true;
   }
 
   @Override
-  public Void visitIdentifier(IdentifierTree node, Void ignored) {
-    Symbols.getSymbol(node)
-        .filter(sym -> sym.kind == Kinds.Kind.VAR)
-        .ifPresent(sym -> symbolMap.put(sym, node));
-    return super.visitIdentifier(node, ignored);
+  public Boolean visitIdentifier(IdentifierTree node, Void ignored) {
+    Symbol symbol = treeSymbols.get(node);
+    if (symbol != null && symbol.kind == Kinds.Kind.VAR) {
+      symbolMap.put(symbol, node);
+    }
+    return true;
   }
 }
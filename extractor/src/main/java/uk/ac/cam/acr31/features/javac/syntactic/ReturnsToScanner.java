@@ -16,57 +16,85 @@
 
 package uk.ac.cam.acr31.features.javac.syntactic;
 
-import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.IdentifierTree;
 import com.sun.source.tree.MethodTree;
 import com.sun.source.tree.ReturnTree;
-import com.sun.source.util.TreeScanner;
-import java.util.List;
+import com.sun.source.tree.Tree;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
 import uk.ac.cam.acr31.features.javac.graph.FeatureGraph;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureEdge.EdgeType;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureNode;
 
-public class ReturnsToScanner extends TreeScanner<Void, Void> {
+/**
+ * Adds edges from the variables returned by each method to the method.
+ *
+ * <p>The variables come from the last return statement with an expression that is reached by
+ * scanning the body of the method, not counting return statements nested within the expression of
+ * another return statement.
+ */
+public class ReturnsToScanner extends CompositeScanner.Pass {
 
   private final FeatureGraph graph;
+  private final IdentifierIndex identifierIndex;
+  /** The methods enclosing the current position in the scan, innermost first. */
+  private final Deque<OpenMethod> openMethods = new ArrayDeque<>();
 
-  public static void addToGraph(
-      CompilationUnitTree compilationUnitTree, FeatureGraph featureGraph) {
-    ReturnsToScanner returnsToScanner = new ReturnsToScanner(featureGraph);
-    compilationUnitTree.accept(returnsToScanner, null);
+  private static class OpenMethod {
+    /** The number of return statements enclosing the current position within this method. */
+    private int returnDepth = 0;
+
+    private ReturnTree lastReturn = null;
   }
 
-  private ReturnsToScanner(FeatureGraph graph) {
+  public ReturnsToScanner(FeatureGraph graph, IdentifierIndex identifierIndex) {
     this.graph = graph;
+    this.identifierIndex = identifierIndex;
   }
 
-  private static class ReturnCollector extends TreeScanner<Void, Void> {
+  @Override
+  protected Set<Tree.Kind> kinds() {
+    return CompositeScanner.kindsOf(MethodTree.class, ReturnTree.class);
+  }
 
-    List<IdentifierTree> identifiers;
+  @Override
+  public Boolean visitMethod(MethodTree node, Void ignored) {
+    if (node.getBody() == null) {
+      return false;
+    }
+    openMethods.push(new OpenMethod());
+    return true;
+  }
 
-    @Override
-    public Void visitReturn(ReturnTree node, Void ignored) {
-      if (node.getExpression() == null) {
-        return null;
+  @Override
+  public Boolean visitReturn(ReturnTree node, Void ignored) {
+    for (OpenMethod method : openMethods) {
+      if (method.returnDepth == 0 && node.getExpression() != null) {
+        method.lastReturn = node;
       }
-      IdentifierCollector ic = new IdentifierCollector();
-      node.getExpression().accept(ic, null);
-      identifiers = ic.identifiers;
-      return null;
+      method.returnDepth++;
     }
+    return true;
   }
 
   @Override
-  public Void visitMethod(MethodTree node, Void ignored) {
+  protected void leave(Tree tree) {
+    if (tree instanceof ReturnTree) {
+      for (OpenMethod method : openMethods) {
+        method.returnDepth--;
+      }
+      return;
+    }
+    MethodTree node = (MethodTree) tree;
     if (node.getBody() == null) {
-      return null;
+      return;
     }
-    ReturnCollector returnCollector = new ReturnCollector();
-    node.getBody().accept(returnCollector, null);
-
-    if (returnCollector.identifiers != null) {
+    ReturnTree lastReturn = openMethods.pop().lastReturn;
+    if (lastReturn != null) {
       FeatureNode dest = graph.lookupNode(node);
-      for (IdentifierTree identifierTree : returnCollector.identifiers) {
+      for (IdentifierTree identifierTree :
+          identifierIndex.identifiers(lastReturn.getExpression())) {
         FeatureNode featureNode = graph.lookupNode(identifierTree);
         if (featureNode != null) {
           for (FeatureNode succ : graph.successors(featureNode, EdgeType.ASSOCIATED_TOKEN)) {
@@ -75,6 +103,5 @@ public class ReturnsToScanner extends TreeScanner<Void, Void> {
         }
       }
     }
-    return super.visitMethod(node, ignored);
   }
 }
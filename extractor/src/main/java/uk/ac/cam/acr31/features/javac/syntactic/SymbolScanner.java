@@ -16,10 +16,7 @@
 
 package uk.ac.cam.acr31.features.javac.syntactic;
 
-import static uk.ac.cam.acr31.features.javac.Optionals.ifBothPresent;
-
 import com.sun.source.tree.ClassTree;
-import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.IdentifierTree;
 import com.sun.source.tree.MemberSelectTree;
 import com.sun.source.tree.MethodInvocationTree;
@@ -28,103 +25,63 @@ import com.sun.source.tree.NewClassTree;
 import com.sun.source.tree.PackageTree;
 import com.sun.source.tree.Tree;
 import com.sun.source.tree.VariableTree;
-import com.sun.source.util.TreeScanner;
 import com.sun.tools.javac.code.Symbol;
-import java.util.Optional;
-import uk.ac.cam.acr31.features.javac.Symbols;
+import java.util.Set;
+import uk.ac.cam.acr31.features.javac.TreeSymbols;
 import uk.ac.cam.acr31.features.javac.graph.FeatureGraph;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureEdge.EdgeType;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureNode;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureNode.NodeType;
 
 /** Attaches symbol nodes to all elements which javac has resolved a symbol for. */
-public class SymbolScanner extends TreeScanner<Void, Void> {
+public class SymbolScanner extends CompositeScanner.Pass {
 
   private final FeatureGraph featureGraph;
+  private final TreeSymbols treeSymbols;
 
-  public SymbolScanner(FeatureGraph featureGraph) {
+  public SymbolScanner(FeatureGraph featureGraph, TreeSymbols treeSymbols) {
     this.featureGraph = featureGraph;
-  }
-
-  public static void addToGraph(
-      CompilationUnitTree compilationUnitTree, FeatureGraph featureGraph) {
-    compilationUnitTree.accept(new SymbolScanner(featureGraph), null);
-  }
-
-  @Override
-  public Void visitClass(ClassTree node, Void ignored) {
-    Void result = super.visitClass(node, ignored);
-    addNode(node);
-    return result;
-  }
-
-  @Override
-  public Void visitNewClass(NewClassTree node, Void ignored) {
-    Void result = super.visitNewClass(node, ignored);
-    addNode(node);
-    return result;
-  }
-
-  @Override
-  public Void visitMethod(MethodTree node, Void ignored) {
-    Void result = super.visitMethod(node, ignored);
-    addNode(node);
-    return result;
+    this.treeSymbols = treeSymbols;
   }
 
   @Override
-  public Void visitMethodInvocation(MethodInvocationTree node, Void ignored) {
-    Void result = super.visitMethodInvocation(node, ignored);
-    addNode(node);
-    return result;
+  protected Set<Tree.Kind> kinds() {
+    return CompositeScanner.kindsOf(
+        ClassTree.class,
+        NewClassTree.class,
+        MethodTree.class,
+        MethodInvocationTree.class,
+        IdentifierTree.class,
+        MemberSelectTree.class,
+        VariableTree.class,
+        PackageTree.class);
   }
 
+  /** Symbols are attached once the children of the tree have been scanned. */
   @Override
-  public Void visitIdentifier(IdentifierTree node, Void ignored) {
-    Void result = super.visitIdentifier(node, ignored);
+  protected void leave(Tree node) {
     addNode(node);
-    return result;
-  }
-
-  @Override
-  public Void visitMemberSelect(MemberSelectTree node, Void ignored) {
-    Void result = super.visitMemberSelect(node, ignored);
-    addNode(node);
-    return result;
-  }
-
-  @Override
-  public Void visitVariable(VariableTree node, Void ignored) {
-    Void result = super.visitVariable(node, ignored);
-    addNode(node);
-    return result;
-  }
-
-  @Override
-  public Void visitPackage(PackageTree node, Void ignored) {
-    Void result = super.visitPackage(node, ignored);
-    addNode(node);
-    return result;
   }
 
   private void addNode(Tree node) {
-    Optional<FeatureNode> featureNode =
-        Symbols.getSymbol(node).map(sym -> featureGraph.createFeatureNode(toSymbolType(sym), sym));
-    Optional<FeatureNode> target =
-        Optional.ofNullable(featureGraph.lookupNode(node)).map(featureGraph::toIdentifierNode);
+    Symbol symbol = treeSymbols.get(node);
+    if (symbol == null) {
+      return;
+    }
+    FeatureNode featureNode = featureGraph.createFeatureNode(toSymbolType(symbol), symbol);
+    FeatureNode astNode = featureGraph.lookupNode(node);
+    if (astNode == null) {
+      return;
+    }
+    FeatureNode target = featureGraph.toIdentifierNode(astNode);
     // If your code says: String a = "a", b = "b", then javac synths up some extra ast nodes along
     // the lines of String a = "a"; String b = "b";  some of the extra nodes will be clones, some
     // (leaves) will just be the same node reused.  In this case we will visit String twice even
     // though both times point to the same token so just check that there is no edge before adding
     // another.
-    ifBothPresent(
-        featureNode,
-        target,
-        (f, t) -> {
-          if (featureGraph.predecessors(t, EdgeType.ASSOCIATED_SYMBOL).isEmpty()) {
-            featureGraph.addEdge(f, t, EdgeType.ASSOCIATED_SYMBOL);
-          }
-        });
+    if (target != null && featureGraph.predecessors(target, EdgeType.ASSOCIATED_SYMBOL).isEmpty()) {
+      featureGraph.addEdge(featureNode, target, EdgeType.ASSOCIATED_SYMBOL);
+    }
   }
 
   private static NodeType toSymbolType(Symbol symbol) {
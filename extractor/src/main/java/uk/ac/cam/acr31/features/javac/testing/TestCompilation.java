@@ -19,6 +19,7 @@ package uk.ac.cam.acr31.features.javac.testing;
 import com.google.auto.value.AutoValue;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.sun.source.util.JavacTask;
 import com.sun.tools.javac.api.JavacTool;
@@ -48,27 +49,32 @@ public abstract class TestCompilation {
 
   /** Compile the given source code. */
   public static TestCompilation compile(String fileName, String... lines) {
+    return compileWith(ImmutableMap.of(), fileName, lines);
+  }
+
+  /**
+   * Compile the given source code together with some other source files, given as a map from file
+   * name to source. The result holds the compilation unit of the given source code.
+   */
+  public static TestCompilation compileWith(
+      ImmutableMap<String, String> otherFiles, String fileName, String... lines) {
     JavacTool javacTool = JavacTool.create();
     Context context = new Context();
     String source = Joiner.on("\n").join(lines);
 
-    ImmutableList<JavaFileObject> compilationUnits =
-        ImmutableList.of(
-            new SimpleJavaFileObject(URI.create(fileName), JavaFileObject.Kind.SOURCE) {
-              @Override
-              public CharSequence getCharContent(boolean ignoreEncodingErrors) {
-                return source;
-              }
-            });
+    ImmutableList.Builder<JavaFileObject> compilationUnits = ImmutableList.builder();
+    compilationUnits.add(sourceFile(fileName, source));
+    otherFiles.forEach((name, otherSource) -> compilationUnits.add(sourceFile(name, otherSource)));
     DiagnosticListener<? super JavaFileObject> diagnosticListener =
         diagnostic -> {
           throw new AssertionError("Compilation failed: " + diagnostic.toString());
         };
     JavacTask task =
-        javacTool.getTask(null, null, diagnosticListener, null, null, compilationUnits, context);
+        javacTool.getTask(
+            null, null, diagnosticListener, null, null, compilationUnits.build(), context);
     try {
       JCTree.JCCompilationUnit compilationUnit =
-          (JCTree.JCCompilationUnit) Iterables.getOnlyElement(task.parse());
+          (JCTree.JCCompilationUnit) Iterables.getFirst(task.parse(), null);
       task.analyze();
       return create(compilationUnit, context, source);
     } catch (IOException e) {
@@ -76,6 +82,15 @@ public abstract class TestCompilation {
     }
   }
 
+  private static JavaFileObject sourceFile(String fileName, String source) {
+    return new SimpleJavaFileObject(URI.create(fileName), JavaFileObject.Kind.SOURCE) {
+      @Override
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return source;
+      }
+    };
+  }
+
   /** Return the source position of the first character of target. */
   public SourceSpan sourceSpan(String target, String followedBy) {
     return sourceSpan("", target, followedBy);
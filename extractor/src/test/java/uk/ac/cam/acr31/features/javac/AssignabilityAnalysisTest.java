@@ -17,6 +17,7 @@ package uk.ac.cam.acr31.features.javac;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import com.sun.tools.javac.util.Options;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -99,4 +100,83 @@ public class AssignabilityAnalysisTest {
                 graph, arg2TypeNode, arg1TypeNode, EdgeType.ASSIGNABLE_TO))
         .isTrue();
   }
+
+  @Test
+  public void assignabilityAnalysis_introducesAssignableEdgeFromPrimitiveToSupertypeOfItsBox() {
+    // ARRANGE
+    TestCompilation compilation =
+        TestCompilation.compile(
+            "Test.java", //
+            "public class Test {",
+            "  public static void main(String[] args) {",
+            "    int i = args.length;",
+            "    Object o = i;",
+            "    String s = \"\";",
+            "  }",
+            "}");
+    SourceSpan primitive = compilation.sourceSpan("int");
+    SourceSpan object = compilation.sourceSpan("Object");
+    SourceSpan string = compilation.sourceSpan("String", " s");
+
+    // ACT
+    FeatureGraph graph =
+        FeaturePlugin.createFeatureGraph(compilation.compilationUnit(), compilation.context());
+
+    // ASSERT
+    GraphProtos.FeatureNode primitiveTypeNode =
+        FeatureGraphChecks.findAssociatedTypeNode(graph, primitive);
+    GraphProtos.FeatureNode objectTypeNode =
+        FeatureGraphChecks.findAssociatedTypeNode(graph, object);
+    GraphProtos.FeatureNode stringTypeNode =
+        FeatureGraphChecks.findAssociatedTypeNode(graph, string);
+    assertThat(
+            FeatureGraphChecks.isEdgeBetween(
+                graph, primitiveTypeNode, objectTypeNode, EdgeType.ASSIGNABLE_TO))
+        .isTrue();
+    assertThat(
+            FeatureGraphChecks.isEdgeBetween(
+                graph, primitiveTypeNode, stringTypeNode, EdgeType.ASSIGNABLE_TO))
+        .isFalse();
+    assertThat(graph.getStatistics().get("assignability.pruned")).isGreaterThan(0L);
+  }
+
+  @Test
+  public void assignabilityAnalysis_reducedModeKeepsOnlyImmediateAssignableEdges() {
+    // ARRANGE
+    TestCompilation compilation =
+        TestCompilation.compile(
+            "Test.java", //
+            "public class Test {",
+            "  static class A {}",
+            "  static class B extends A {}",
+            "  static class C extends B {}",
+            "  private static void f(A a, B b, C c) {",
+            "  }",
+            "  public static void main(String[] args) {",
+            "    f(new A(), new B(), new C());",
+            "  }",
+            "}");
+    Options.instance(compilation.context()).put("assignableToEdges", "reduced");
+    SourceSpan a = compilation.sourceSpan("new A()");
+    SourceSpan b = compilation.sourceSpan("new B()");
+    SourceSpan c = compilation.sourceSpan("new C()");
+
+    // ACT
+    FeatureGraph graph =
+        FeaturePlugin.createFeatureGraph(compilation.compilationUnit(), compilation.context());
+
+    // ASSERT
+    GraphProtos.FeatureNode aTypeNode = FeatureGraphChecks.findAssociatedTypeNode(graph, a);
+    GraphProtos.FeatureNode bTypeNode = FeatureGraphChecks.findAssociatedTypeNode(graph, b);
+    GraphProtos.FeatureNode cTypeNode = FeatureGraphChecks.findAssociatedTypeNode(graph, c);
+    assertThat(
+            FeatureGraphChecks.isEdgeBetween(graph, cTypeNode, bTypeNode, EdgeType.ASSIGNABLE_TO))
+        .isTrue();
+    assertThat(
+            FeatureGraphChecks.isEdgeBetween(graph, bTypeNode, aTypeNode, EdgeType.ASSIGNABLE_TO))
+        .isTrue();
+    assertThat(
+            FeatureGraphChecks.isEdgeBetween(graph, cTypeNode, aTypeNode, EdgeType.ASSIGNABLE_TO))
+        .isFalse();
+  }
 }
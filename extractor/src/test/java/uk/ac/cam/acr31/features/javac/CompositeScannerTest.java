@@ -0,0 +1,135 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.util.TreeScanner;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import uk.ac.cam.acr31.features.javac.syntactic.CompositeScanner;
+import uk.ac.cam.acr31.features.javac.testing.TestCompilation;
+
+@RunWith(JUnit4.class)
+public class CompositeScannerTest {
+
+  private static final String[] SOURCE = {
+    "public class Test {",
+    "  int a;",
+    "  int f(int b) {",
+    "    return a + b;",
+    "  }",
+    "  int g() {",
+    "    return f(a);",
+    "  }",
+    "}"
+  };
+
+  /** Records the methods and identifiers it sees, optionally skipping the bodies of methods. */
+  private static class RecordingPass extends CompositeScanner.Pass {
+
+    private final boolean skipMethods;
+    private final List<String> events = new ArrayList<>();
+
+    private RecordingPass(boolean skipMethods) {
+      this.skipMethods = skipMethods;
+    }
+
+    @Override
+    protected Set<Tree.Kind> kinds() {
+      return CompositeScanner.kindsOf(MethodTree.class, IdentifierTree.class);
+    }
+
+    @Override
+    public Boolean visitMethod(MethodTree node, Void ignored) {
+      events.add("visit " + node.getName());
+      return !skipMethods;
+    }
+
+    @Override
+    public Boolean visitIdentifier(IdentifierTree node, Void ignored) {
+      events.add("visit " + node.getName());
+      return true;
+    }
+
+    @Override
+    protected void leave(Tree tree) {
+      if (tree instanceof MethodTree) {
+        events.add("leave " + ((MethodTree) tree).getName());
+      }
+    }
+  }
+
+  @Test
+  public void compositeScanner_visitsTreesInTreeScannerOrder() {
+    // ARRANGE
+    TestCompilation compilation = TestCompilation.compile("Test.java", SOURCE);
+    List<String> expected = new ArrayList<>();
+    compilation
+        .compilationUnit()
+        .accept(
+            new TreeScanner<Void, Void>() {
+              @Override
+              public Void visitMethod(MethodTree node, Void ignored) {
+                expected.add("visit " + node.getName());
+                super.visitMethod(node, ignored);
+                expected.add("leave " + node.getName());
+                return null;
+              }
+
+              @Override
+              public Void visitIdentifier(IdentifierTree node, Void ignored) {
+                expected.add("visit " + node.getName());
+                return super.visitIdentifier(node, ignored);
+              }
+            },
+            null);
+    RecordingPass pass = new RecordingPass(false);
+
+    // ACT
+    CompositeScanner.run(compilation.compilationUnit(), ImmutableList.of(pass));
+
+    // ASSERT
+    assertThat(pass.events).containsExactlyElementsIn(expected).inOrder();
+    assertThat(pass.events).contains("visit b");
+  }
+
+  @Test
+  public void compositeScanner_skipsChildrenOnlyForThePassWhichAskedToSkip() {
+    // ARRANGE
+    TestCompilation compilation = TestCompilation.compile("Test.java", SOURCE);
+    RecordingPass skipping = new RecordingPass(true);
+    RecordingPass notSkipping = new RecordingPass(false);
+
+    // ACT
+    CompositeScanner.run(compilation.compilationUnit(), ImmutableList.of(skipping, notSkipping));
+
+    // ASSERT
+    assertThat(skipping.events)
+        .containsExactly("visit <init>", "leave <init>", "visit f", "leave f", "visit g", "leave g")
+        .inOrder();
+    assertThat(notSkipping.events).containsAllOf("visit a", "visit b", "visit f");
+  }
+}
@@ -17,11 +17,19 @@ package uk.ac.cam.acr31.features.javac;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.sun.tools.javac.util.Options;
+import java.io.File;
+import java.io.IOException;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import uk.ac.cam.acr31.features.javac.graph.FeatureGraph;
 import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureEdge.EdgeType;
+import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureNode;
 import uk.ac.cam.acr31.features.javac.testing.FeatureGraphChecks;
 import uk.ac.cam.acr31.features.javac.testing.SourceSpan;
 import uk.ac.cam.acr31.features.javac.testing.TestCompilation;
@@ -29,6 +37,8 @@ import uk.ac.cam.acr31.features.javac.testing.TestCompilation;
 @RunWith(JUnit4.class)
 public class DataflowTest {
 
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Test
   public void lastUsed_addsEdge_toArrayUsage() {
     // ARRANGE
@@ -76,4 +86,420 @@ public class DataflowTest {
     assertThat(graph.edges(EdgeType.LAST_WRITE))
         .containsExactly(FeatureGraphChecks.edgeBetween(graph, init, write, EdgeType.LAST_WRITE));
   }
+
+  @Test
+  public void lastWrite_addsTheSameEdges_whenMethodsAreAnalysedInParallel() {
+    // ARRANGE
+    String[] lines = {
+      "import java.util.List;",
+      "public class Test {",
+      "  int field;",
+      "  int loops(int[] values, int n) {",
+      "    int sum = 0;",
+      "    for (int i = 0; i < n; i++) {",
+      "      if (values[i] < 0) { continue; }",
+      "      sum += values[i];",
+      "      while (sum > 100) { sum -= n; }",
+      "    }",
+      "    do { n--; } while (n > sum);",
+      "    return sum + n;",
+      "  }",
+      "  String exceptions(List<String> items) {",
+      "    String last = null;",
+      "    try {",
+      "      for (String item : items) {",
+      "        last = item;",
+      "        if (item.isEmpty()) { throw new IllegalStateException(last); }",
+      "      }",
+      "    } catch (IllegalStateException e) {",
+      "      last = e.getMessage() + last;",
+      "    } finally {",
+      "      field = last == null ? 0 : last.length();",
+      "    }",
+      "    return last;",
+      "  }",
+      "  int branches(int k, String s) {",
+      "    int result = k;",
+      "    switch (k) {",
+      "      case 1: result = s.length(); break;",
+      "      case 2: result += k;",
+      "      default: result *= 2;",
+      "    }",
+      "    Runnable r = () -> System.out.println(s);",
+      "    boolean b = k > 0 && result != 0 || s == null;",
+      "    return b ? result : k;",
+      "  }",
+      "  void empty() {}",
+      "  int single(int a) {",
+      "    a = a + 1;",
+      "    return a;",
+      "  }",
+      "}",
+    };
+    TestCompilation sequential = TestCompilation.compile("Test.java", lines);
+    TestCompilation parallel = TestCompilation.compile("Test.java", lines);
+    Options.instance(parallel.context()).put("dataflowParallelism", "4");
+
+    // ACT
+    FeatureGraph expected =
+        FeaturePlugin.createFeatureGraph(sequential.compilationUnit(), sequential.context());
+    FeatureGraph actual =
+        FeaturePlugin.createFeatureGraph(parallel.compilationUnit(), parallel.context());
+
+    // ASSERT
+    assertThat(expected.edges(EdgeType.LAST_WRITE)).isNotEmpty();
+    assertThat(expected.edges(EdgeType.LAST_USE)).isNotEmpty();
+    assertThat(actual.edges(EdgeType.LAST_WRITE))
+        .containsExactlyElementsIn(expected.edges(EdgeType.LAST_WRITE));
+    assertThat(actual.edges(EdgeType.LAST_USE))
+        .containsExactlyElementsIn(expected.edges(EdgeType.LAST_USE));
+  }
+
+  @Test
+  public void lastWrite_addsEdge_withNativeEngine() {
+    // ARRANGE
+    TestCompilation compilation =
+        TestCompilation.compile(
+            "Test.java", //
+            "public class Test {",
+            "  int method(int a) {",
+            "    a = a + 1;",
+            "    return a;",
+            "  }",
+            "}");
+    Options.instance(compilation.context()).put("dataflowEngine", "native");
+    SourceSpan write = compilation.sourceSpan("a", " = a + 1");
+    SourceSpan read = compilation.sourceSpan("a", ";\n  }");
+
+    // ACT
+    FeatureGraph graph =
+        FeaturePlugin.createFeatureGraph(compilation.compilationUnit(), compilation.context());
+
+    // ASSERT
+    assertThat(graph.edges(EdgeType.LAST_WRITE))
+        .contains(FeatureGraphChecks.edgeBetween(graph, write, read, EdgeType.LAST_WRITE));
+  }
+
+  @Test
+  public void nativeEngine_addsTheSameEdges_asCheckerFramework() {
+    // ARRANGE
+    String[] lines = {
+      "import java.util.List;",
+      "public class Test {",
+      "  int field;",
+      "  int loops(int[] values, List<Integer> list) {",
+      "    int total = 0;",
+      "    outer:",
+      "    for (int i = 0; i < values.length; i++) {",
+      "      int j = i;",
+      "      while (j > 0) {",
+      "        if (values[j] == total) continue outer;",
+      "        if (j % 7 == 3) break outer;",
+      "        total += j--;",
+      "      }",
+      "      do { total++; } while (total < i);",
+      "    }",
+      "    for (Integer value : list) { total = value > 0 ? value : -total; }",
+      "    for (int value : values) { total ^= value; }",
+      "    return total;",
+      "  }",
+      "  int exceptions(String s, Integer boxed) {",
+      "    int x = 0;",
+      "    try {",
+      "      x = Integer.parseInt(s);",
+      "      if (x > 10) return x;",
+      "      x = x / boxed;",
+      "      field = x;",
+      "    } catch (NumberFormatException e) {",
+      "      x = -1;",
+      "      s = e.getMessage();",
+      "    } catch (RuntimeException e) {",
+      "      throw e;",
+      "    } finally {",
+      "      s = s + x;",
+      "    }",
+      "    assert x > 0 : s;",
+      "    return x + s.length();",
+      "  }",
+      "  String switches(int k, String s) {",
+      "    String result = s;",
+      "    switch (k) {",
+      "      case 1: result = s + k;",
+      "      default: k++;",
+      "      case 2: result = result + k; break;",
+      "      case 3: return result;",
+      "    }",
+      "    Runnable r = () -> System.out.println(s);",
+      "    { int y = k; result += y; }",
+      "    { int y = 2; k = y + k; }",
+      "    boolean b = k > 0 && result != null || s == null;",
+      "    return b ? result : s + k;",
+      "  }",
+      "}",
+    };
+    TestCompilation checkerFramework = TestCompilation.compile("Test.java", lines);
+    TestCompilation nativeEngine = TestCompilation.compile("Test.java", lines);
+    Options.instance(nativeEngine.context()).put("dataflowEngine", "native");
+
+    // ACT
+    FeatureGraph expected =
+        FeaturePlugin.createFeatureGraph(
+            checkerFramework.compilationUnit(), checkerFramework.context());
+    FeatureGraph actual =
+        FeaturePlugin.createFeatureGraph(nativeEngine.compilationUnit(), nativeEngine.context());
+
+    // ASSERT
+    assertThat(expected.edges(EdgeType.LAST_WRITE)).isNotEmpty();
+    assertThat(actual.edges(EdgeType.LAST_WRITE))
+        .containsExactlyElementsIn(expected.edges(EdgeType.LAST_WRITE));
+    assertThat(actual.edges(EdgeType.LAST_USE))
+        .containsExactlyElementsIn(expected.edges(EdgeType.LAST_USE));
+  }
+
+  @Test
+  public void lastWrite_followsSourceOrder_whenAnalysisIsOverBudget() {
+    // ARRANGE
+    TestCompilation compilation =
+        TestCompilation.compile(
+            "Test.java", //
+            "public class Test {",
+            "  int method(int a) {",
+            "    int x = 0;",
+            "    while (a > 0) {",
+            "      x = x + a;",
+            "      a--;",
+            "    }",
+            "    return x;",
+            "  }",
+            "}");
+    Options.instance(compilation.context()).put("dataflowMaxVisits", "1");
+    SourceSpan write = compilation.sourceSpan("x", " = x + a");
+    SourceSpan read = compilation.sourceSpan("x", ";\n  }");
+
+    // ACT
+    FeatureGraph graph =
+        FeaturePlugin.createFeatureGraph(compilation.compilationUnit(), compilation.context());
+
+    // ASSERT
+    assertThat(graph.edges(EdgeType.LAST_WRITE))
+        .contains(FeatureGraphChecks.edgeBetween(graph, write, read, EdgeType.LAST_WRITE));
+    // Each of the five uses sees just the write before it in the source, and none sees the writes
+    // from later in the loop.
+    assertThat(graph.edges(EdgeType.LAST_WRITE)).hasSize(5);
+    assertThat(graph.getApproximatedDataflow()).hasSize(1);
+    assertThat(graph.getApproximatedDataflow().get(0).getContents()).isEqualTo("METHOD");
+  }
+
+  @Test
+  public void nativeEngine_approximatesMethod_whenGraphIsOverBudget() {
+    // ARRANGE
+    TestCompilation compilation =
+        TestCompilation.compile(
+            "Test.java", //
+            "public class Test {",
+            "  int small() {",
+            "    return 1;",
+            "  }",
+            "  int large(int a) {",
+            "    int x = a;",
+            "    if (a > 0) {",
+            "      x = 2;",
+            "    }",
+            "    return x;",
+            "  }",
+            "}");
+    Options options = Options.instance(compilation.context());
+    options.put("dataflowEngine", "native");
+    options.put("dataflowMaxNodes", "3");
+    SourceSpan write = compilation.sourceSpan("x", " = 2");
+    SourceSpan read = compilation.sourceSpan("x", ";\n  }");
+
+    // ACT
+    FeatureGraph graph =
+        FeaturePlugin.createFeatureGraph(compilation.compilationUnit(), compilation.context());
+
+    // ASSERT
+    assertThat(graph.edges(EdgeType.LAST_WRITE))
+        .contains(FeatureGraphChecks.edgeBetween(graph, write, read, EdgeType.LAST_WRITE));
+    // The return doesn't see the write of x in its declaration, which it would if the branch were
+    // analysed.
+    assertThat(graph.edges(EdgeType.LAST_WRITE)).hasSize(3);
+    assertThat(graph.getApproximatedDataflow()).hasSize(1);
+  }
+
+  @Test
+  public void lastWrite_addsTheSameEdges_whenResultsAreCached() {
+    // ARRANGE
+    String[] lines = {
+      "import java.util.function.Supplier;",
+      "public class Test {",
+      "  int method(int a) {",
+      "    Supplier<Integer> s = new Supplier<Integer>() {",
+      "      public Integer get() { return a; }",
+      "    };",
+      "    Runnable r = () -> System.out.println(a);",
+      "    int x = a;",
+      "    if (a > 0) {",
+      "      x = s.get();",
+      "    }",
+      "    return x;",
+      "  }",
+      "}",
+    };
+    String cacheDirectory = temporaryFolder.getRoot().getPath();
+    TestCompilation first = TestCompilation.compile("Test.java", lines);
+    Options.instance(first.context()).put("dataflowCacheDirectory", cacheDirectory);
+    FeatureGraph expected =
+        FeaturePlugin.createFeatureGraph(first.compilationUnit(), first.context());
+    String[] entries = temporaryFolder.getRoot().list();
+    TestCompilation second = TestCompilation.compile("Test.java", lines);
+    Options.instance(second.context()).put("dataflowCacheDirectory", cacheDirectory);
+
+    // ACT
+    FeatureGraph actual =
+        FeaturePlugin.createFeatureGraph(second.compilationUnit(), second.context());
+
+    // ASSERT
+    assertThat(entries).isNotEmpty();
+    assertThat(temporaryFolder.getRoot().list()).asList().containsExactly((Object[]) entries);
+    assertThat(expected.edges(EdgeType.LAST_WRITE)).isNotEmpty();
+    assertThat(actual.edges(EdgeType.LAST_WRITE))
+        .containsExactlyElementsIn(expected.edges(EdgeType.LAST_WRITE));
+    assertThat(actual.edges(EdgeType.LAST_USE))
+        .containsExactlyElementsIn(expected.edges(EdgeType.LAST_USE));
+  }
+
+  @Test
+  public void lastWrite_replaysCachedEdges_whenOnlyLayoutChanges() {
+    // ARRANGE
+    File cacheDirectory = temporaryFolder.getRoot();
+    TestCompilation first =
+        TestCompilation.compile(
+            "Test.java", //
+            "public class Test {",
+            "  int method(int a) {",
+            "    a = a + 1;",
+            "    return a;",
+            "  }",
+            "}");
+    Options.instance(first.context()).put("dataflowCacheDirectory", cacheDirectory.getPath());
+    FeaturePlugin.createFeatureGraph(first.compilationUnit(), first.context());
+    String[] entries = cacheDirectory.list();
+    TestCompilation second =
+        TestCompilation.compile(
+            "Test.java", //
+            "public class Test {",
+            "  // A comment which moves the method.",
+            "  int method(int a) {",
+            "    a   =   a + 1;",
+            "    return   a;",
+            "  }",
+            "}");
+    Options.instance(second.context()).put("dataflowCacheDirectory", cacheDirectory.getPath());
+    SourceSpan write = second.sourceSpan("a", "   =   a + 1");
+    SourceSpan read = second.sourceSpan("a", ";\n  }");
+
+    // ACT
+    FeatureGraph graph =
+        FeaturePlugin.createFeatureGraph(second.compilationUnit(), second.context());
+
+    // ASSERT
+    assertThat(cacheDirectory.list()).asList().containsExactly((Object[]) entries);
+    assertThat(graph.edges(EdgeType.LAST_WRITE))
+        .contains(FeatureGraphChecks.edgeBetween(graph, write, read, EdgeType.LAST_WRITE));
+  }
+
+  @Test
+  public void lastWrite_addsEdges_whenCacheCannotBeWritten() throws IOException {
+    // ARRANGE
+    // A file where the cache directory should be means nothing can be read from or written to it.
+    File cacheDirectory = temporaryFolder.newFile();
+    TestCompilation compilation =
+        TestCompilation.compile(
+            "Test.java", //
+            "public class Test {",
+            "  int method(int a) {",
+            "    a = a + 1;",
+            "    return a;",
+            "  }",
+            "}");
+    Options.instance(compilation.context())
+        .put("dataflowCacheDirectory", cacheDirectory.getPath());
+    SourceSpan write = compilation.sourceSpan("a", " = a + 1");
+    SourceSpan read = compilation.sourceSpan("a", ";\n  }");
+
+    // ACT
+    FeatureGraph graph =
+        FeaturePlugin.createFeatureGraph(compilation.compilationUnit(), compilation.context());
+
+    // ASSERT
+    assertThat(cacheDirectory.isFile()).isTrue();
+    assertThat(temporaryFolder.getRoot().list()).asList().containsExactly(cacheDirectory.getName());
+    assertThat(graph.edges(EdgeType.LAST_WRITE))
+        .contains(FeatureGraphChecks.edgeBetween(graph, write, read, EdgeType.LAST_WRITE));
+  }
+
+  @Test
+  public void lastWrite_missesCache_whenThrownExceptionGetsNewSupertype() {
+    // ARRANGE
+    File cacheDirectory = temporaryFolder.getRoot();
+    String[] lines = {
+      "public class Test {",
+      "  int method(int a) {",
+      "    try {",
+      "      MyException thrown = new MyException();",
+      "      a = 1;",
+      "      throw thrown;",
+      "    } catch (IllegalStateException e) {",
+      "      return a;",
+      "    } catch (RuntimeException e) {",
+      "      return a + 2;",
+      "    }",
+      "  }",
+      "}",
+    };
+    TestCompilation first =
+        TestCompilation.compileWith(
+            ImmutableMap.of(
+                "MyException.java", "public class MyException extends RuntimeException {}"),
+            "Test.java",
+            lines);
+    Options.instance(first.context()).put("dataflowCacheDirectory", cacheDirectory.getPath());
+    FeatureGraph firstGraph =
+        FeaturePlugin.createFeatureGraph(first.compilationUnit(), first.context());
+    String[] entries = cacheDirectory.list();
+    TestCompilation second =
+        TestCompilation.compileWith(
+            ImmutableMap.of(
+                "MyException.java", "public class MyException extends IllegalStateException {}"),
+            "Test.java",
+            lines);
+    Options.instance(second.context()).put("dataflowCacheDirectory", cacheDirectory.getPath());
+    SourceSpan write = second.sourceSpan("a", " = 1");
+    SourceSpan read = second.sourceSpan("a", ";\n    } catch (RuntimeException");
+
+    // ACT
+    FeatureGraph secondGraph =
+        FeaturePlugin.createFeatureGraph(second.compilationUnit(), second.context());
+
+    // ASSERT
+    // Only the exception thrown after the write reaches the first handler, and only once the
+    // exception is an IllegalStateException.
+    assertThat(
+            FeatureGraphChecks.isEdgeBetween(
+                firstGraph,
+                identifierToken(firstGraph, write),
+                identifierToken(firstGraph, read),
+                EdgeType.LAST_WRITE))
+        .isFalse();
+    assertThat(cacheDirectory.list()).asList().containsAllIn(entries);
+    assertThat(cacheDirectory.list()).hasLength(entries.length + 1);
+    assertThat(secondGraph.edges(EdgeType.LAST_WRITE))
+        .contains(FeatureGraphChecks.edgeBetween(secondGraph, write, read, EdgeType.LAST_WRITE));
+  }
+
+  private static FeatureNode identifierToken(FeatureGraph graph, SourceSpan span) {
+    return Iterables.getOnlyElement(
+        FeatureGraphChecks.findNodes(graph, span, FeatureNode.NodeType.IDENTIFIER_TOKEN));
+  }
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import uk.ac.cam.acr31.features.javac.graph.FeatureGraph;
+import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureNode;
+import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureNode.NodeType;
+import uk.ac.cam.acr31.features.javac.testing.SourceSpan;
+import uk.ac.cam.acr31.features.javac.testing.TestCompilation;
+
+@RunWith(JUnit4.class)
+public class FeatureGraphSpanTest {
+
+  @Test
+  public void findEnclosingNodes_returnsNodesContainingSpan() {
+    // ARRANGE
+    TestCompilation compilation =
+        TestCompilation.compile(
+            "Test.java", //
+            "public class Test {",
+            "  public static void main(String[] args) {",
+            "    int a = 0;",
+            "  }",
+            "}");
+    SourceSpan zero = compilation.sourceSpan("0");
+    SourceSpan variable = compilation.sourceSpan("int a = 0");
+    FeatureGraph graph =
+        FeaturePlugin.createFeatureGraph(compilation.compilationUnit(), compilation.context());
+
+    // ACT
+    Set<FeatureNode> enclosing = graph.findEnclosingNodes(zero.start(), zero.end());
+
+    // ASSERT
+    assertThat(enclosing).containsAllIn(graph.findNode(zero.start(), zero.end()));
+    assertThat(enclosing).containsAllIn(graph.findNode(variable.start(), variable.end()));
+    assertThat(enclosing).contains(graph.getAstRoot());
+    for (FeatureNode node : enclosing) {
+      assertThat(node.getStartPosition()).isAtMost(zero.start());
+      assertThat(node.getEndPosition()).isAtLeast(zero.end());
+    }
+  }
+
+  @Test
+  public void findNextNode_returnsLargestNodeAtNearestFollowingPosition() {
+    // ARRANGE
+    TestCompilation compilation =
+        TestCompilation.compile(
+            "Test.java", //
+            "public class Test {",
+            "  public static void main(String[] args) {",
+            "    int a = 0;",
+            "  }",
+            "}");
+    SourceSpan method =
+        compilation.sourceSpan("public static void main(String[] args) {\n    int a = 0;\n  }");
+    FeatureGraph graph =
+        FeaturePlugin.createFeatureGraph(compilation.compilationUnit(), compilation.context());
+
+    // ACT
+    FeatureNode next = graph.findNextNode(method.start() - 1, NodeType.FAKE_AST);
+
+    // ASSERT
+    assertThat(next.getType()).isEqualTo(NodeType.AST_ELEMENT);
+    assertThat(next.getStartPosition()).isEqualTo(method.start());
+    assertThat(next.getEndPosition()).isEqualTo(method.end());
+  }
+}
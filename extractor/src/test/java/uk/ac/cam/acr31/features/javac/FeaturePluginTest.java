@@ -17,15 +17,28 @@ package uk.ac.cam.acr31.features.javac;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import com.google.common.collect.ImmutableList;
+import com.sun.tools.javac.util.Options;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import uk.ac.cam.acr31.features.javac.graph.FeatureGraph;
+import uk.ac.cam.acr31.features.javac.graph.ProtoOutput;
+import uk.ac.cam.acr31.features.javac.proto.GraphProtos.FeatureNode;
+import uk.ac.cam.acr31.features.javac.proto.GraphProtos.Graph;
 import uk.ac.cam.acr31.features.javac.testing.TestCompilation;
 
 @RunWith(JUnit4.class)
 public class FeaturePluginTest {
 
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Test
   public void createIsSuccessful_fromEmptyFile() {
     // ARRANGE
@@ -87,4 +100,86 @@ public class FeaturePluginTest {
     // ASSERT
     assertThat(featureGraph.astNodes()).isNotEmpty();
   }
+
+  @Test
+  public void pruneAstNodes_removesChainsOfEmptyNodes() {
+    // ARRANGE
+    TestCompilation compilation =
+        TestCompilation.compile(
+            "Test.java",
+            "public class Test {", //
+            "  Test() {}",
+            "}");
+
+    // ACT
+    FeatureGraph featureGraph =
+        FeaturePlugin.createFeatureGraph(compilation.compilationUnit(), compilation.context());
+
+    // ASSERT
+    assertThat(featureGraph.getStatistics().get("prune.emptyAst")).isGreaterThan(0L);
+    for (FeatureNode node : featureGraph.astNodes()) {
+      assertThat(featureGraph.successors(node)).isNotEmpty();
+    }
+  }
+
+  @Test
+  public void protoOutput_writesTheNodesAndEdgesOfTheGraph() throws IOException {
+    // ARRANGE
+    TestCompilation compilation =
+        TestCompilation.compile(
+            "Test.java", //
+            "public class Test {",
+            "  int f(int a) {",
+            "    return a + 1;",
+            "  }",
+            "}");
+    FeatureGraph featureGraph =
+        FeaturePlugin.createFeatureGraph(compilation.compilationUnit(), compilation.context());
+    File output = temporaryFolder.newFile("Test.proto");
+
+    // ACT
+    ProtoOutput.write(output, featureGraph);
+
+    // ASSERT
+    Graph graph;
+    try (InputStream input = new FileInputStream(output)) {
+      graph = Graph.parseFrom(input);
+    }
+    assertThat(graph.getSourceFile()).isEqualTo(featureGraph.getSourceFileName());
+    assertThat(graph.getNodeList()).containsExactlyElementsIn(featureGraph.nodes()).inOrder();
+    assertThat(graph.getEdgeList())
+        .containsExactlyElementsIn(ImmutableList.copyOf(featureGraph.edges()))
+        .inOrder();
+    assertThat(graph.getFirstToken()).isEqualTo(featureGraph.getFirstToken());
+    assertThat(graph.getAstRoot()).isEqualTo(featureGraph.getAstRoot());
+  }
+
+  @Test
+  public void protoOutput_writesTheMethodsWithApproximatedDataflow() throws IOException {
+    // ARRANGE
+    TestCompilation compilation =
+        TestCompilation.compile(
+            "Test.java", //
+            "public class Test {",
+            "  int f(int a) {",
+            "    return a + 1;",
+            "  }",
+            "}");
+    Options.instance(compilation.context()).put("dataflowMaxNodes", "0");
+    FeatureGraph featureGraph =
+        FeaturePlugin.createFeatureGraph(compilation.compilationUnit(), compilation.context());
+    File output = temporaryFolder.newFile("Test.proto");
+
+    // ACT
+    ProtoOutput.write(output, featureGraph);
+
+    // ASSERT
+    Graph graph;
+    try (InputStream input = new FileInputStream(output)) {
+      graph = Graph.parseFrom(input);
+    }
+    assertThat(graph.getApproximatedDataflowList())
+        .containsExactlyElementsIn(featureGraph.getApproximatedDataflow());
+    assertThat(graph.getApproximatedDataflowList()).hasSize(1);
+  }
 }
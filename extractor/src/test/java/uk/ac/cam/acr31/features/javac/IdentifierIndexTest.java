@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.ReturnTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.TreeScanner;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import uk.ac.cam.acr31.features.javac.syntactic.CompositeScanner;
+import uk.ac.cam.acr31.features.javac.syntactic.IdentifierIndex;
+import uk.ac.cam.acr31.features.javac.testing.TestCompilation;
+
+@RunWith(JUnit4.class)
+public class IdentifierIndexTest {
+
+  @Test
+  public void identifiers_skipAnonymousClassBodiesOnlyFromOutside() {
+    // ARRANGE
+    TestCompilation compilation =
+        TestCompilation.compile(
+            "Test.java", //
+            "public class Test {",
+            "  int f(int a, int b, int c) {",
+            "    int x = a + new Object() {",
+            "      int g() {",
+            "        return b;",
+            "      }",
+            "    }.hashCode() + c;",
+            "    return x;",
+            "  }",
+            "}");
+    Map<String, Tree> trees = new HashMap<>();
+    compilation
+        .compilationUnit()
+        .accept(
+            new TreeScanner<Void, Void>() {
+              @Override
+              public Void visitVariable(VariableTree node, Void ignored) {
+                trees.put(node.getName().toString(), node.getInitializer());
+                return super.visitVariable(node, ignored);
+              }
+
+              @Override
+              public Void visitReturn(ReturnTree node, Void ignored) {
+                trees.putIfAbsent("return", node.getExpression());
+                return super.visitReturn(node, ignored);
+              }
+            },
+            null);
+    IdentifierIndex identifierIndex = new IdentifierIndex(new TreeSymbols());
+
+    // ACT
+    CompositeScanner.run(compilation.compilationUnit(), ImmutableList.of(identifierIndex));
+
+    // ASSERT
+    assertThat(names(identifierIndex, trees.get("x"))).containsExactly("a", "c").inOrder();
+    assertThat(names(identifierIndex, trees.get("return"))).containsExactly("b");
+    assertThat(names(identifierIndex, compilation.compilationUnit()))
+        .containsExactly("a", "c", "x")
+        .inOrder();
+  }
+
+  private static ImmutableList<String> names(IdentifierIndex identifierIndex, Tree tree) {
+    return identifierIndex.identifiers(tree).stream()
+        .map(IdentifierTree::getName)
+        .map(Object::toString)
+        .collect(toImmutableList());
+  }
+}
@@ -70,6 +70,33 @@ public class SymbolScannerTest {
     assertThat(symbolNode.getContents()).isEqualTo("foo.bar.Test.method(double)");
   }
 
+  @Test
+  public void symbolScanner_sharesSymbolNamesBetweenGraphsOfOneTask() {
+    // ARRANGE
+    TestCompilation compilation =
+        TestCompilation.compile(
+            "Test.java", //
+            "package foo.bar;",
+            "public class Test {",
+            "  static int method(double d) {",
+            "    return 1;",
+            "  }",
+            "}");
+    SourceSpan method = compilation.sourceSpan("method");
+
+    // ACT
+    FeatureGraph first =
+        FeaturePlugin.createFeatureGraph(compilation.compilationUnit(), compilation.context());
+    FeatureGraph second =
+        FeaturePlugin.createFeatureGraph(compilation.compilationUnit(), compilation.context());
+
+    // ASSERT
+    String firstName = findSymbolNode(first, method).getContents();
+    String secondName = findSymbolNode(second, method).getContents();
+    assertThat(firstName).isEqualTo("foo.bar.Test.method(double)");
+    assertThat(secondName).isSameAs(firstName);
+  }
+
   @Test
   public void symbolScanner_attachesSymbolToMethodName_inDefaultPackage() {
     // ARRANGE
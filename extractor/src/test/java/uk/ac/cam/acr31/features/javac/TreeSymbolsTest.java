@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.sun.source.tree.LiteralTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.util.TreeScanner;
+import com.sun.tools.javac.code.Symbol;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import uk.ac.cam.acr31.features.javac.testing.TestCompilation;
+
+@RunWith(JUnit4.class)
+public class TreeSymbolsTest {
+
+  @Test
+  public void get_returnsTheSymbolJavacResolvedOrNull() {
+    // ARRANGE
+    TestCompilation compilation =
+        TestCompilation.compile(
+            "Test.java", //
+            "public class Test {",
+            "  int f() {",
+            "    return g(1);",
+            "  }",
+            "  int g(int a) {",
+            "    return a;",
+            "  }",
+            "}");
+    Map<String, Tree> trees = new HashMap<>();
+    compilation
+        .compilationUnit()
+        .accept(
+            new TreeScanner<Void, Void>() {
+              @Override
+              public Void visitMethodInvocation(MethodInvocationTree node, Void ignored) {
+                trees.put("call", node);
+                return super.visitMethodInvocation(node, ignored);
+              }
+
+              @Override
+              public Void visitLiteral(LiteralTree node, Void ignored) {
+                trees.put("literal", node);
+                return super.visitLiteral(node, ignored);
+              }
+            },
+            null);
+    TreeSymbols treeSymbols = new TreeSymbols();
+
+    // ACT
+    Symbol.MethodSymbol call = treeSymbols.get((MethodInvocationTree) trees.get("call"));
+    Symbol literal = treeSymbols.get(trees.get("literal"));
+
+    // ASSERT
+    assertThat(call.getSimpleName().toString()).isEqualTo("g");
+    assertThat(treeSymbols.get(trees.get("call"))).isSameAs(call);
+    assertThat(literal).isNull();
+    assertThat(treeSymbols.get(trees.get("literal"))).isNull();
+  }
+}
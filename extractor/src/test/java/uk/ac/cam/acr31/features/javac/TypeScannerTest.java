@@ -138,4 +138,60 @@ public class TypeScannerTest {
     assertThat(arg1TypeNode.getContents()).isEqualTo("Test.A");
     assertThat(arg2TypeNode.getContents()).isEqualTo("Test.B");
   }
+
+  @Test
+  public void typeScanner_distinguishesTypeArgumentsOfTheSameGenericType() {
+    // ARRANGE
+    TestCompilation compilation =
+        TestCompilation.compile(
+            "Test.java", //
+            "import java.util.List;",
+            "public class Test {",
+            "  private static void f(List<String> a, List<Integer> b, List<String> c) {",
+            "    List<String> x = a;",
+            "    List<Integer> y = b;",
+            "    List<String> z = c;",
+            "  }",
+            "}");
+    SourceSpan x = compilation.sourceSpan("a", ";");
+    SourceSpan y = compilation.sourceSpan("b", ";");
+    SourceSpan z = compilation.sourceSpan("c", ";");
+
+    // ACT
+    FeatureGraph graph =
+        FeaturePlugin.createFeatureGraph(compilation.compilationUnit(), compilation.context());
+
+    // ASSERT
+    GraphProtos.FeatureNode xTypeNode = FeatureGraphChecks.findAssociatedTypeNode(graph, x);
+    GraphProtos.FeatureNode yTypeNode = FeatureGraphChecks.findAssociatedTypeNode(graph, y);
+    GraphProtos.FeatureNode zTypeNode = FeatureGraphChecks.findAssociatedTypeNode(graph, z);
+    assertThat(xTypeNode).isEqualTo(zTypeNode);
+    assertThat(xTypeNode).isNotEqualTo(yTypeNode);
+    assertThat(xTypeNode.getContents()).isEqualTo("java.util.List<java.lang.String>");
+    assertThat(yTypeNode.getContents()).isEqualTo("java.util.List<java.lang.Integer>");
+    assertThat(graph.getStatistics().get("types.hits")).isGreaterThan(0L);
+  }
+
+  @Test
+  public void typeScanner_typesArgumentsInsideLambdaBodies() {
+    // ARRANGE
+    TestCompilation compilation =
+        TestCompilation.compile(
+            "Test.java", //
+            "public class Test {",
+            "  private static void f(long v) {}",
+            "  public static void main(String[] args) {",
+            "    Runnable r = () -> f(args.length);",
+            "  }",
+            "}");
+    SourceSpan argument = compilation.sourceSpan("args.length");
+
+    // ACT
+    FeatureGraph graph =
+        FeaturePlugin.createFeatureGraph(compilation.compilationUnit(), compilation.context());
+
+    // ASSERT
+    GraphProtos.FeatureNode typeNode = FeatureGraphChecks.findAssociatedTypeNode(graph, argument);
+    assertThat(typeNode.getContents()).isEqualTo("int");
+  }
 }
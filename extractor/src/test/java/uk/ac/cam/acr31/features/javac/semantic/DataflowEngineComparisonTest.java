@@ -0,0 +1,69 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.semantic;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.Resources;
+import com.sun.tools.javac.processing.JavacProcessingEnvironment;
+import java.io.IOException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import uk.ac.cam.acr31.features.javac.testing.TestCompilation;
+
+@RunWith(JUnit4.class)
+public class DataflowEngineComparisonTest {
+
+  @Test
+  public void compare_findsNoDifferences_inControlFlowCorpus() throws IOException {
+    // ARRANGE
+    TestCompilation compilation = compileCorpusFile("ControlFlow.java");
+
+    // ACT
+    DataflowEngineComparison.Comparison comparison =
+        DataflowEngineComparison.compare(
+            compilation.compilationUnit(),
+            JavacProcessingEnvironment.instance(compilation.context()));
+
+    // ASSERT
+    assertThat(comparison.methods).isEqualTo(5);
+    assertThat(comparison.differences).isEmpty();
+  }
+
+  @Test
+  public void compare_findsNoDifferences_inFinallyCorpus() throws IOException {
+    // ARRANGE
+    TestCompilation compilation = compileCorpusFile("Finally.java");
+
+    // ACT
+    DataflowEngineComparison.Comparison comparison =
+        DataflowEngineComparison.compare(
+            compilation.compilationUnit(),
+            JavacProcessingEnvironment.instance(compilation.context()));
+
+    // ASSERT
+    assertThat(comparison.methods).isEqualTo(4);
+    assertThat(comparison.differences).isEmpty();
+  }
+
+  private static TestCompilation compileCorpusFile(String fileName) throws IOException {
+    String source = Resources.toString(Resources.getResource("dataflow/" + fileName), UTF_8);
+    return TestCompilation.compile(fileName, source);
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.semantic;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PersistentMapTest {
+
+  /** A key whose hash code is chosen by the test so that keys can collide. */
+  private static final class Key {
+    private final int id;
+    private final int hash;
+
+    private Key(int id, int hash) {
+      this.id = id;
+      this.hash = hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Key && ((Key) obj).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public String toString() {
+      return "k" + id;
+    }
+  }
+
+  @Test
+  public void persistentMap_matchesHashMapUnderRandomUpdates() {
+    // ARRANGE
+    Random random = new Random(42);
+    Key[] keys = new Key[200];
+    for (int i = 0; i < keys.length; i++) {
+      // Some keys share all of their hash code and others only the low bits.
+      int hash = i % 3 == 0 ? 7 : (i % 3 == 1 ? i << 20 : random.nextInt());
+      keys[i] = new Key(i, hash);
+    }
+    Map<Key, Integer> expected = new HashMap<>();
+    PersistentMap<Key, Integer> map = PersistentMap.empty();
+
+    // ACT
+    for (int step = 0; step < 5000; step++) {
+      Key key = keys[random.nextInt(keys.length)];
+      if (random.nextInt(3) == 0) {
+        expected.remove(key);
+        map = map.remove(key);
+      } else {
+        Integer value = random.nextInt(10);
+        expected.put(key, value);
+        map = map.put(key, value);
+      }
+    }
+
+    // ASSERT
+    assertThat(map.size()).isEqualTo(expected.size());
+    for (Key key : keys) {
+      assertThat(map.get(key)).isEqualTo(expected.get(key));
+    }
+    Map<Key, Integer> contents = new HashMap<>();
+    map.forEach(contents::put);
+    assertThat(contents).isEqualTo(expected);
+    assertThat(map.hashCode()).isEqualTo(expected.hashCode());
+  }
+
+  @Test
+  public void persistentMap_updatesLeaveEarlierVersionsUnchanged() {
+    // ARRANGE
+    Key a = new Key(1, 7);
+    Key b = new Key(2, 7);
+    PersistentMap<Key, Integer> before = PersistentMap.<Key, Integer>empty().put(a, 1).put(b, 2);
+
+    // ACT
+    PersistentMap<Key, Integer> after = before.put(a, 3).remove(b);
+
+    // ASSERT
+    assertThat(before.get(a)).isEqualTo(1);
+    assertThat(before.get(b)).isEqualTo(2);
+    assertThat(after.get(a)).isEqualTo(3);
+    assertThat(after.get(b)).isNull();
+    assertThat(before.put(a, before.get(a))).isSameAs(before);
+    assertThat(before.remove(new Key(3, 7))).isSameAs(before);
+  }
+
+  @Test
+  public void merge_returnsTheLargerMapWhenNothingChanges() {
+    // ARRANGE
+    Key a = new Key(1, 1);
+    Key b = new Key(2, 2);
+    PersistentMap<Key, Integer> larger = PersistentMap.<Key, Integer>empty().put(a, 1).put(b, 2);
+    PersistentMap<Key, Integer> smaller = PersistentMap.<Key, Integer>empty().put(b, 2);
+
+    // ACT
+    PersistentMap<Key, Integer> merged = smaller.merge(larger, Math::max);
+    PersistentMap<Key, Integer> combined = smaller.put(a, 5).merge(larger, (x, y) -> x + y);
+
+    // ASSERT
+    assertThat(merged).isSameAs(larger);
+    assertThat(combined.get(a)).isEqualTo(6);
+    assertThat(combined.get(b)).isEqualTo(4);
+    assertThat(combined).isNotEqualTo(larger);
+  }
+}
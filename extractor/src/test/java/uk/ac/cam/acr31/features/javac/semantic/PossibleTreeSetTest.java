@@ -0,0 +1,65 @@
+/*
+ * Copyright © 2018 The Authors (see NOTICE file)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.cam.acr31.features.javac.semantic;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.TreeVisitor;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PossibleTreeSetTest {
+
+  @Test
+  public void leastUpperBound_returnsAnExistingSetWhenItHoldsTheUnion() {
+    // ARRANGE
+    Tree[] trees = new Tree[70];
+    for (int i = 0; i < trees.length; i++) {
+      trees[i] = new FakeTree();
+    }
+    TreeNumbering numbering = new TreeNumbering();
+    PossibleTreeSet first = numbering.singleton(trees[0]);
+    PossibleTreeSet last = numbering.singleton(trees[69]);
+
+    // ACT
+    PossibleTreeSet both = first.leastUpperBound(last);
+
+    // ASSERT
+    assertThat(numbering.singleton(trees[0])).isSameAs(first);
+    assertThat(both.nodes()).containsExactly(trees[0], trees[69]).inOrder();
+    assertThat(both.leastUpperBound(first)).isSameAs(both);
+    assertThat(last.leastUpperBound(both)).isSameAs(both);
+    assertThat(both.leastUpperBound(new PossibleTreeSet())).isSameAs(both);
+    assertThat(last.leastUpperBound(first)).isEqualTo(both);
+    assertThat(both).isNotEqualTo(first);
+  }
+
+  private static final class FakeTree implements Tree {
+    @Override
+    public Kind getKind() {
+      return Kind.OTHER;
+    }
+
+    @Override
+    public <R, D> R accept(TreeVisitor<R, D> visitor, D data) {
+      return visitor.visitOther(this, data);
+    }
+  }
+}
@@ -0,0 +1,132 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/** Loops, branches and expressions with conversions, outside of any try statement. */
+public class ControlFlow {
+
+  static int counter;
+
+  int loops(int[] values, List<Integer> list) {
+    int total = 0;
+    outer:
+    for (int i = 0, j = values.length; i < j; i++, j--) {
+      int k = i;
+      while (k > 0) {
+        if (values[k] == total) continue outer;
+        if (k % 7 == 3) break outer;
+        total += k--;
+      }
+      do {
+        total++;
+        if (total == 5) continue;
+      } while (total < i);
+    }
+    for (Integer value : list) {
+      total = value > 0 ? value : -total;
+    }
+    for (int value : values) {
+      total ^= value;
+    }
+    for (; ; ) {
+      if (total-- < 0) break;
+    }
+    return total;
+  }
+
+  String switches(int k, String s) {
+    String result = s;
+    switch (k) {
+      case 1:
+        result = s + k;
+      default:
+        k++;
+      case 2:
+        result = result + k;
+        break;
+      case 3:
+        return result;
+    }
+    switch (s) {
+      case "a":
+        k = 1;
+        break;
+      case "b":
+        result = s;
+        // fall through
+      default:
+        k = result.length();
+    }
+    return result + k;
+  }
+
+  Object expressions(Integer boxed, long wide, char c, Object o) {
+    int x = boxed;
+    x += c;
+    wide += x;
+    wide <<= boxed;
+    boolean b = x > 0 && wide != 0 || o == null;
+    b &= !b;
+    Integer y = b ? x : boxed;
+    double d = b ? x : wide;
+    int[] array = {x, y, (int) d};
+    array[x] = array[y]++;
+    array = new int[] {x};
+    String s = o instanceof String ? (String) o : String.valueOf(o);
+    s += x + c;
+    counter++;
+    ControlFlow.counter += x;
+    this.toString();
+    assert x > 0 : s;
+    if (o == null) {
+      throw new IllegalArgumentException(s);
+    }
+    return new Object[] {s, d, array};
+  }
+
+  List<Object> closures(int a, String s) {
+    List<Object> results = new ArrayList<>();
+    Supplier<String> supplier =
+        new Supplier<String>() {
+          int local = a;
+
+          @Override
+          public String get() {
+            return s + local;
+          }
+        };
+    Function<Integer, Integer> f = x -> x + a;
+    Runnable r = () -> results.add(s);
+    class Local {
+      int value() {
+        return a;
+      }
+    }
+    {
+      int y = a;
+      results.add(y);
+    }
+    {
+      int y = 2;
+      results.add(y + a);
+    }
+    results.add(supplier.get() + f.apply(a) + new Local().value());
+    r.run();
+    return results;
+  }
+
+  int monitors(Object lock, Object next, int a) {
+    // Neither engine treats a synchronized statement specially: the lock, then the body.
+    synchronized (lock = a > 0 ? next : lock) {
+      a = a + lock.hashCode();
+      if (a > 10) {
+        throw new IllegalStateException(String.valueOf(lock));
+      }
+    }
+    synchronized (this) {
+      a++;
+    }
+    return a;
+  }
+}
@@ -0,0 +1,84 @@
+import java.util.List;
+
+/** Finally blocks, which both engines copy onto each way out of the try statement. */
+public class Finally {
+
+  int field;
+
+  int conversions(String s, Integer boxed, long wide) {
+    int x = 0;
+    for (int i = 0; i < 10; i++) {
+      try {
+        if (i == 3) {
+          continue;
+        }
+        if (i == 7) {
+          break;
+        }
+        x = Integer.parseInt(s) / boxed;
+        if (x > 100) {
+          return x;
+        }
+      } catch (NumberFormatException e) {
+        s = e.getMessage();
+      } finally {
+        // Unboxing, widening and string conversion nodes between the copies of these trees.
+        x += boxed;
+        wide = wide + x;
+        s = s + x + wide;
+      }
+    }
+    return x;
+  }
+
+  String nested(List<String> list, String s) {
+    String result = s;
+    outer:
+    for (String element : list) {
+      try {
+        try {
+          if (element.isEmpty()) {
+            continue outer;
+          }
+          result = result + element;
+        } finally {
+          result = result + s.length();
+          if (result.length() > 10) {
+            break outer;
+          }
+        }
+      } catch (RuntimeException e) {
+        result = e.toString();
+        throw e;
+      } finally {
+        field++;
+        s = result;
+      }
+    }
+    return result + s;
+  }
+
+  int returns(int a, Integer b) {
+    try {
+      if (a > b) {
+        return a;
+      }
+      a = a * b;
+    } finally {
+      a = a + b;
+      field = a;
+    }
+    return a;
+  }
+
+  synchronized int locks(Object lock, int a) {
+    synchronized (lock) {
+      try {
+        a++;
+      } finally {
+        a--;
+      }
+    }
+    return a;
+  }
+}